@@ -0,0 +1,57 @@
+package extend.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description DistributedLockAspect 单次调用开销：同一个无竞争关键字，
+ * 分别经过切面与直接调用锁接口加解锁，两者之差即为切面（注解解析、关键字提取、代理）的开销
+ * @Date 2023/6/24 21:03
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AspectBenchmark {
+
+    /**
+     * 经过切面加解锁
+     *
+     * @param state    Redis 与 Spring 上下文
+     * @param keyState 线程独占关键字
+     * @return 锁关键字，抢占失败时为 null
+     */
+    @Benchmark
+    public String aspect(RedisLockState state, ThreadKeyState keyState) {
+        return state.benchmarkService.locked(keyState.key);
+    }
+
+    /**
+     * 直接调用锁接口加解锁，作为切面开销的基线
+     *
+     * @param state    Redis 与 Spring 上下文
+     * @param keyState 线程独占关键字
+     * @return 锁关键字，抢占失败时为 null
+     */
+    @Benchmark
+    public String direct(RedisLockState state, ThreadKeyState keyState) {
+        String key = keyState.key;
+        if (!state.ordinaryDistributedLock.tryLock(key, RedisLockState.WAIT_TIME, RedisLockState.LEASE_TIME, TimeUnit.MILLISECONDS))
+            return null;
+        try {
+            return key;
+        } finally {
+            state.ordinaryDistributedLock.unLock(key, RedisLockState.LEASE_TIME, TimeUnit.MILLISECONDS);
+        }
+    }
+
+}
@@ -0,0 +1,61 @@
+package extend.jmh;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * @author 田奇杭
+ * @Description 基准测试入口，依次以 1..N 个线程运行匹配的基准，每个线程数输出一份 JSON 结果，
+ * 便于发布前与上一版本的结果对比。
+ * 用法：java -jar target/benchmarks.jar [基准名称正则] [线程数,线程数...]，
+ * 例如 java -jar target/benchmarks.jar SyncQueue 1,2,4,8；
+ * 默认启动内嵌 Redis，指定 -Dbench.redis.host / -Dbench.redis.port 时改用已有的 Redis
+ * @Date 2023/6/24 20:10
+ */
+public class BenchmarkRunner {
+
+    /**
+     * 默认线程数
+     */
+    private static final int[] DEFAULT_THREADS = {1, 2, 4, 8};
+
+    /**
+     * 结果输出目录
+     */
+    private static final String RESULT_DIR = "target/jmh";
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "extend.jmh.*";
+        int[] threads = args.length > 1 ? Arrays.stream(args[1].split(",")).mapToInt(Integer::parseInt).toArray() : DEFAULT_THREADS;
+
+        new File(RESULT_DIR).mkdirs();
+        for (int thread : threads) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(thread)
+                    // 内嵌 Redis 与 Spring 上下文在 fork 出的 JVM 中启动，系统属性需要透传
+                    .jvmArgsAppend(systemProperty("bench.redis.host"), systemProperty("bench.redis.port"))
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(RESULT_DIR + "/threads-" + thread + ".json")
+                    .build();
+            new Runner(options).run();
+        }
+    }
+
+    /**
+     * 透传给 fork JVM 的系统属性，未设置时传空属性
+     *
+     * @param name 属性名称
+     * @return -D 参数
+     */
+    private static String systemProperty(String name) {
+        return "-D" + name + "=" + System.getProperty(name, "");
+    }
+
+}
@@ -0,0 +1,26 @@
+package extend.jmh;
+
+import extend.annotation.DistributedLock;
+import extend.annotation.DistributedLockKey;
+import org.springframework.stereotype.Service;
+
+/**
+ * @author 田奇杭
+ * @Description 切面基准使用的服务，方法体为空，测得的时间全部是切面与加解锁的开销
+ * @Date 2023/6/24 20:32
+ */
+@Service
+public class BenchmarkService {
+
+    /**
+     * 由切面加锁的空方法
+     *
+     * @param key 锁关键字
+     * @return 锁关键字，抢占失败时切面返回 null
+     */
+    @DistributedLock(waitTime = RedisLockState.WAIT_TIME, leaseTime = RedisLockState.LEASE_TIME)
+    public String locked(@DistributedLockKey String key) {
+        return key;
+    }
+
+}
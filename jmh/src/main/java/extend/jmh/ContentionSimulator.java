@@ -0,0 +1,306 @@
+package extend.jmh;
+
+import redis.embedded.RedisServer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author 田奇杭
+ * @Description 多节点竞争模拟：一个 JVM 中启动若干模拟节点（各自独立的 Spring 上下文），共同争抢本地 Redis 替身中的锁，
+ * 可配置关键字倾斜、持有时间、注入的网络延迟与释放消息丢弃比例，输出每个节点的吞吐、等待时间分位数与饥饿情况，
+ * 用于离线验证调优参数。所有节点共享本机 CPU，结果用于同一台机器上的前后对比，不代表生产环境的绝对值。
+ * 用法：java -cp target/benchmarks.jar [-Dsim.xxx=...] extend.jmh.ContentionSimulator，参数见 Config；
+ * 默认启动内嵌 Redis，指定 -Dbench.redis.host / -Dbench.redis.port 时改用已有的 Redis
+ * @Date 2023/7/3 20:05
+ */
+public class ContentionSimulator {
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.fromSystemProperties();
+        System.out.println(config);
+
+        String host = System.getProperty("bench.redis.host", "");
+        String port = System.getProperty("bench.redis.port", "");
+        RedisServer redisServer = null;
+        if (host.isEmpty())
+            host = "127.0.0.1";
+        if (port.isEmpty()) {
+            port = String.valueOf(RedisLockState.freePort());
+            redisServer = RedisServer.builder().port(Integer.parseInt(port)).setting("save \"\"").setting("appendonly no").build();
+            redisServer.start();
+        }
+
+        Map<String, AtomicInteger> insideMap = new ConcurrentHashMap<>();
+        LongAdder violationCount = new LongAdder();
+        List<SimulatedNode> nodes = new ArrayList<>(config.nodes);
+        try {
+            for (int i = 0; i < config.nodes; i++) {
+                SimulatedNode node = new SimulatedNode(i, config, insideMap, violationCount);
+                node.start(host, Integer.parseInt(port));
+                nodes.add(node);
+            }
+
+            // 预热阶段不记录，之后测量 duration 秒
+            KeySampler sampler = new KeySampler(config.keys, config.skew);
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicBoolean measure = new AtomicBoolean(false);
+            for (SimulatedNode node : nodes)
+                node.startWorkers(sampler, running::get, measure::get);
+            TimeUnit.SECONDS.sleep(config.warmupSeconds);
+            measure.set(true);
+            long start = System.nanoTime();
+            TimeUnit.SECONDS.sleep(config.durationSeconds);
+            measure.set(false);
+            double seconds = (System.nanoTime() - start) / 1_000_000_000D;
+            running.set(false);
+
+            List<SimulatedNode.NodeReport> reports = new ArrayList<>(nodes.size());
+            for (SimulatedNode node : nodes)
+                reports.add(node.report(seconds));
+            print(reports, violationCount.sum());
+        } finally {
+            for (SimulatedNode node : nodes)
+                node.stop();
+            if (redisServer != null)
+                redisServer.stop();
+        }
+    }
+
+    /**
+     * 输出每个节点与全部节点的统计
+     *
+     * @param reports    每个节点的统计
+     * @param violations 互斥被破坏的次数
+     */
+    private static void print(List<SimulatedNode.NodeReport> reports, long violations) {
+        String header = String.format("%-6s %7s %10s %9s %10s %7s %9s %9s %9s %9s %9s %8s %9s %8s",
+                "node", "threads", "acquired", "timeouts", "ops/s", "share", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)",
+                "max(ms)", "starved", "minThread", "dropped");
+        System.out.println(header);
+        double total = 0;
+        for (SimulatedNode.NodeReport report : reports)
+            total += report.throughput;
+        List<long[]> allWaits = new ArrayList<>(reports.size());
+        long acquired = 0, timeouts = 0, starved = 0, dropped = 0, minThread = Long.MAX_VALUE;
+        double sum = 0, sumOfSquares = 0;
+        for (SimulatedNode.NodeReport report : reports) {
+            System.out.println(row(String.valueOf(report.index), report, total));
+            allWaits.add(report.waits);
+            acquired += report.acquired;
+            timeouts += report.timeouts;
+            starved += report.starved;
+            dropped += report.dropped;
+            minThread = Math.min(minThread, report.minPerThread);
+            // 按线程数归一化后的吞吐，用于计算节点间公平性
+            double perThread = report.throughput / report.threads;
+            sum += perThread;
+            sumOfSquares += perThread * perThread;
+        }
+        long[] merged = merge(allWaits);
+        int threads = reports.stream().mapToInt(report -> report.threads).sum();
+        SimulatedNode.NodeReport all = new SimulatedNode.NodeReport(-1, threads, acquired, timeouts, total, merged, starved,
+                minThread == Long.MAX_VALUE ? 0 : minThread, dropped);
+        System.out.println(row("all", all, total));
+        // Jain 公平性指数：1 表示各节点（按线程归一化）吞吐完全一致，1/n 表示只有一个节点在加锁
+        double fairness = sumOfSquares == 0 ? 1D : sum * sum / (reports.size() * sumOfSquares);
+        System.out.printf("fairness(jain): %.3f, mutual exclusion violations: %d%n", fairness, violations);
+    }
+
+    /**
+     * 一行统计
+     */
+    private static String row(String name, SimulatedNode.NodeReport report, double total) {
+        return String.format("%-6s %7d %10d %9d %10.1f %6.1f%% %9.3f %9.3f %9.3f %9.3f %9.3f %8d %9d %8d",
+                name, report.threads, report.acquired, report.timeouts, report.throughput,
+                total == 0 ? 0D : report.throughput * 100D / total,
+                report.percentile(50), report.percentile(90), report.percentile(99), report.percentile(99.9), report.percentile(100),
+                report.starved, report.minPerThread, report.dropped);
+    }
+
+    /**
+     * 合并并排序多个已排序的数组
+     */
+    private static long[] merge(List<long[]> arrays) {
+        int total = 0;
+        for (long[] array : arrays)
+            total += array.length;
+        long[] merged = new long[total];
+        int offset = 0;
+        for (long[] array : arrays) {
+            System.arraycopy(array, 0, merged, offset, array.length);
+            offset += array.length;
+        }
+        Arrays.sort(merged);
+        return merged;
+    }
+
+    /**
+     * 关键字分布：skew 为 0 时均匀分布，大于 0 时按 Zipf 分布，值越大越集中在少数热点关键字上
+     */
+    static final class KeySampler {
+
+        /**
+         * 关键字
+         */
+        private final String[] keys;
+
+        /**
+         * 累积概率
+         */
+        private final double[] cumulative;
+
+        KeySampler(int count, double skew) {
+            keys = new String[count];
+            cumulative = new double[count];
+            double sum = 0;
+            for (int i = 0; i < count; i++) {
+                keys[i] = "sim:" + i;
+                sum += 1D / Math.pow(i + 1, skew);
+                cumulative[i] = sum;
+            }
+            for (int i = 0; i < count; i++)
+                cumulative[i] /= sum;
+        }
+
+        /**
+         * 抽取一个关键字
+         *
+         * @param random 随机数
+         * @return 关键字
+         */
+        String next(ThreadLocalRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            if (index < 0)
+                index = -index - 1;
+            return keys[Math.min(index, keys.length - 1)];
+        }
+    }
+
+    /**
+     * 模拟配置，均通过系统属性 -Dsim.xxx 设置
+     */
+    static final class Config {
+
+        /**
+         * 节点数量 sim.nodes
+         */
+        int nodes;
+
+        /**
+         * 每个节点的工作线程数 sim.threads
+         */
+        int threads;
+
+        /**
+         * 关键字数量 sim.keys
+         */
+        int keys;
+
+        /**
+         * 关键字倾斜程度（Zipf 指数），0 为均匀分布 sim.skew
+         */
+        double skew;
+
+        /**
+         * 平均持有时间（微秒）sim.holdMicros
+         */
+        long holdMicros;
+
+        /**
+         * 持有时间抖动（微秒）sim.holdJitterMicros
+         */
+        long holdJitterMicros;
+
+        /**
+         * 释放后到下一次加锁的间隔（微秒）sim.thinkMicros
+         */
+        long thinkMicros;
+
+        /**
+         * 每次引擎调用注入的往返延迟（微秒）sim.latencyMicros
+         */
+        long latencyMicros;
+
+        /**
+         * 延迟抖动（微秒）sim.jitterMicros
+         */
+        long jitterMicros;
+
+        /**
+         * 释放消息丢弃比例 0~1 sim.dropRate
+         */
+        double dropRate;
+
+        /**
+         * 等待时间（毫秒）sim.waitMillis
+         */
+        long waitMillis;
+
+        /**
+         * 锁持续时间（毫秒），小于等于 0 时为看门狗模式 sim.leaseMillis
+         */
+        long leaseMillis;
+
+        /**
+         * 等待时间超过该值计为一次饥饿（毫秒）sim.starvationMillis
+         */
+        long starvationMillis;
+
+        /**
+         * 预热时长（秒）sim.warmupSeconds
+         */
+        long warmupSeconds;
+
+        /**
+         * 测量时长（秒）sim.durationSeconds
+         */
+        long durationSeconds;
+
+        /**
+         * 传给每个节点的额外启动参数，空格分隔，例如 "--extend.lock.local-handoff=true" sim.lockArgs
+         */
+        List<String> lockArgs;
+
+        static Config fromSystemProperties() {
+            Config config = new Config();
+            config.nodes = Integer.getInteger("sim.nodes", 3);
+            config.threads = Integer.getInteger("sim.threads", 4);
+            config.keys = Integer.getInteger("sim.keys", 16);
+            config.skew = Double.parseDouble(System.getProperty("sim.skew", "1.0"));
+            config.holdMicros = Long.getLong("sim.holdMicros", 1000L);
+            config.holdJitterMicros = Long.getLong("sim.holdJitterMicros", 500L);
+            config.thinkMicros = Long.getLong("sim.thinkMicros", 0L);
+            config.latencyMicros = Long.getLong("sim.latencyMicros", 500L);
+            config.jitterMicros = Long.getLong("sim.jitterMicros", 200L);
+            config.dropRate = Double.parseDouble(System.getProperty("sim.dropRate", "0.0"));
+            config.waitMillis = Long.getLong("sim.waitMillis", 1000L);
+            config.leaseMillis = Long.getLong("sim.leaseMillis", 30000L);
+            config.starvationMillis = Long.getLong("sim.starvationMillis", 500L);
+            config.warmupSeconds = Long.getLong("sim.warmupSeconds", 5L);
+            config.durationSeconds = Long.getLong("sim.durationSeconds", 20L);
+            String lockArgs = System.getProperty("sim.lockArgs", "").trim();
+            config.lockArgs = lockArgs.isEmpty() ? Collections.emptyList() : Arrays.asList(lockArgs.split("\\s+"));
+            return config;
+        }
+
+        @Override
+        public String toString() {
+            return "nodes=" + nodes + ", threads=" + threads + ", keys=" + keys + ", skew=" + skew
+                    + ", holdMicros=" + holdMicros + "+-" + holdJitterMicros + ", thinkMicros=" + thinkMicros
+                    + ", latencyMicros=" + latencyMicros + "+-" + jitterMicros + ", dropRate=" + dropRate
+                    + ", waitMillis=" + waitMillis + ", leaseMillis=" + leaseMillis + ", starvationMillis=" + starvationMillis
+                    + ", warmupSeconds=" + warmupSeconds + ", durationSeconds=" + durationSeconds + ", lockArgs=" + lockArgs;
+        }
+    }
+
+}
@@ -0,0 +1,182 @@
+package extend.jmh;
+
+import extend.engine.LockEngine;
+import extend.engine.LockReleaseListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author 田奇杭
+ * @Description 注入故障的锁引擎，包装模拟节点中的真实引擎：每次引擎调用前增加一次网络往返的延迟，
+ * 释放消息按比例丢弃，用于在本地复现跨机房延迟与订阅连接抖动
+ * @Date 2023/7/3 20:20
+ */
+public class FaultInjectingLockEngine implements LockEngine {
+
+    /**
+     * 被包装的引擎
+     */
+    private final LockEngine delegate;
+
+    /**
+     * 单次往返延迟（微秒）
+     */
+    private final long latencyMicros;
+
+    /**
+     * 延迟抖动（微秒），实际延迟在 latency ± jitter 之间均匀分布
+     */
+    private final long jitterMicros;
+
+    /**
+     * 释放消息丢弃比例 0~1
+     */
+    private final double dropRate;
+
+    /**
+     * 每个监听对应的丢弃消息的包装，取消订阅时需要同一个对象
+     */
+    private final Map<LockReleaseListener, LockReleaseListener> listenerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 已丢弃的释放消息数量
+     */
+    private final LongAdder droppedCount = new LongAdder();
+
+    public FaultInjectingLockEngine(LockEngine delegate, long latencyMicros, long jitterMicros, double dropRate) {
+        this.delegate = delegate;
+        this.latencyMicros = latencyMicros;
+        this.jitterMicros = jitterMicros;
+        this.dropRate = dropRate;
+    }
+
+    @Override
+    public Long acquire(String lockName, long leaseTime, String owner) {
+        delay();
+        return delegate.acquire(lockName, leaseTime, owner);
+    }
+
+    @Override
+    public CompletableFuture<Long> acquireAsync(String lockName, long leaseTime, String owner) {
+        return delayAsync().thenCompose(v -> delegate.acquireAsync(lockName, leaseTime, owner));
+    }
+
+    @Override
+    public List<CompletableFuture<Long>> acquireAll(List<List<String>> groups, long leaseTime, String owner) {
+        delay();
+        return delegate.acquireAll(groups, leaseTime, owner);
+    }
+
+    @Override
+    public Long release(String lockName, long leaseTime, String owner) {
+        delay();
+        return delegate.release(lockName, leaseTime, owner);
+    }
+
+    @Override
+    public CompletableFuture<Long> releaseAsync(String lockName, long leaseTime, String owner) {
+        return delayAsync().thenCompose(v -> delegate.releaseAsync(lockName, leaseTime, owner));
+    }
+
+    @Override
+    public List<CompletableFuture<Long>> releaseAll(List<List<String>> groups, long leaseTime, String owner) {
+        delay();
+        return delegate.releaseAll(groups, leaseTime, owner);
+    }
+
+    @Override
+    public Long handoff(String lockName, long leaseTime, String owner, String nextOwner, long nextLeaseTime) {
+        delay();
+        return delegate.handoff(lockName, leaseTime, owner, nextOwner, nextLeaseTime);
+    }
+
+    @Override
+    public List<Boolean> renew(List<String> lockNames, List<String> owners, long leaseTime) {
+        delay();
+        return delegate.renew(lockNames, owners, leaseTime);
+    }
+
+    @Override
+    public void listen(LockReleaseListener listener) {
+        delegate.listen(wrap(listener));
+    }
+
+    @Override
+    public void subscribe(String lockName, LockReleaseListener listener) {
+        delegate.subscribe(lockName, wrap(listener));
+    }
+
+    @Override
+    public void unsubscribe(String lockName, LockReleaseListener listener) {
+        delegate.unsubscribe(lockName, wrap(listener));
+    }
+
+    /**
+     * 已丢弃的释放消息数量
+     *
+     * @return 消息数量
+     */
+    public long getDroppedCount() {
+        return droppedCount.sum();
+    }
+
+    /**
+     * 包装监听，按比例丢弃释放消息
+     *
+     * @param listener 监听
+     * @return 包装后的监听
+     */
+    private LockReleaseListener wrap(LockReleaseListener listener) {
+        if (dropRate <= 0)
+            return listener;
+        return listenerMap.computeIfAbsent(listener, k -> (lockName, message) -> {
+            if (ThreadLocalRandom.current().nextDouble() < dropRate) {
+                droppedCount.increment();
+                return;
+            }
+            listener.onRelease(lockName, message);
+        });
+    }
+
+    /**
+     * 本次往返的延迟（纳秒）
+     *
+     * @return 延迟
+     */
+    private long nextDelayNanos() {
+        if (latencyMicros <= 0)
+            return 0L;
+        long jitter = jitterMicros > 0 ? ThreadLocalRandom.current().nextLong(-jitterMicros, jitterMicros + 1) : 0L;
+        return TimeUnit.MICROSECONDS.toNanos(Math.max(latencyMicros + jitter, 0L));
+    }
+
+    /**
+     * 同步调用的延迟，占用调用线程
+     */
+    private void delay() {
+        long nanos = nextDelayNanos();
+        if (nanos > 0)
+            LockSupport.parkNanos(nanos);
+    }
+
+    /**
+     * 异步调用的延迟，不占用调用线程
+     *
+     * @return 延迟结束时完成
+     */
+    private CompletableFuture<Void> delayAsync() {
+        long nanos = nextDelayNanos();
+        if (nanos <= 0)
+            return CompletableFuture.completedFuture(null);
+        return CompletableFuture.runAsync(() -> {
+        }, CompletableFuture.delayedExecutor(nanos, TimeUnit.NANOSECONDS));
+    }
+
+}
@@ -0,0 +1,66 @@
+package extend.jmh;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description OrdinaryDistributedLock 完整加解锁基准：无竞争（每个线程独占关键字）与所有线程争抢同一个关键字
+ * @Date 2023/6/24 20:52
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrdinaryLockBenchmark {
+
+    /**
+     * 竞争基准使用的关键字
+     */
+    private static final String SHARED_KEY = "bench:shared";
+
+    /**
+     * 无竞争：一次抢占脚本 + 一次释放脚本
+     *
+     * @param state    Redis 与 Spring 上下文
+     * @param keyState 线程独占关键字
+     * @return true:加解锁成功
+     */
+    @Benchmark
+    public boolean uncontended(RedisLockState state, ThreadKeyState keyState) {
+        return cycle(state, keyState.key);
+    }
+
+    /**
+     * 竞争：包含本地排队、订阅释放频道与释放消息唤醒
+     *
+     * @param state Redis 与 Spring 上下文
+     * @return true:加解锁成功
+     */
+    @Benchmark
+    public boolean contended(RedisLockState state) {
+        return cycle(state, SHARED_KEY);
+    }
+
+    /**
+     * 加锁后立即释放
+     *
+     * @param state Redis 与 Spring 上下文
+     * @param key   锁关键字
+     * @return true:加解锁成功
+     */
+    private boolean cycle(RedisLockState state, String key) {
+        if (!state.ordinaryDistributedLock.tryLock(key, RedisLockState.WAIT_TIME, RedisLockState.LEASE_TIME, TimeUnit.MILLISECONDS))
+            return false;
+        return state.ordinaryDistributedLock.unLock(key, RedisLockState.LEASE_TIME, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,101 @@
+package extend.jmh;
+
+import extend.ExtendLockApplication;
+import extend.lock.OrdinaryDistributedLock;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+/**
+ * @author 田奇杭
+ * @Description 需要 Redis 的基准共享的状态：每次 fork 启动一个内嵌 Redis 与一个不带 web 的 Spring 上下文，
+ * 锁、切面、监听容器都是应用中的真实 bean，只是把 Redis 换成了本地替身
+ * @Date 2023/6/24 20:25
+ */
+@State(Scope.Benchmark)
+public class RedisLockState {
+
+    /**
+     * 锁持续时间（毫秒），固定值，避免看门狗续期干扰测量
+     */
+    public static final long LEASE_TIME = 30000L;
+
+    /**
+     * 等待时间（毫秒）
+     */
+    public static final long WAIT_TIME = 10000L;
+
+    /**
+     * 内嵌 Redis，使用外部 Redis 时为 null
+     */
+    private RedisServer redisServer;
+
+    /**
+     * Spring 上下文
+     */
+    private ConfigurableApplicationContext context;
+
+    /**
+     * 普通分布式锁
+     */
+    public OrdinaryDistributedLock ordinaryDistributedLock;
+
+    /**
+     * 标注了分布式锁注解的服务
+     */
+    public BenchmarkService benchmarkService;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        String host = System.getProperty("bench.redis.host", "");
+        String port = System.getProperty("bench.redis.port", "");
+        if (host.isEmpty())
+            host = "127.0.0.1";
+        if (port.isEmpty()) {
+            port = String.valueOf(freePort());
+            // 关闭持久化，测量的是锁本身而不是 fork/fsync
+            redisServer = RedisServer.builder().port(Integer.parseInt(port)).setting("save \"\"").setting("appendonly no").build();
+            redisServer.start();
+        }
+        context = new SpringApplicationBuilder(ExtendLockApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .run("--spring.redis.host=" + host,
+                        "--spring.redis.port=" + port,
+                        "--spring.redis.password=",
+                        // 释放消息每条都会打 info 日志，基准中关闭
+                        "--logging.level.extend=warn");
+        ordinaryDistributedLock = context.getBean(OrdinaryDistributedLock.class);
+        benchmarkService = context.getBean(BenchmarkService.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (context != null)
+            context.close();
+        if (redisServer != null)
+            redisServer.stop();
+    }
+
+    /**
+     * 获取一个空闲端口
+     *
+     * @return 端口
+     */
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+}
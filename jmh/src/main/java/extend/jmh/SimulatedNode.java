@@ -0,0 +1,335 @@
+package extend.jmh;
+
+import extend.ExtendLockApplication;
+import extend.engine.LockEngine;
+import extend.lock.OrdinaryDistributedLock;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * @author 田奇杭
+ * @Description 模拟的一个服务节点：独立的 Spring 上下文（自己的 PublishSubscribe、同步队列、看门狗与 Redis 连接），
+ * 锁引擎被包装为 FaultInjectingLockEngine，若干工作线程按配置的关键字分布反复加锁、持有、释放并记录等待时间
+ * @Date 2023/7/3 20:35
+ */
+public class SimulatedNode {
+
+    /**
+     * 节点编号
+     */
+    private final int index;
+
+    /**
+     * 模拟配置
+     */
+    private final ContentionSimulator.Config config;
+
+    /**
+     * 各节点共享的临界区计数，用于检查跨节点互斥
+     * key: 关键字
+     * value: 当前在临界区内的线程数
+     */
+    private final Map<String, AtomicInteger> insideMap;
+
+    /**
+     * 互斥被破坏的次数，各节点共享
+     */
+    private final LongAdder violationCount;
+
+    /**
+     * Spring 上下文
+     */
+    private ConfigurableApplicationContext context;
+
+    /**
+     * 包装后的锁引擎
+     */
+    private FaultInjectingLockEngine lockEngine;
+
+    /**
+     * 普通分布式锁
+     */
+    private OrdinaryDistributedLock ordinaryDistributedLock;
+
+    /**
+     * 工作线程
+     */
+    private final List<Thread> workers = new ArrayList<>();
+
+    /**
+     * 每个工作线程的等待时间记录
+     */
+    private final List<WaitRecorder> recorders = new ArrayList<>();
+
+    /**
+     * 等待超时次数
+     */
+    private final LongAdder timeoutCount = new LongAdder();
+
+    SimulatedNode(int index, ContentionSimulator.Config config, Map<String, AtomicInteger> insideMap, LongAdder violationCount) {
+        this.index = index;
+        this.config = config;
+        this.insideMap = insideMap;
+        this.violationCount = violationCount;
+    }
+
+    /**
+     * 启动 Spring 上下文，锁引擎创建后立即包装
+     *
+     * @param host Redis 地址
+     * @param port Redis 端口
+     */
+    void start(String host, int port) {
+        List<String> args = new ArrayList<>(Arrays.asList(
+                "--spring.redis.host=" + host,
+                "--spring.redis.port=" + port,
+                "--spring.redis.password=",
+                "--spring.redis.client-name=sim-node-" + index,
+                // 多个上下文共用一个 JVM，指标注册中心是全局的，关闭指标
+                "--extend.lock.metrics-enabled=false",
+                "--logging.level.extend=warn"));
+        args.addAll(config.lockArgs);
+        context = new SpringApplicationBuilder(ExtendLockApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .initializers(applicationContext -> applicationContext.getBeanFactory().addBeanPostProcessor(new BeanPostProcessor() {
+                    @Override
+                    public Object postProcessAfterInitialization(Object bean, String beanName) {
+                        if (!(bean instanceof LockEngine))
+                            return bean;
+                        lockEngine = new FaultInjectingLockEngine((LockEngine) bean, config.latencyMicros, config.jitterMicros, config.dropRate);
+                        return lockEngine;
+                    }
+                }))
+                .run(args.toArray(new String[0]));
+        ordinaryDistributedLock = context.getBean(OrdinaryDistributedLock.class);
+    }
+
+    /**
+     * 创建并启动工作线程
+     *
+     * @param sampler 关键字分布
+     * @param running 是否继续运行
+     * @param measure 是否处于测量阶段（预热阶段不记录）
+     */
+    void startWorkers(ContentionSimulator.KeySampler sampler, BooleanSupplier running, BooleanSupplier measure) {
+        for (int i = 0; i < config.threads; i++) {
+            WaitRecorder recorder = new WaitRecorder();
+            recorders.add(recorder);
+            Thread worker = new Thread(() -> run(sampler, running, measure, recorder), "sim-node-" + index + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    /**
+     * 工作线程主循环
+     */
+    private void run(ContentionSimulator.KeySampler sampler, BooleanSupplier running,
+                     BooleanSupplier measure, WaitRecorder recorder) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (running.getAsBoolean()) {
+            String key = sampler.next(random);
+            long start = System.nanoTime();
+            boolean locked = ordinaryDistributedLock.tryLock(key, config.waitMillis, config.leaseMillis, TimeUnit.MILLISECONDS);
+            long waited = System.nanoTime() - start;
+            boolean measuring = measure.getAsBoolean();
+            if (!locked) {
+                if (measuring) {
+                    timeoutCount.increment();
+                    recorder.record(waited, false);
+                }
+                continue;
+            }
+            AtomicInteger inside = insideMap.computeIfAbsent(key, k -> new AtomicInteger());
+            if (inside.incrementAndGet() > 1)
+                violationCount.increment();
+            try {
+                if (measuring)
+                    recorder.record(waited, true);
+                park(config.holdMicros, config.holdJitterMicros, random);
+            } finally {
+                inside.decrementAndGet();
+                ordinaryDistributedLock.unLock(key, config.leaseMillis, TimeUnit.MILLISECONDS);
+            }
+            park(config.thinkMicros, 0L, random);
+        }
+    }
+
+    /**
+     * 等待所有工作线程结束并关闭上下文
+     */
+    void stop() throws InterruptedException {
+        for (Thread worker : workers)
+            worker.join(config.waitMillis + config.leaseMillis);
+        if (context != null)
+            context.close();
+    }
+
+    /**
+     * 汇总统计
+     *
+     * @param seconds 测量时长（秒）
+     * @return 统计结果
+     */
+    NodeReport report(double seconds) {
+        long[] waits = WaitRecorder.merge(recorders);
+        long timeouts = timeoutCount.sum();
+        long acquired = waits.length - timeouts;
+        long starved = 0;
+        long starvationNanos = TimeUnit.MILLISECONDS.toNanos(config.starvationMillis);
+        for (long wait : waits) {
+            if (wait >= starvationNanos)
+                starved++;
+        }
+        // 单个线程在测量期间的最少加锁次数，为 0 说明该线程被饿死
+        long minPerThread = Long.MAX_VALUE;
+        for (WaitRecorder recorder : recorders)
+            minPerThread = Math.min(minPerThread, recorder.acquired);
+        return new NodeReport(index, config.threads, acquired, timeouts, acquired / seconds, waits, starved,
+                recorders.isEmpty() ? 0 : minPerThread, lockEngine == null ? 0 : lockEngine.getDroppedCount());
+    }
+
+    /**
+     * 休眠 base ± jitter 微秒
+     */
+    private static void park(long baseMicros, long jitterMicros, ThreadLocalRandom random) {
+        long micros = baseMicros + (jitterMicros > 0 ? random.nextLong(-jitterMicros, jitterMicros + 1) : 0L);
+        if (micros > 0)
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(micros));
+    }
+
+    /**
+     * 单个工作线程的等待时间记录，只由该线程写入，结束后合并
+     */
+    static final class WaitRecorder {
+
+        /**
+         * 等待时间（纳秒）
+         */
+        private long[] values = new long[1024];
+
+        /**
+         * 记录数量
+         */
+        private volatile int size;
+
+        /**
+         * 加锁成功次数
+         */
+        private volatile long acquired;
+
+        /**
+         * 记录一次抢占的等待时间
+         *
+         * @param nanos  等待时间（纳秒）
+         * @param locked 是否加锁成功
+         */
+        void record(long nanos, boolean locked) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, values.length * 2);
+            values[size] = nanos;
+            size = size + 1;
+            if (locked)
+                acquired = acquired + 1;
+        }
+
+        /**
+         * 合并并排序
+         *
+         * @param recorders 各线程的记录
+         * @return 排序后的等待时间
+         */
+        static long[] merge(List<WaitRecorder> recorders) {
+            int total = 0;
+            for (WaitRecorder recorder : recorders)
+                total += recorder.size;
+            long[] merged = new long[total];
+            int offset = 0;
+            for (WaitRecorder recorder : recorders) {
+                System.arraycopy(recorder.values, 0, merged, offset, recorder.size);
+                offset += recorder.size;
+            }
+            Arrays.sort(merged);
+            return merged;
+        }
+    }
+
+    /**
+     * 单个节点的统计结果
+     */
+    static final class NodeReport {
+
+        final int index;
+
+        final int threads;
+
+        final long acquired;
+
+        final long timeouts;
+
+        final double throughput;
+
+        /**
+         * 排序后的等待时间（纳秒），含超时
+         */
+        final long[] waits;
+
+        /**
+         * 等待时间超过饥饿阈值的次数，含超时
+         */
+        final long starved;
+
+        /**
+         * 单个线程的最少加锁次数
+         */
+        final long minPerThread;
+
+        /**
+         * 被丢弃的释放消息数量
+         */
+        final long dropped;
+
+        NodeReport(int index, int threads, long acquired, long timeouts, double throughput, long[] waits, long starved,
+                   long minPerThread, long dropped) {
+            this.index = index;
+            this.threads = threads;
+            this.acquired = acquired;
+            this.timeouts = timeouts;
+            this.throughput = throughput;
+            this.waits = waits;
+            this.starved = starved;
+            this.minPerThread = minPerThread;
+            this.dropped = dropped;
+        }
+
+        /**
+         * 等待时间分位数（毫秒）
+         *
+         * @param percentile 0~100
+         * @return 分位数
+         */
+        double percentile(double percentile) {
+            if (waits.length == 0)
+                return 0D;
+            int index = (int) Math.ceil(percentile / 100D * waits.length) - 1;
+            return waits[Math.max(0, Math.min(index, waits.length - 1))] / 1_000_000D;
+        }
+    }
+
+}
@@ -0,0 +1,104 @@
+package extend.jmh;
+
+import extend.listener.SyncQueue;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author 田奇杭
+ * @Description SyncQueue 获取/释放基准，不依赖 Redis：分布式锁用一个 CAS 变量代替，
+ * 释放时按真实顺序“释放分布式锁 → 释放本地锁 → 收到释放消息”，与 ReentrantLock 对比本地排队的开销
+ * @Date 2023/6/24 20:40
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SyncQueueBenchmark {
+
+    /**
+     * 单次等待时间（毫秒），正常情况下不会等满
+     */
+    private static final long WAIT_TIME = 1000L;
+
+    /**
+     * 锁释放消息内容
+     */
+    private static final String RELEASE_MESSAGE = "bench";
+
+    /**
+     * 分布式锁替身，值为持有线程
+     */
+    private final AtomicReference<Thread> distributedLock = new AtomicReference<>();
+
+    /**
+     * 被测本地同步队列
+     */
+    private SyncQueue syncQueue;
+
+    /**
+     * 对照组
+     */
+    private ReentrantLock reentrantLock;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        syncQueue = new SyncQueue();
+        reentrantLock = new ReentrantLock();
+        distributedLock.set(null);
+    }
+
+    /**
+     * 与 OrdinaryDistributedLock 相同的抢占/释放流程
+     *
+     * @return true:抢占成功 false:等待超时
+     */
+    @Benchmark
+    public boolean syncQueue() {
+        Thread current = Thread.currentThread();
+        boolean flag = syncQueue.tryAcquire();
+        int releaseCount = syncQueue.getReleaseCount();
+        while (flag || syncQueue.acquire(WAIT_TIME, 0L, 0L, releaseCount)) {
+            releaseCount = syncQueue.getReleaseCount();
+            if (distributedLock.compareAndSet(null, current)) {
+                distributedLock.set(null);
+                syncQueue.release();
+                syncQueue.signal(RELEASE_MESSAGE);
+                return true;
+            }
+            flag = false;
+        }
+        return false;
+    }
+
+    /**
+     * 对照组：JDK 可重入锁
+     *
+     * @return true
+     */
+    @Benchmark
+    public boolean reentrantLock() {
+        reentrantLock.lock();
+        try {
+            return true;
+        } finally {
+            reentrantLock.unlock();
+        }
+    }
+
+}
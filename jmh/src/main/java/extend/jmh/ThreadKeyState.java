@@ -0,0 +1,25 @@
+package extend.jmh;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * @author 田奇杭
+ * @Description 每个基准线程独占一个锁关键字，用于测量无竞争时的单次开销
+ * @Date 2023/6/24 20:36
+ */
+@State(Scope.Thread)
+public class ThreadKeyState {
+
+    /**
+     * 当前线程独占的锁关键字
+     */
+    public String key;
+
+    @Setup
+    public void setUp() {
+        key = "bench:" + Thread.currentThread().getId();
+    }
+
+}
@@ -0,0 +1,4 @@
+package extend.jmh.jmh_generated;
+public class AspectBenchmark_jmhType extends AspectBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package extend.jmh.jmh_generated;
+public class OrdinaryLockBenchmark_jmhType extends OrdinaryLockBenchmark_jmhType_B3 {
+}
+
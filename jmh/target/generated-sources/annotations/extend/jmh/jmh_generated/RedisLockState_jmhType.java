@@ -0,0 +1,4 @@
+package extend.jmh.jmh_generated;
+public class RedisLockState_jmhType extends RedisLockState_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package extend.jmh.jmh_generated;
+public class SyncQueueBenchmark_jmhType extends SyncQueueBenchmark_jmhType_B3 {
+}
+
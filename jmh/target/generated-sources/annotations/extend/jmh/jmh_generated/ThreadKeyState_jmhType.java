@@ -0,0 +1,4 @@
+package extend.jmh.jmh_generated;
+public class ThreadKeyState_jmhType extends ThreadKeyState_jmhType_B3 {
+}
+
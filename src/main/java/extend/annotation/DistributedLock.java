@@ -1,5 +1,6 @@
 package extend.annotation;
 
+import extend.enums.DistributedLockModeEnum;
 import extend.enums.DistributedLockTypeEnum;
 
 import java.lang.annotation.Documented;
@@ -12,7 +13,8 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 
 /**
  * @author 田奇杭
- * @Description 分布式锁注解
+ * @Description 分布式锁注解。
+ * 返回 Mono/Flux 的方法在订阅时以响应式方式加锁，只支持普通分布式锁（其他类型启动时报错），且调用时只能解析出一个关键字（否则订阅时报错）
  * @Date 2023/5/28 22:03
  */
 @Documented
@@ -20,6 +22,14 @@ import static java.lang.annotation.RetentionPolicy.RUNTIME;
 @Retention(RUNTIME)
 public @interface DistributedLock {
 
+    /**
+     * 关键字表达式，例如 order.tenantId + ':' + order.id，参数可按名称、#名称或 p0/a0 引用；
+     * 结果为集合或数组时每个元素都是一个关键字。不为空时忽略 DistributedLockKey 注解
+     *
+     * @return 关键字表达式
+     */
+    String key() default "";
+
     /**
      * 分布式锁的等待时间
      *
@@ -28,7 +38,8 @@ public @interface DistributedLock {
     long waitTime() default 6000L;
 
     /**
-     * 分布式锁的持续时间
+     * 分布式锁的持续时间，小于等于 0 时开启看门狗模式：
+     * 锁以 extend.lock.watchdog-lease-time 的短持续时间写入 Redis，持有期间由看门狗定期续期
      *
      * @return 锁持续时间
      */
@@ -48,4 +59,18 @@ public @interface DistributedLock {
      */
     DistributedLockTypeEnum type() default DistributedLockTypeEnum.ORDINARY;
 
+    /**
+     * 分布式锁读写模式，仅读写分布式锁使用
+     *
+     * @return 读写模式
+     */
+    DistributedLockModeEnum mode() default DistributedLockModeEnum.WRITE;
+
+    /**
+     * 信号量许可数量，即允许同时持有锁的数量，仅信号量分布式锁使用
+     *
+     * @return 许可数量
+     */
+    int permits() default 1;
+
 }
@@ -4,18 +4,38 @@ import extend.annotation.DistributedLock;
 import extend.annotation.DistributedLockKey;
 import extend.enums.DistributedLockTypeEnum;
 import extend.lock.AbstractDistributedLock;
+import extend.lock.LockMetrics;
+import extend.lock.OrdinaryDistributedLock;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
 import org.aspectj.lang.annotation.Pointcut;
 import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.MethodClassKey;
+import org.springframework.core.annotation.AnnotatedElementUtils;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.ReflectionUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
 import java.lang.annotation.Annotation;
+import java.lang.reflect.Array;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.IntStream;
 
 /**
  * @author 田奇杭
@@ -25,7 +45,7 @@ import java.util.Map;
 @Slf4j
 @Aspect
 @Component
-public class DistributedLockAspect {
+public class DistributedLockAspect implements SmartInitializingSingleton {
 
     /**
      * 拦截所有标注 @DistributedLock 的方法
@@ -41,117 +61,251 @@ public class DistributedLockAspect {
     @Resource
     private Map<String, AbstractDistributedLock> distributedLockMap;
 
+    /**
+     * 监控指标
+     */
+    @Resource
+    private LockMetrics lockMetrics;
+
+    /**
+     * 应用上下文，启动时扫描标注 @DistributedLock 的方法
+     */
+    @Resource
+    private ApplicationContext applicationContext;
+
+    /**
+     * 锁元数据缓存
+     * key: 方法与目标类
+     * value: 解析后的锁元数据
+     */
+    private final Map<MethodClassKey, LockMetadata> lockMetadataMap = new ConcurrentHashMap<>();
+
+    /**
+     * 所有单例初始化完成后解析所有标注 @DistributedLock 的方法，配置错误（例如响应式方法使用不支持异步的锁类型）在启动时失败，
+     * 而不是等到第一次调用；解析结果直接放入缓存
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        for (String beanName : applicationContext.getBeanDefinitionNames()) {
+            Class<?> beanType = applicationContext.getType(beanName);
+            if (beanType == null)
+                continue;
+            Class<?> targetClass = ClassUtils.getUserClass(beanType);
+            for (Method method : ReflectionUtils.getUniqueDeclaredMethods(targetClass)) {
+                if (AnnotatedElementUtils.hasAnnotation(method, DistributedLock.class))
+                    lockMetadataMap.computeIfAbsent(new MethodClassKey(method, targetClass), k -> resolveLockMetadata(method, targetClass));
+            }
+        }
+    }
+
     /**
      * 环绕通知：灵活自由的在目标方法中切入代码
      */
     @Around("targetMethod()")
     public Object around(ProceedingJoinPoint joinPoint) {
 
-        // 分布式锁注解
-        DistributedLock distributedLock = getDistributedLock(joinPoint);
+        // 锁元数据，每个方法只解析一次
+        LockMetadata lockMetadata = getLockMetadata(joinPoint);
+        DistributedLock distributedLock = lockMetadata.getDistributedLock();
 
         // 获取关键字
-        String keyword = getKeyword(joinPoint);
+        List<String> keywords = lockMetadata.getKeyExtractor().apply(joinPoint.getArgs());
 
         // 非空检查
-        if (distributedLock == null || keyword == null)
+        if (distributedLock == null || keywords.isEmpty())
             return null;
 
         // 获取分布式锁对象
-        DistributedLockTypeEnum type = distributedLock.type();
-        AbstractDistributedLock abstractDistributedLock = distributedLockMap.get(type.getDistributedLockName());
+        AbstractDistributedLock abstractDistributedLock = lockMetadata.getAbstractDistributedLock();
+
+        // 返回 Mono/Flux 的方法以响应式方式加锁，不阻塞调用线程
+        if (lockMetadata.isReactive())
+            return aroundReactive(joinPoint, distributedLock, abstractDistributedLock, keywords, lockMetadata.isMono());
 
-        boolean flag = abstractDistributedLock.tryLock(keyword, distributedLock.waitTime(), distributedLock.leaseTime(), distributedLock.timeUnit());
+        // 多个关键字时一次性全部获取
+        String keyword = keywords.get(0);
+        boolean multi = keywords.size() > 1;
+        boolean flag = multi ? abstractDistributedLock.tryLock(keywords, distributedLock) : abstractDistributedLock.tryLock(keyword, distributedLock);
+        long start = lockMetrics.start();
         try {
             if (flag)
                 // 执行源方法
                 return joinPoint.proceed();
         } catch (Throwable e) {
-            log.error("DistributedLockAspect.around tryLock fail keyword:{} distributedLock:{}", keyword, distributedLock, e);
+            log.error("DistributedLockAspect.around tryLock fail keywords:{} distributedLock:{}", keywords, distributedLock, e);
         } finally {
-            if (flag)
-                abstractDistributedLock.unLock(keyword, distributedLock.leaseTime(), distributedLock.timeUnit());
+            if (flag) {
+                // 记录持有时间
+                if (lockMetrics.isEnabled()) {
+                    for (String lockKeyword : keywords)
+                        lockMetrics.released(abstractDistributedLock, lockKeyword, start);
+                }
+                if (multi)
+                    abstractDistributedLock.unLock(keywords, distributedLock);
+                else
+                    abstractDistributedLock.unLock(keyword, distributedLock);
+            }
         }
         return null;
     }
 
     /**
-     * 获取方法上方的分布式锁注解
+     * 响应式加锁：源方法在订阅时才执行，执行结束、出错或取消订阅时释放锁。
+     * 只支持普通分布式锁（解析元数据时已校验）；多个关键字时按排序逐个异步获取，任意一把等待超时则全部归还
      *
-     * @param joinPoint 连接点
-     * @return 分布式锁注解
+     * @param joinPoint               连接点
+     * @param distributedLock         分布式锁注解
+     * @param abstractDistributedLock 分布式锁对象
+     * @param keywords                关键字集合
+     * @param mono                    true:返回 Mono false:返回 Flux
+     * @return Mono 或 Flux
      */
-    private DistributedLock getDistributedLock(ProceedingJoinPoint joinPoint) {
-
-        // 当前执行的方法
-        Method objMethod = getMethod(joinPoint);
-
-        if (objMethod == null)
-            return null;
-
-        for (Annotation annotation : objMethod.getAnnotations()) {
-            if (annotation instanceof DistributedLock)
-                return (DistributedLock) annotation;
+    private Object aroundReactive(ProceedingJoinPoint joinPoint, DistributedLock distributedLock,
+                                  AbstractDistributedLock abstractDistributedLock, List<String> keywords, boolean mono) {
+        OrdinaryDistributedLock ordinaryDistributedLock = (OrdinaryDistributedLock) abstractDistributedLock;
+        String keyword = keywords.get(0);
+        boolean multi = keywords.size() > 1;
+        long waitTime = distributedLock.waitTime();
+        long leaseTime = distributedLock.leaseTime();
+        TimeUnit timeUnit = distributedLock.timeUnit();
+        if (mono) {
+            Mono<?> source = Mono.defer(() -> {
+                try {
+                    return (Mono<?>) joinPoint.proceed();
+                } catch (Throwable e) {
+                    return Mono.error(e);
+                }
+            });
+            return multi ? ordinaryDistributedLock.withLock(keywords, waitTime, leaseTime, timeUnit, source)
+                    : ordinaryDistributedLock.withLock(keyword, waitTime, leaseTime, timeUnit, source);
         }
-        return null;
+        Flux<?> source = Flux.defer(() -> {
+            try {
+                return (Flux<?>) joinPoint.proceed();
+            } catch (Throwable e) {
+                return Flux.error(e);
+            }
+        });
+        return multi ? ordinaryDistributedLock.withLock(keywords, waitTime, leaseTime, timeUnit, source)
+                : ordinaryDistributedLock.withLock(keyword, waitTime, leaseTime, timeUnit, source);
     }
 
     /**
-     * 获取关键字
+     * 获取当前方法的锁元数据，首次调用时解析并缓存
      *
      * @param joinPoint 连接点
-     * @return 关键字
+     * @return 锁元数据
      */
-    private String getKeyword(ProceedingJoinPoint joinPoint) {
+    private LockMetadata getLockMetadata(ProceedingJoinPoint joinPoint) {
+        Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+        Class<?> targetClass = AopUtils.getTargetClass(joinPoint.getTarget());
+        MethodClassKey methodClassKey = new MethodClassKey(method, targetClass);
+        LockMetadata lockMetadata = lockMetadataMap.get(methodClassKey);
+        if (lockMetadata != null)
+            return lockMetadata;
+        return lockMetadataMap.computeIfAbsent(methodClassKey, k -> resolveLockMetadata(method, targetClass));
+    }
 
-        // 获取方法传入参数
-        Object[] params = joinPoint.getArgs();
+    /**
+     * 解析锁元数据：注解取目标类上最具体的方法，其次是连接点方法（接口方法），
+     * 收集所有标注 DistributedLockKey 的参数（不要求是参数上的第一个注解）
+     *
+     * @param method      连接点方法
+     * @param targetClass 目标类
+     * @return 锁元数据
+     */
+    private LockMetadata resolveLockMetadata(Method method, Class<?> targetClass) {
 
-        // 当前执行的方法
-        Method objMethod = getMethod(joinPoint);
+        // 目标类上的具体方法
+        Method specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
 
-        // 非空检查
-        if (params == null || objMethod == null)
-            return null;
+        // 分布式锁注解
+        DistributedLock distributedLock = AnnotatedElementUtils.findMergedAnnotation(specificMethod, DistributedLock.class);
+        if (distributedLock == null)
+            distributedLock = AnnotatedElementUtils.findMergedAnnotation(method, DistributedLock.class);
 
-        // 获取方法上的注解
-        Annotation[][] annotations = objMethod.getParameterAnnotations();
+        // 标注 DistributedLockKey 的参数下标
+        int[] keyIndexes = IntStream.range(0, specificMethod.getParameterCount())
+                .filter(i -> isLockKey(specificMethod, i) || isLockKey(method, i))
+                .toArray();
 
-        // 循环参数列表
-        for (int i = 0; i < params.length; i++) {
-            // 查看每个参数的第一个注解是否为 DistributedLockKey
-            if (annotations[i][0] instanceof DistributedLockKey)
-                // 返回关键字
-                return String.valueOf(params[i]);
-        }
-        return null;
+        // 分布式锁对象
+        AbstractDistributedLock abstractDistributedLock = distributedLock == null ? null
+                : distributedLockMap.get(distributedLock.type().getDistributedLockName());
+
+        // 关键字提取器，优先使用 key 表达式
+        Function<Object[], List<String>> keyExtractor = distributedLock != null && !distributedLock.key().isEmpty()
+                ? KeyExpressionCompiler.compile(distributedLock.key(), specificMethod)
+                : keyExtractor(keyIndexes, specificMethod.getParameterTypes());
+
+        Class<?> returnType = specificMethod.getReturnType();
+        boolean mono = Mono.class.isAssignableFrom(returnType);
+        boolean reactive = mono || Flux.class.isAssignableFrom(returnType);
+
+        // 响应式方法以异步方式加锁，只有普通分布式锁提供异步实现
+        if (reactive && distributedLock != null && distributedLock.type() != DistributedLockTypeEnum.ORDINARY)
+            throw new IllegalStateException("响应式方法只支持普通分布式锁 method:" + specificMethod + ", type:" + distributedLock.type());
+        // 读写锁、信号量、公平锁只在 Redis 锁引擎下装配
+        if (distributedLock != null && abstractDistributedLock == null)
+            throw new IllegalStateException("当前锁引擎不支持该分布式锁类型 method:" + specificMethod + ", type:" + distributedLock.type());
+        return new LockMetadata(distributedLock, abstractDistributedLock, keyIndexes, keyExtractor, reactive, mono);
     }
 
     /**
-     * 获取当前方法
+     * 参数上是否标注了 DistributedLockKey
      *
-     * @param joinPoint 连接点
-     * @return 当前方法
+     * @param method 方法
+     * @param index  参数下标
+     * @return true:关键字参数
      */
-    private Method getMethod(ProceedingJoinPoint joinPoint) {
-
-        // 获取目标方法的名称
-        String methodName = joinPoint.getSignature().getName();
-
-        // 反射获取目标类
-        Class<?> targetClass = joinPoint.getTarget().getClass();
-
-        // 拿到方法对应的参数类型
-        Class<?>[] parameterTypes = ((MethodSignature) joinPoint.getSignature()).getParameterTypes();
+    private static boolean isLockKey(Method method, int index) {
+        for (Annotation annotation : method.getParameterAnnotations()[index]) {
+            if (annotation instanceof DistributedLockKey)
+                return true;
+        }
+        return false;
+    }
 
-        try {
-            // 根据类、方法、参数类型（重载）获取到方法的具体信息
-            return targetClass.getMethod(methodName, parameterTypes);
-        } catch (NoSuchMethodException e) {
-            log.error("DistributedLockAspect.getMethod fail methodName:{}", methodName, e);
+    /**
+     * 构建关键字提取器：单个声明类型不是集合或数组的参数直接取值，否则逐个参数展开
+     *
+     * @param keyIndexes     关键字参数下标
+     * @param parameterTypes 参数类型
+     * @return 关键字提取器
+     */
+    private static Function<Object[], List<String>> keyExtractor(int[] keyIndexes, Class<?>[] parameterTypes) {
+        if (keyIndexes.length == 0)
+            return args -> Collections.emptyList();
+        if (keyIndexes.length == 1) {
+            int index = keyIndexes[0];
+            Class<?> type = parameterTypes[index];
+            if (type != Object.class && !Collection.class.isAssignableFrom(type) && !type.isArray())
+                return args -> Collections.singletonList(String.valueOf(args[index]));
         }
-        return null;
+        return args -> {
+            List<String> keywords = new ArrayList<>();
+            for (int index : keyIndexes)
+                addKeywords(keywords, args[index]);
+            return keywords;
+        };
     }
 
+    /**
+     * 添加关键字，集合与数组参数的每个元素都是一个关键字
+     *
+     * @param keywords 关键字集合
+     * @param param    参数值
+     */
+    private static void addKeywords(List<String> keywords, Object param) {
+        if (param instanceof Collection) {
+            for (Object element : (Collection<?>) param)
+                keywords.add(String.valueOf(element));
+        } else if (param != null && param.getClass().isArray()) {
+            for (int i = 0; i < Array.getLength(param); i++)
+                keywords.add(String.valueOf(Array.get(param, i)));
+        } else {
+            keywords.add(String.valueOf(param));
+        }
+    }
 
 }
@@ -0,0 +1,335 @@
+package extend.aspect;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.expression.MapAccessor;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.spel.SpelCompilerMode;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+import org.springframework.expression.spel.SpelParserConfiguration;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.expression.spel.support.StandardEvaluationContext;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * @author 田奇杭
+ * @Description 将 @DistributedLock 的 key 表达式编译为关键字提取器，每个方法只编译一次。
+ * 形如 order.tenantId + ':' + order.id 的表达式（参数名或 p0/a0 开头的属性路径与字符串常量的拼接）
+ * 按参数的声明类型解析出 getter，直接编译为 MethodHandle 链，取值开销与字段读取相当，求值结果与 SpEL 一致：
+ * + 从左到右结合，前两项中有一项为字符串时才整条都是拼接，否则（如两个数值相加）回退到 SpEL；属性路径中间值为 null 时与 SpEL 一样抛出异常；
+ * 其他表达式（方法调用、运算、集合选择等）回退到 SpEL，并开启 SpEL 编译，参数可以写作 order 或 #order
+ * @Date 2023/6/27 20:10
+ */
+@Slf4j
+final class KeyExpressionCompiler {
+
+    /**
+     * 属性读取方法的统一类型 (Object)Object
+     */
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * SpEL 解析器，MIXED 模式下表达式执行几次后编译为字节码
+     */
+    private static final SpelExpressionParser PARSER = new SpelExpressionParser(
+            new SpelParserConfiguration(SpelCompilerMode.MIXED, KeyExpressionCompiler.class.getClassLoader()));
+
+    /**
+     * 参数名称解析
+     */
+    private static final ParameterNameDiscoverer PARAMETER_NAME_DISCOVERER = new DefaultParameterNameDiscoverer();
+
+    private KeyExpressionCompiler() {
+    }
+
+    /**
+     * 编译 key 表达式，结果为集合或数组时每个元素都是一个关键字
+     *
+     * @param expression key 表达式
+     * @param method     目标方法
+     * @return 关键字提取器，入参为方法参数
+     */
+    static Function<Object[], List<String>> compile(String expression, Method method) {
+        String[] parameterNames = PARAMETER_NAME_DISCOVERER.getParameterNames(method);
+        Function<Object[], Object> accessor = compileDirect(expression, method, parameterNames);
+        if (accessor == null)
+            accessor = compileSpel(expression, parameterNames, method.getParameterCount());
+        Function<Object[], Object> finalAccessor = accessor;
+        return args -> toKeywords(finalAccessor.apply(args));
+    }
+
+    /**
+     * 将属性路径与字符串常量的拼接编译为 MethodHandle 链
+     *
+     * @param expression     key 表达式
+     * @param method         目标方法
+     * @param parameterNames 参数名称，可能为 null
+     * @return 取值函数，表达式超出支持范围时返回 null
+     */
+    private static Function<Object[], Object> compileDirect(String expression, Method method, String[] parameterNames) {
+        List<String> terms = splitTerms(expression);
+        if (terms == null)
+            return null;
+        List<Function<Object[], Object>> parts = new ArrayList<>(terms.size());
+        boolean concat = false;
+        for (int i = 0; i < terms.size(); i++) {
+            Class<?>[] type = new Class<?>[1];
+            Function<Object[], Object> part = compileTerm(terms.get(i), method, parameterNames, type);
+            if (part == null)
+                return null;
+            // SpEL 的 + 从左到右结合，前两项中有字符串时第一个 + 即为拼接，之后的累加值都是字符串
+            if (i < 2 && type[0] == String.class)
+                concat = true;
+            parts.add(part);
+        }
+        if (parts.size() == 1)
+            return parts.get(0);
+        if (!concat)
+            return null;
+        return args -> {
+            StringBuilder key = new StringBuilder(32);
+            for (Function<Object[], Object> part : parts)
+                key.append(part.apply(args));
+            return key.toString();
+        };
+    }
+
+    /**
+     * 按顶层的 + 切分表达式，字符串常量中的 + 不切分
+     *
+     * @param expression key 表达式
+     * @return 各项，引号不匹配时返回 null
+     */
+    private static List<String> splitTerms(String expression) {
+        List<String> terms = new ArrayList<>();
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (quote != 0) {
+                if (c == quote)
+                    quote = 0;
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '+') {
+                terms.add(expression.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        if (quote != 0)
+            return null;
+        terms.add(expression.substring(start).trim());
+        return terms;
+    }
+
+    /**
+     * 编译单项：字符串常量，或参数开头的属性路径
+     *
+     * @param term           表达式中的一项
+     * @param method         目标方法
+     * @param parameterNames 参数名称，可能为 null
+     * @param resultType     输出参数，取值的声明类型
+     * @return 取值函数，超出支持范围时返回 null
+     */
+    private static Function<Object[], Object> compileTerm(String term, Method method, String[] parameterNames, Class<?>[] resultType) {
+        if (term.length() >= 2 && (term.charAt(0) == '\'' || term.charAt(0) == '"') && term.charAt(term.length() - 1) == term.charAt(0)) {
+            String literal = term.substring(1, term.length() - 1);
+            if (literal.indexOf(term.charAt(0)) >= 0)
+                return null;
+            resultType[0] = String.class;
+            return args -> literal;
+        }
+        String[] path = (term.startsWith("#") ? term.substring(1) : term).split("\\.", -1);
+        for (String segment : path) {
+            if (!isIdentifier(segment))
+                return null;
+        }
+        int index = parameterIndex(path[0], parameterNames, method.getParameterCount());
+        if (index < 0)
+            return null;
+
+        // 按声明类型逐级解析属性读取方法
+        Class<?> type = method.getParameterTypes()[index];
+        MethodHandle[] getters = new MethodHandle[path.length - 1];
+        for (int i = 1; i < path.length; i++) {
+            MethodHandle getter = findGetter(type, path[i]);
+            if (getter == null)
+                return null;
+            getters[i - 1] = getter.asType(GETTER_TYPE);
+            type = getter.type().returnType();
+        }
+        resultType[0] = type;
+        if (getters.length == 0)
+            return args -> args[index];
+        return args -> {
+            Object value = args[index];
+            try {
+                for (int i = 0; i < getters.length; i++) {
+                    // 与 SpEL 一致，在 null 上读取属性直接失败，不把 null 拼进关键字
+                    if (value == null)
+                        throw new SpelEvaluationException(SpelMessage.PROPERTY_OR_FIELD_NOT_READABLE_ON_NULL, path[i + 1]);
+                    value = (Object) getters[i].invokeExact(value);
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            return value;
+        };
+    }
+
+    /**
+     * 参数下标，支持参数名、p0、a0 三种写法
+     *
+     * @param name           参数名称
+     * @param parameterNames 参数名称，可能为 null
+     * @param parameterCount 参数数量
+     * @return 参数下标，不存在时返回 -1
+     */
+    private static int parameterIndex(String name, String[] parameterNames, int parameterCount) {
+        if (parameterNames != null) {
+            for (int i = 0; i < parameterNames.length; i++) {
+                if (parameterNames[i].equals(name))
+                    return i;
+            }
+        }
+        if (name.length() > 1 && (name.charAt(0) == 'p' || name.charAt(0) == 'a')) {
+            try {
+                int index = Integer.parseInt(name.substring(1));
+                return index < parameterCount ? index : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查找属性读取方法：getXxx()、isXxx()、xxx()、公有字段，Map 类型按 key 取值
+     *
+     * @param type     声明类型
+     * @param property 属性名称
+     * @return 读取方法，找不到或无权访问时返回 null
+     */
+    private static MethodHandle findGetter(Class<?> type, String property) {
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        try {
+            if (Map.class.isAssignableFrom(type))
+                return MethodHandles.insertArguments(lookup.findVirtual(Map.class, "get", MethodType.methodType(Object.class, Object.class)), 1, property);
+            String capitalized = Character.toUpperCase(property.charAt(0)) + property.substring(1);
+            for (String name : new String[]{"get" + capitalized, "is" + capitalized, property}) {
+                Method getter = findMethod(type, name);
+                if (getter != null)
+                    return lookup.unreflect(getter);
+            }
+            Field field = type.getField(property);
+            if (!Modifier.isStatic(field.getModifiers()) && Modifier.isPublic(field.getDeclaringClass().getModifiers()))
+                return lookup.unreflectGetter(field);
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * 查找无参、有返回值的公有实例方法，声明类必须是公有类
+     *
+     * @param type 声明类型
+     * @param name 方法名称
+     * @return 方法，不存在时返回 null
+     */
+    private static Method findMethod(Class<?> type, String name) {
+        try {
+            Method method = type.getMethod(name);
+            if (Modifier.isStatic(method.getModifiers()) || method.getReturnType() == void.class
+                    || !Modifier.isPublic(method.getDeclaringClass().getModifiers()))
+                return null;
+            return method;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 是否为合法的 Java 标识符
+     *
+     * @param segment 属性路径中的一段
+     * @return true:合法
+     */
+    private static boolean isIdentifier(String segment) {
+        if (segment.isEmpty() || !Character.isJavaIdentifierStart(segment.charAt(0)))
+            return false;
+        for (int i = 1; i < segment.length(); i++) {
+            if (!Character.isJavaIdentifierPart(segment.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 回退到 SpEL：根对象为 参数名 -> 参数值 的 Map，参数同时注册为变量
+     *
+     * @param expression     key 表达式
+     * @param parameterNames 参数名称，可能为 null
+     * @param parameterCount 参数数量
+     * @return 取值函数
+     */
+    private static Function<Object[], Object> compileSpel(String expression, String[] parameterNames, int parameterCount) {
+        Expression spel = PARSER.parseExpression(expression);
+        log.info("KeyExpressionCompiler.compileSpel expression:{} 使用 SpEL 求值", expression);
+        MapAccessor mapAccessor = new MapAccessor();
+        return args -> {
+            Map<String, Object> root = new HashMap<>(parameterCount * 4);
+            for (int i = 0; i < parameterCount; i++) {
+                if (parameterNames != null)
+                    root.put(parameterNames[i], args[i]);
+                root.put("p" + i, args[i]);
+                root.put("a" + i, args[i]);
+            }
+            StandardEvaluationContext context = new StandardEvaluationContext(root);
+            context.addPropertyAccessor(mapAccessor);
+            context.setVariables(root);
+            return spel.getValue(context);
+        };
+    }
+
+    /**
+     * 表达式结果转为关键字，集合与数组的每个元素都是一个关键字
+     *
+     * @param value 表达式结果
+     * @return 关键字集合
+     */
+    private static List<String> toKeywords(Object value) {
+        if (value instanceof Collection) {
+            List<String> keywords = new ArrayList<>();
+            for (Object element : (Collection<?>) value)
+                keywords.add(String.valueOf(element));
+            return keywords;
+        }
+        if (value != null && value.getClass().isArray()) {
+            List<String> keywords = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(value); i++)
+                keywords.add(String.valueOf(Array.get(value, i)));
+            return keywords;
+        }
+        return Collections.singletonList(String.valueOf(value));
+    }
+
+}
@@ -0,0 +1,59 @@
+package extend.aspect;
+
+import extend.annotation.DistributedLock;
+import extend.lock.AbstractDistributedLock;
+import lombok.Getter;
+
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * @author 田奇杭
+ * @Description 标注 @DistributedLock 的方法解析后的锁元数据，每个方法只解析一次并缓存，
+ * 切面的热路径上不再反射查找方法与注解
+ * @Date 2023/6/26 20:30
+ */
+@Getter
+final class LockMetadata {
+
+    /**
+     * 分布式锁注解
+     */
+    private final DistributedLock distributedLock;
+
+    /**
+     * 分布式锁对象
+     */
+    private final AbstractDistributedLock abstractDistributedLock;
+
+    /**
+     * 标注 DistributedLockKey 的参数下标
+     */
+    private final int[] keyIndexes;
+
+    /**
+     * 关键字提取器，入参为方法参数，返回关键字集合
+     */
+    private final Function<Object[], List<String>> keyExtractor;
+
+    /**
+     * 返回值是否为 Mono 或 Flux
+     */
+    private final boolean reactive;
+
+    /**
+     * 返回值是否为 Mono
+     */
+    private final boolean mono;
+
+    LockMetadata(DistributedLock distributedLock, AbstractDistributedLock abstractDistributedLock, int[] keyIndexes,
+                 Function<Object[], List<String>> keyExtractor, boolean reactive, boolean mono) {
+        this.distributedLock = distributedLock;
+        this.abstractDistributedLock = abstractDistributedLock;
+        this.keyIndexes = keyIndexes;
+        this.keyExtractor = keyExtractor;
+        this.reactive = reactive;
+        this.mono = mono;
+    }
+
+}
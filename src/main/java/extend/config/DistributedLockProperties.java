@@ -0,0 +1,149 @@
+package extend.config;
+
+import extend.enums.HashTagStrategyEnum;
+import extend.enums.LockEngineEnum;
+import extend.enums.LockNotificationEnum;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author 田奇杭
+ * @Description 分布式锁配置
+ * @Date 2023/6/4 20:31
+ */
+@Data
+@Component
+@ConfigurationProperties(prefix = "extend.lock")
+public class DistributedLockProperties {
+
+    /**
+     * 锁引擎：redis 锁保存在 Redis 中；local 锁保存在本 JVM 内存中，只适用于单实例部署与测试，
+     * 只有普通锁（及其看门狗续期）使用锁引擎；读写锁、信号量、公平锁直接访问 Redis，只在 redis 下装配
+     */
+    private LockEngineEnum engine = LockEngineEnum.REDIS;
+
+    /**
+     * 锁命令是否使用独立的连接：不经过连接池，所有锁命令共用一条多路复用的连接，超时时间单独配置，
+     * 业务命令排队或连接池耗尽时不影响加锁、释放。关闭时锁命令使用应用共用的连接工厂，但同样不开启事务支持
+     */
+    private boolean dedicatedConnection = true;
+
+    /**
+     * 独立连接的命令超时时间（毫秒），同步与异步命令都生效
+     */
+    private long commandTimeout = 2000L;
+
+    /**
+     * 独立连接的建立连接超时时间（毫秒）
+     */
+    private long connectTimeout = 1000L;
+
+    /**
+     * 看门狗模式下的锁持续时间（毫秒），每 1/3 持续时间续期一次
+     */
+    private long watchdogLeaseTime = 10000L;
+
+    /**
+     * 是否开启本地交接：本地还有等待线程时，不释放 Redis 中的锁，直接交给下一个本地线程
+     */
+    private boolean localHandoff = false;
+
+    /**
+     * 连续本地交接的最大次数，超过后真正释放分布式锁，让其他节点有机会抢占
+     */
+    private int maxLocalHandoffs = 8;
+
+    /**
+     * 公平锁等待者在 Redis 等待队列中的超时时间（毫秒），等待线程每 1/2 超时时间刷新一次，
+     * 节点宕机后其等待条目最多保留这么久，之后由其他等待者的脚本清理
+     */
+    private long fairWaiterTimeout = 5000L;
+
+    /**
+     * 读写锁写等待标记的超时时间（毫秒）。写锁抢占失败时写入标记，标记存在期间新的读锁抢占被拒绝，避免连续的读锁饿死写锁；
+     * 等待中的写线程每 1/2 超时时间刷新一次，节点宕机后标记最多保留这么久
+     */
+    private long writerIntentTimeout = 5000L;
+
+    /**
+     * 是否同时订阅锁 key 的键空间过期通知，持有者宕机时锁一过期就唤醒等待线程。
+     * 需要 Redis 开启 notify-keyspace-events Kx；键空间通知只在 key 所在节点发布，仅适用于单机或主从部署
+     */
+    private boolean keyspaceNotifications = false;
+
+    /**
+     * 普通锁的释放通知方式：publish 释放脚本发布到锁释放频道；
+     * tracking 使用 Redis 6 客户端追踪（CLIENT TRACKING BCAST），锁 key 被删除、过期或修改时推送失效消息，
+     * 释放脚本不再 PUBLISH，同时覆盖持有者宕机后的锁过期。仅适用于单机或主从部署，需要 Redis 6 及以上；
+     * 所有节点需要同时切换，publish 节点收不到 tracking 节点释放锁的消息，只能等到锁过期
+     */
+    private LockNotificationEnum notification = LockNotificationEnum.PUBLISH;
+
+    /**
+     * 是否开启监控指标（等待时间、持有时间、抢占结果、脚本耗时、本地排队深度）
+     */
+    private boolean metricsEnabled = true;
+
+    /**
+     * 监控指标中关键字模式标签的数量上限，超过后归入 other
+     */
+    private int metricsMaxKeyPatterns = 100;
+
+    /**
+     * 锁名称的 hash tag 策略，决定 Redis Cluster 下哪些锁落在同一个 slot，
+     * 同一 slot 的多把锁一次脚本调用即可获取，不同 slot 的分组按节点并发下发
+     */
+    private HashTagStrategyEnum hashTagStrategy = HashTagStrategyEnum.KEYWORD;
+
+    /**
+     * 仲裁锁使用的相互独立的 Redis 主节点，格式 redis://[password@]host:port[/database]，建议配置奇数个
+     */
+    private List<String> quorumNodes = new ArrayList<>();
+
+    /**
+     * 仲裁锁的时钟漂移系数，锁的有效时间 = 持续时间 - 抢占耗时 - 持续时间 * 系数 - 2 毫秒
+     */
+    private double quorumClockDriftFactor = 0.01;
+
+    /**
+     * 仲裁锁单个节点的命令超时时间（毫秒），应远小于锁持续时间，超时未响应的节点按失败计票
+     */
+    private long quorumNodeTimeout = 100L;
+
+    /**
+     * 仲裁锁抢占失败后的最长重试间隔（毫秒），实际间隔在一半到该值之间随机，避免各服务器同时重试
+     */
+    private long quorumRetryInterval = 50L;
+
+    /**
+     * 是否开启已占用锁的本地缓存：抢占失败时记录锁的剩余时间，不等待的抢占命中时直接失败，不访问 Redis
+     */
+    private boolean negativeCacheEnabled = false;
+
+    /**
+     * 使用本地缓存的最大等待时间（毫秒），等待时间不超过该值的抢占才查询缓存
+     */
+    private long negativeCacheMaxWaitTime = 0L;
+
+    /**
+     * 缓存条目的最长有效期（毫秒），错过释放消息时最多误判这么久
+     */
+    private long negativeCacheMaxTtl = 1000L;
+
+    /**
+     * 缓存的锁数量上限，达到上限后不再记录新的锁
+     */
+    private int negativeCacheMaxSize = 10000;
+
+    /**
+     * 普通锁本地等待队列的分段数量，大于 0 时开启分段模式：锁名称按 hash 落到固定数量的分段中，
+     * 本地内存不随锁名称数量增长，适用于关键字数量极多的场景；Redis 中仍按锁名称精确互斥，
+     * 释放消息只唤醒分段中等待同一把锁的线程。分段模式下没有本地持有者，不支持本地交接，也不使用已占用锁的本地缓存
+     */
+    private int localQueueStripes = 0;
+
+}
@@ -0,0 +1,136 @@
+package extend.config;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.SocketOptions;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.cluster.ClusterClientOptions;
+import io.lettuce.core.cluster.ClusterTopologyRefreshOptions;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisSentinelConfiguration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceClientConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.serializer.StringRedisSerializer;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashSet;
+
+/**
+ * @author 田奇杭
+ * @Description 锁命令专用的 RedisTemplate：不开启事务支持，锁命令不会被绑定到调用方的事务中排队执行；
+ * 开启独立连接时使用单独的连接工厂，不经过连接池，所有锁命令共用一条多路复用的连接，超时时间单独配置，
+ * 与业务的 Redis 访问互不影响。连接工厂不注册为 bean，避免替换掉 Spring Boot 自动配置的连接工厂
+ * @Date 2023/7/9 20:16
+ */
+@Configuration
+public class LockRedisConfig {
+
+    /**
+     * 锁专用连接工厂，未开启独立连接时为 null
+     */
+    private LettuceConnectionFactory lockConnectionFactory;
+
+    /**
+     * 锁命令专用的 RedisTemplate，Lua 脚本注册中心通过它执行所有锁脚本
+     *
+     * @param redisConnectionFactory    应用共用的连接工厂，未开启独立连接时使用
+     * @param redisProperties           Redis 配置
+     * @param distributedLockProperties 分布式锁配置
+     * @return RedisTemplate
+     */
+    @Bean
+    public RedisTemplate<String, String> lockRedisTemplate(RedisConnectionFactory redisConnectionFactory, RedisProperties redisProperties,
+                                                           DistributedLockProperties distributedLockProperties) {
+        RedisConnectionFactory factory = redisConnectionFactory;
+        if (distributedLockProperties.isDedicatedConnection()) {
+            lockConnectionFactory = createConnectionFactory(redisProperties, distributedLockProperties);
+            lockConnectionFactory.afterPropertiesSet();
+            factory = lockConnectionFactory;
+        }
+        RedisTemplate<String, String> lockRedisTemplate = new RedisTemplate<>();
+        lockRedisTemplate.setConnectionFactory(factory);
+        StringRedisSerializer stringRedisSerializer = new StringRedisSerializer();
+        lockRedisTemplate.setKeySerializer(stringRedisSerializer);
+        lockRedisTemplate.setValueSerializer(stringRedisSerializer);
+        lockRedisTemplate.setHashKeySerializer(stringRedisSerializer);
+        lockRedisTemplate.setHashValueSerializer(stringRedisSerializer);
+        lockRedisTemplate.afterPropertiesSet();
+        return lockRedisTemplate;
+    }
+
+    /**
+     * 关闭锁专用连接
+     */
+    @PreDestroy
+    public void destroy() {
+        if (lockConnectionFactory != null)
+            lockConnectionFactory.destroy();
+    }
+
+    /**
+     * 按 spring.redis 的部署方式（单机、哨兵、集群）创建锁专用连接工厂：共享原生连接，不使用连接池，
+     * 同步与异步命令都按锁的命令超时时间失败，断线期间的命令立即失败而不是缓冲到重连
+     *
+     * @param redisProperties           Redis 配置
+     * @param distributedLockProperties 分布式锁配置
+     * @return 连接工厂
+     */
+    private LettuceConnectionFactory createConnectionFactory(RedisProperties redisProperties, DistributedLockProperties distributedLockProperties) {
+        Duration commandTimeout = Duration.ofMillis(distributedLockProperties.getCommandTimeout());
+        SocketOptions socketOptions = SocketOptions.builder()
+                .connectTimeout(Duration.ofMillis(distributedLockProperties.getConnectTimeout()))
+                .build();
+        RedisPassword password = StringUtils.hasText(redisProperties.getPassword())
+                ? RedisPassword.of(redisProperties.getPassword()) : RedisPassword.none();
+
+        LettuceClientConfiguration.LettuceClientConfigurationBuilder builder = LettuceClientConfiguration.builder()
+                .commandTimeout(commandTimeout);
+        if (StringUtils.hasText(redisProperties.getClientName()))
+            builder.clientName(redisProperties.getClientName() + ":lock");
+        if (redisProperties.isSsl())
+            builder.useSsl();
+
+        RedisProperties.Cluster cluster = redisProperties.getCluster();
+        if (cluster != null) {
+            builder.clientOptions(ClusterClientOptions.builder()
+                    .socketOptions(socketOptions)
+                    .timeoutOptions(TimeoutOptions.enabled(commandTimeout))
+                    .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                    .topologyRefreshOptions(ClusterTopologyRefreshOptions.builder().enableAllAdaptiveRefreshTriggers().build())
+                    .build());
+            RedisClusterConfiguration configuration = new RedisClusterConfiguration(cluster.getNodes());
+            if (cluster.getMaxRedirects() != null)
+                configuration.setMaxRedirects(cluster.getMaxRedirects());
+            configuration.setPassword(password);
+            return new LettuceConnectionFactory(configuration, builder.build());
+        }
+
+        builder.clientOptions(ClientOptions.builder()
+                .socketOptions(socketOptions)
+                .timeoutOptions(TimeoutOptions.enabled(commandTimeout))
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .build());
+        RedisProperties.Sentinel sentinel = redisProperties.getSentinel();
+        if (sentinel != null) {
+            RedisSentinelConfiguration configuration = new RedisSentinelConfiguration(sentinel.getMaster(), new HashSet<>(sentinel.getNodes()));
+            configuration.setDatabase(redisProperties.getDatabase());
+            configuration.setPassword(password);
+            if (StringUtils.hasText(sentinel.getPassword()))
+                configuration.setSentinelPassword(sentinel.getPassword());
+            return new LettuceConnectionFactory(configuration, builder.build());
+        }
+        RedisStandaloneConfiguration configuration = new RedisStandaloneConfiguration(redisProperties.getHost(), redisProperties.getPort());
+        configuration.setDatabase(redisProperties.getDatabase());
+        configuration.setPassword(password);
+        return new LettuceConnectionFactory(configuration, builder.build());
+    }
+
+}
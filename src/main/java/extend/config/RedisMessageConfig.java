@@ -1,13 +1,11 @@
 package extend.config;
 
-import extend.listener.PublishSubscribe;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.connection.RedisConnectionFactory;
-import org.springframework.data.redis.listener.PatternTopic;
 import org.springframework.data.redis.listener.RedisMessageListenerContainer;
-import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 
 /**
  * @author 田奇杭
@@ -19,32 +17,16 @@ import org.springframework.data.redis.listener.adapter.MessageListenerAdapter;
 public class RedisMessageConfig {
 
     /**
-     * 监听释放锁主题
-     */
-    private static final String UN_LOCK_TOPIC = "UN_LOCK_TOPIC";
-
-    /**
-     * 消息监听容器
+     * 消息监听容器，锁释放频道由 PublishSubscribe 按需订阅；进程内锁引擎不订阅 Redis 频道，不创建容器
      *
      * @param factory
      * @return
      */
     @Bean
+    @ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "redis", matchIfMissing = true)
     RedisMessageListenerContainer container(RedisConnectionFactory factory) {
         RedisMessageListenerContainer container = new RedisMessageListenerContainer();
         container.setConnectionFactory(factory);
-        //订阅一个通道 该处的通道名是发布消息时的名称
-        container.addMessageListener(catAdapter(), new PatternTopic(UN_LOCK_TOPIC));
         return container;
     }
-
-    /**
-     * 消息监听适配器，绑定消息处理器
-     *
-     * @return
-     */
-    @Bean
-    MessageListenerAdapter catAdapter() {
-        return new MessageListenerAdapter(new PublishSubscribe());
-    }
 }
@@ -0,0 +1,378 @@
+package extend.engine;
+
+import extend.config.DistributedLockProperties;
+import extend.enums.LockEngineEnum;
+import extend.enums.LockNotificationEnum;
+import extend.lock.LockMetrics;
+import io.lettuce.core.RedisChannelHandler;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisCommandExecutionException;
+import io.lettuce.core.RedisConnectionStateListener;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.codec.RedisCodec;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.output.StatusOutput;
+import io.lettuce.core.protocol.CommandArgs;
+import io.lettuce.core.protocol.CommandType;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 客户端追踪订阅：通过 Redis 6 的 CLIENT TRACKING BCAST 追踪普通锁的 key 前缀，
+ * 锁 key 被删除、过期或修改时 Redis 推送失效消息，按锁名称分发给释放监听，释放脚本无需 PUBLISH。
+ * Lettuce 5.3 只支持 RESP2，失效消息通过 REDIRECT 转发到独立的订阅连接（频道 __redis__:invalidate），
+ * 追踪开关由另一条普通连接持有。任意一条连接重连后重新开启追踪，并唤醒所有等待线程：断线期间的失效消息已经丢失。
+ * RESP2 下失效消息的内容是 key 数组，BCAST 会把同一时刻失效的多个 key 合并为一条消息，
+ * 而 Lettuce 的订阅输出只保留数组的最后一个元素，因此订阅连接使用 InvalidationCodec 收集整条消息的所有 key。
+ * BCAST 下前缀内任意 key 的每次写入（加锁、重入、续期、释放、过期）都会向所有追踪节点推送失效消息，
+ * 消息量约为 普通锁写命令数 × 节点数，而 publish 方式只有释放才发布、只发给订阅了该锁的节点；
+ * 收到的消息数与 key 数见 extend.lock.tracking.messages / extend.lock.tracking.keys 指标
+ * @Date 2023/7/8 20:30
+ */
+@Slf4j
+@Component
+public class ClientTrackingSubscriber {
+
+    /**
+     * 追踪的 key 前缀，只有普通锁的脚本由锁引擎执行、可以不发布释放消息
+     */
+    private static final String TRACKING_PREFIX = "ordinary:";
+
+    /**
+     * RESP2 下失效消息转发的频道，消息内容为失效的 key 数组，FLUSHDB/FLUSHALL 时为 null
+     */
+    private static final String INVALIDATE_CHANNEL = "__redis__:invalidate";
+
+    /**
+     * 开启追踪失败后的重试间隔（毫秒）
+     */
+    private static final long RETRY_INTERVAL = 1000L;
+
+    /**
+     * 释放监听
+     * key: 锁名称
+     * value: 等待该锁释放的监听，集合为空时移除
+     */
+    private final Map<String, Set<LockReleaseListener>> listenerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 订阅连接的客户端名称，重连后通过 CLIENT LIST 按名称查找新的连接 id
+     */
+    private String pubSubClientName;
+
+    /**
+     * Lettuce 线程资源
+     */
+    private ClientResources clientResources;
+
+    /**
+     * Lettuce 客户端
+     */
+    private RedisClient client;
+
+    /**
+     * 订阅连接，接收失效消息
+     */
+    private StatefulRedisPubSubConnection<String, List<String>> pubSubConnection;
+
+    /**
+     * 持有追踪开关的连接，连接断开时追踪随之关闭
+     */
+    private StatefulRedisConnection<String, String> trackingConnection;
+
+    /**
+     * 分发失效消息、重连后重新开启追踪的线程，未开启时为 null
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * Redis 配置
+     */
+    @Resource
+    private RedisProperties redisProperties;
+
+    /**
+     * 监控指标
+     */
+    @Resource
+    private LockMetrics lockMetrics;
+
+    /**
+     * Redis 引擎且通知方式为 tracking 时建立连接并开启追踪，Redis 不支持 CLIENT TRACKING 时启动失败
+     */
+    @PostConstruct
+    public void start() {
+        if (!isEnabled())
+            return;
+        if (redisProperties.getCluster() != null || redisProperties.getSentinel() != null)
+            throw new IllegalStateException("extend.lock.notification=tracking 仅适用于单机或主从部署");
+
+        String clientName = StringUtils.hasText(redisProperties.getClientName()) ? redisProperties.getClientName() : "extend-lock";
+        pubSubClientName = clientName + ":tracking:" + UUID.randomUUID().toString().replace("-", "");
+        RedisURI.Builder builder = RedisURI.builder()
+                .withHost(redisProperties.getHost())
+                .withPort(redisProperties.getPort())
+                .withDatabase(redisProperties.getDatabase())
+                .withClientName(pubSubClientName);
+        if (StringUtils.hasText(redisProperties.getPassword()))
+            builder.withPassword(redisProperties.getPassword());
+        if (redisProperties.getTimeout() != null)
+            builder.withTimeout(redisProperties.getTimeout());
+
+        clientResources = DefaultClientResources.create();
+        client = RedisClient.create(clientResources, builder.build());
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-client-tracking");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        pubSubConnection = client.connectPubSub(new InvalidationCodec());
+        pubSubConnection.addListener(new RedisPubSubAdapter<String, List<String>>() {
+            @Override
+            public void message(String channel, List<String> keys) {
+                // 不在 Lettuce 的 IO 线程中执行释放监听
+                lockMetrics.trackingInvalidated(keys == null ? 0 : keys.size());
+                scheduler.execute(() -> onInvalidate(keys));
+            }
+        });
+        pubSubConnection.sync().subscribe(INVALIDATE_CHANNEL);
+        trackingConnection = client.connect();
+        try {
+            enableTracking();
+        } catch (RedisCommandExecutionException e) {
+            stop();
+            throw new IllegalStateException("extend.lock.notification=tracking 需要 Redis 6 及以上", e);
+        }
+
+        // 重连后连接 id 改变、追踪已关闭，重新开启
+        client.addListener(new RedisConnectionStateListener() {
+            @Override
+            public void onRedisConnected(RedisChannelHandler<?, ?> connection, SocketAddress socketAddress) {
+                scheduler.execute(ClientTrackingSubscriber.this::recover);
+            }
+
+            @Override
+            public void onRedisDisconnected(RedisChannelHandler<?, ?> connection) {
+            }
+
+            @Override
+            public void onRedisExceptionCaught(RedisChannelHandler<?, ?> connection, Throwable cause) {
+            }
+        });
+    }
+
+    /**
+     * 关闭连接与线程
+     */
+    @PreDestroy
+    public void stop() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdownNow();
+        pubSubConnection.close();
+        trackingConnection.close();
+        client.shutdown();
+        clientResources.shutdown();
+    }
+
+    /**
+     * 是否使用客户端追踪传递释放消息
+     *
+     * @return true:Redis 引擎且通知方式为 tracking
+     */
+    public boolean isEnabled() {
+        return distributedLockProperties.getEngine() == LockEngineEnum.REDIS
+                && distributedLockProperties.getNotification() == LockNotificationEnum.TRACKING;
+    }
+
+    /**
+     * 锁的释放消息是否通过客户端追踪传递：只追踪普通锁的 key，其他锁类型的脚本仍向锁频道发布释放消息
+     *
+     * @param lockName 锁名称
+     * @return true:通过客户端追踪传递 false:通过锁频道传递
+     */
+    public boolean isTracked(String lockName) {
+        return isEnabled() && lockName.startsWith(TRACKING_PREFIX);
+    }
+
+    /**
+     * 登记锁的释放监听，只修改本地监听表，不访问 Redis
+     *
+     * @param lockName 锁名称
+     * @param listener 释放监听
+     */
+    public void subscribe(String lockName, LockReleaseListener listener) {
+        listenerMap.compute(lockName, (k, listeners) -> {
+            if (listeners == null)
+                listeners = ConcurrentHashMap.newKeySet();
+            listeners.add(listener);
+            return listeners;
+        });
+    }
+
+    /**
+     * 移除锁的释放监听
+     *
+     * @param lockName 锁名称
+     * @param listener 释放监听
+     */
+    public void unsubscribe(String lockName, LockReleaseListener listener) {
+        listenerMap.computeIfPresent(lockName, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    /**
+     * 收到失效消息。加锁、重入、续期同样会修改 key，等待线程被唤醒后重新抢占，失败时按锁剩余时间继续等待
+     *
+     * @param lockNames 失效的 key，FLUSHDB/FLUSHALL 时为空
+     */
+    private void onInvalidate(List<String> lockNames) {
+        if (lockNames != null && !lockNames.isEmpty()) {
+            for (String lockName : lockNames)
+                notify(lockName);
+            return;
+        }
+        for (String name : listenerMap.keySet())
+            notify(name);
+    }
+
+    /**
+     * 通知锁的所有释放监听
+     *
+     * @param lockName 锁名称
+     */
+    private void notify(String lockName) {
+        Set<LockReleaseListener> listeners = listenerMap.get(lockName);
+        if (listeners == null)
+            return;
+        for (LockReleaseListener listener : listeners) {
+            try {
+                listener.onRelease(lockName, lockName);
+            } catch (Exception e) {
+                log.error("ClientTrackingSubscriber.notify fail key:{}, e:", lockName, e);
+            }
+        }
+    }
+
+    /**
+     * 连接重连后重新开启追踪，失败时稍后重试；断线期间的失效消息已经丢失，唤醒所有等待线程重新抢占
+     */
+    private void recover() {
+        try {
+            enableTracking();
+        } catch (Exception e) {
+            log.error("ClientTrackingSubscriber.recover fail e:", e);
+            scheduler.schedule(this::recover, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+            return;
+        }
+        onInvalidate(Collections.emptyList());
+    }
+
+    /**
+     * 在追踪连接上开启 BCAST 追踪，失效消息转发到订阅连接
+     */
+    private void enableTracking() {
+        RedisCommands<String, String> commands = trackingConnection.sync();
+        long redirect = findPubSubClientId(commands);
+        // 重新开启前先关闭，BCAST 状态下不能直接修改转发目标
+        commands.dispatch(CommandType.CLIENT, new StatusOutput<>(StringCodec.UTF8),
+                new CommandArgs<>(StringCodec.UTF8).add("TRACKING").add("OFF"));
+        commands.dispatch(CommandType.CLIENT, new StatusOutput<>(StringCodec.UTF8),
+                new CommandArgs<>(StringCodec.UTF8).add("TRACKING").add("ON").add("REDIRECT").add(redirect)
+                        .add("BCAST").add("PREFIX").add(TRACKING_PREFIX));
+        log.info("ClientTrackingSubscriber.enableTracking prefix:{}, redirect:{}", TRACKING_PREFIX, redirect);
+    }
+
+    /**
+     * 按客户端名称查找订阅连接的 id，订阅状态下的连接不能执行 CLIENT ID
+     *
+     * @param commands 追踪连接
+     * @return 订阅连接 id
+     */
+    private long findPubSubClientId(RedisCommands<String, String> commands) {
+        String clients = commands.dispatch(CommandType.CLIENT, new StatusOutput<>(StringCodec.UTF8),
+                new CommandArgs<>(StringCodec.UTF8).add("LIST").add("TYPE").add("pubsub"));
+        String name = "name=" + pubSubClientName;
+        for (String line : clients.split("\n")) {
+            if (!(" " + line.trim() + " ").contains(" " + name + " "))
+                continue;
+            for (String field : line.trim().split(" ")) {
+                if (field.startsWith("id="))
+                    return Long.parseLong(field.substring(3));
+            }
+        }
+        throw new IllegalStateException("订阅连接尚未就绪 name:" + pubSubClientName);
+    }
+
+    /**
+     * 订阅连接的编解码：频道按字符串解码，消息内容收集为 key 列表。
+     * Lettuce 的订阅输出先用 decodeKey 解码频道，再对消息内容的每个元素调用 decodeValue 并只保留最后一次的返回值，
+     * 因此解码频道时新建列表，之后每个元素追加到同一个列表并返回它，整条消息的所有 key 都保留在最终的返回值中；
+     * 普通字符串消息得到单元素列表，null 数组（FLUSHDB/FLUSHALL）得到空列表或 null。
+     * 同一连接的解码只在一个 IO 线程中按顺序执行，每条消息使用新的列表，交给其他线程后不再修改
+     */
+    static final class InvalidationCodec implements RedisCodec<String, List<String>> {
+
+        /**
+         * 正在解码的消息的 key
+         */
+        private List<String> keys = new ArrayList<>();
+
+        @Override
+        public String decodeKey(ByteBuffer bytes) {
+            keys = new ArrayList<>();
+            return StringCodec.UTF8.decodeKey(bytes);
+        }
+
+        @Override
+        public List<String> decodeValue(ByteBuffer bytes) {
+            keys.add(StringCodec.UTF8.decodeValue(bytes));
+            return keys;
+        }
+
+        @Override
+        public ByteBuffer encodeKey(String key) {
+            return StringCodec.UTF8.encodeKey(key);
+        }
+
+        @Override
+        public ByteBuffer encodeValue(List<String> value) {
+            throw new UnsupportedOperationException("订阅连接不发送消息");
+        }
+    }
+
+}
@@ -0,0 +1,347 @@
+package extend.engine;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author 田奇杭
+ * @Description 进程内锁引擎：锁保存在本 JVM 的 ConcurrentHashMap 中，单把锁的操作在 compute 中原子完成，
+ * 按组抢占在引擎的写锁下先检查整组再写入，释放时在释放线程中直接通知订阅者。与 RedisLockEngine 语义一致（可重入、持续时间、剩余时间、按组全部成功或全部失败），
+ * 锁只在本进程内互斥，只适用于单实例部署与测试；过期的锁在下次访问时清除，清理线程定期移除无人访问的过期锁
+ * @Date 2023/7/2 20:40
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "local")
+public class LocalLockEngine implements LockEngine {
+
+    /**
+     * 清理过期锁的间隔（毫秒）
+     */
+    private static final long SWEEP_INTERVAL = 1000L;
+
+    /**
+     * key: 锁名称
+     * value: 锁
+     */
+    private final Map<String, LocalLock> lockMap = new ConcurrentHashMap<>();
+
+    /**
+     * key: 锁名称
+     * value: 订阅该锁释放通知的监听
+     */
+    private final Map<String, Set<LockReleaseListener>> listenerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 单把锁的操作持有读锁，彼此只靠 compute 互斥；按组抢占持有写锁，检查与写入整组对其他操作原子可见
+     */
+    private final ReadWriteLock groupLock = new ReentrantReadWriteLock();
+
+    /**
+     * 清理线程
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 启动清理线程
+     */
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-local-engine");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sweep, SWEEP_INTERVAL, SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止清理线程
+     */
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public Long acquire(String lockName, long leaseTime, String owner) {
+        long now = System.currentTimeMillis();
+        Long[] ttl = new Long[1];
+        groupLock.readLock().lock();
+        try {
+            lockMap.compute(lockName, (k, lock) -> {
+                if (isHeldByOther(lock, now, owner)) {
+                    ttl[0] = lock.expireAt - now;
+                    return lock;
+                }
+                return hold(lock, now, leaseTime, owner);
+            });
+        } finally {
+            groupLock.readLock().unlock();
+        }
+        return ttl[0];
+    }
+
+    @Override
+    public CompletableFuture<Long> acquireAsync(String lockName, long leaseTime, String owner) {
+        return CompletableFuture.completedFuture(acquire(lockName, leaseTime, owner));
+    }
+
+    /**
+     * 与 MULTI_LOCK_SCRIPT 一致：先检查组内所有锁，全部可以抢占时才写入，冲突时不做任何修改；
+     * 整组在写锁下完成，其他线程看不到只抢占了一部分的组
+     */
+    @Override
+    public List<CompletableFuture<Long>> acquireAll(List<List<String>> groups, long leaseTime, String owner) {
+        long now = System.currentTimeMillis();
+        List<CompletableFuture<Long>> futures = new ArrayList<>(groups.size());
+        groupLock.writeLock().lock();
+        try {
+            for (List<String> group : groups) {
+                Long conflict = null;
+                for (int i = 0; i < group.size(); i++) {
+                    if (isHeldByOther(lockMap.get(group.get(i)), now, owner)) {
+                        conflict = (long) (i + 1);
+                        break;
+                    }
+                }
+                if (conflict == null) {
+                    for (String lockName : group)
+                        lockMap.compute(lockName, (k, lock) -> hold(lock, now, leaseTime, owner));
+                }
+                futures.add(CompletableFuture.completedFuture(conflict));
+            }
+        } finally {
+            groupLock.writeLock().unlock();
+        }
+        return futures;
+    }
+
+    @Override
+    public Long release(String lockName, long leaseTime, String owner) {
+        long now = System.currentTimeMillis();
+        Long[] result = new Long[1];
+        groupLock.readLock().lock();
+        try {
+            lockMap.computeIfPresent(lockName, (k, lock) -> {
+                if (lock.expireAt <= now)
+                    return null;
+                Integer count = lock.holdCountMap.get(owner);
+                if (count == null)
+                    return lock;
+                if (count > 1) {
+                    lock.holdCountMap.put(owner, count - 1);
+                    lock.expireAt = now + leaseTime;
+                    result[0] = 0L;
+                    return lock;
+                }
+                result[0] = 1L;
+                return null;
+            });
+        } finally {
+            groupLock.readLock().unlock();
+        }
+        if (result[0] != null && result[0] == 1L)
+            notifyRelease(lockName);
+        return result[0];
+    }
+
+    @Override
+    public CompletableFuture<Long> releaseAsync(String lockName, long leaseTime, String owner) {
+        return CompletableFuture.completedFuture(release(lockName, leaseTime, owner));
+    }
+
+    @Override
+    public List<CompletableFuture<Long>> releaseAll(List<List<String>> groups, long leaseTime, String owner) {
+        List<CompletableFuture<Long>> futures = new ArrayList<>(groups.size());
+        for (List<String> group : groups) {
+            long released = 0;
+            for (String lockName : group) {
+                if (release(lockName, leaseTime, owner) != null)
+                    released++;
+            }
+            futures.add(CompletableFuture.completedFuture(released));
+        }
+        return futures;
+    }
+
+    @Override
+    public Long handoff(String lockName, long leaseTime, String owner, String nextOwner, long nextLeaseTime) {
+        long now = System.currentTimeMillis();
+        Long[] result = new Long[1];
+        groupLock.readLock().lock();
+        try {
+            lockMap.computeIfPresent(lockName, (k, lock) -> {
+                if (lock.expireAt <= now)
+                    return null;
+                Integer count = lock.holdCountMap.get(owner);
+                if (count == null)
+                    return lock;
+                if (count > 1) {
+                    lock.holdCountMap.put(owner, count - 1);
+                    lock.expireAt = now + leaseTime;
+                    result[0] = 0L;
+                    return lock;
+                }
+                lock.holdCountMap.remove(owner);
+                lock.holdCountMap.put(nextOwner, 1);
+                lock.expireAt = now + nextLeaseTime;
+                result[0] = 1L;
+                return lock;
+            });
+        } finally {
+            groupLock.readLock().unlock();
+        }
+        return result[0];
+    }
+
+    @Override
+    public List<Boolean> renew(List<String> lockNames, List<String> owners, long leaseTime) {
+        long now = System.currentTimeMillis();
+        List<Boolean> renewed = new ArrayList<>(lockNames.size());
+        groupLock.readLock().lock();
+        try {
+            for (int i = 0; i < lockNames.size(); i++) {
+                String owner = owners.get(i);
+                boolean[] flag = new boolean[1];
+                lockMap.computeIfPresent(lockNames.get(i), (k, lock) -> {
+                    if (lock.expireAt <= now)
+                        return null;
+                    if (lock.holdCountMap.containsKey(owner)) {
+                        lock.expireAt = now + leaseTime;
+                        flag[0] = true;
+                    }
+                    return lock;
+                });
+                renewed.add(flag[0]);
+            }
+        } finally {
+            groupLock.readLock().unlock();
+        }
+        return renewed;
+    }
+
+    /**
+     * 进程内没有其他节点发布的公共释放消息，无需常驻监听
+     */
+    @Override
+    public void listen(LockReleaseListener listener) {
+    }
+
+    @Override
+    public void subscribe(String lockName, LockReleaseListener listener) {
+        listenerMap.computeIfAbsent(lockName, k -> new CopyOnWriteArraySet<>()).add(listener);
+    }
+
+    @Override
+    public void unsubscribe(String lockName, LockReleaseListener listener) {
+        listenerMap.computeIfPresent(lockName, (k, listeners) -> {
+            listeners.remove(listener);
+            return listeners.isEmpty() ? null : listeners;
+        });
+    }
+
+    /**
+     * 通知订阅者锁已释放，消息内容与 Redis 引擎一致为锁名称
+     *
+     * @param lockName 锁名称
+     */
+    private void notifyRelease(String lockName) {
+        Set<LockReleaseListener> listeners = listenerMap.get(lockName);
+        if (listeners == null)
+            return;
+        for (LockReleaseListener listener : listeners) {
+            try {
+                listener.onRelease(lockName, lockName);
+            } catch (Exception e) {
+                log.error("LocalLockEngine.notifyRelease fail key:{}, e:", lockName, e);
+            }
+        }
+    }
+
+    /**
+     * 移除过期的锁
+     */
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        groupLock.readLock().lock();
+        try {
+            for (String lockName : lockMap.keySet())
+                lockMap.computeIfPresent(lockName, (k, lock) -> lock.expireAt <= now ? null : lock);
+        } finally {
+            groupLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 锁是否被其他持有者占用（未过期且 owner 不在持有者中）
+     *
+     * @param lock  锁，不存在时为 null
+     * @param now   当前时间（毫秒）
+     * @param owner 持有者标识
+     * @return true:被其他持有者占用
+     */
+    private static boolean isHeldByOther(LocalLock lock, long now, String owner) {
+        return lock != null && lock.expireAt > now && !lock.holdCountMap.containsKey(owner);
+    }
+
+    /**
+     * 由 owner 持有锁（首次持有或重入），重置持续时间；锁不存在或已过期时新建
+     *
+     * @param lock      锁，不存在时为 null
+     * @param now       当前时间（毫秒）
+     * @param leaseTime 锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return 持有后的锁
+     */
+    private static LocalLock hold(LocalLock lock, long now, long leaseTime, String owner) {
+        if (lock == null || lock.expireAt <= now)
+            lock = new LocalLock();
+        lock.holdCountMap.merge(owner, 1, Integer::sum);
+        lock.expireAt = now + leaseTime;
+        return lock;
+    }
+
+    /**
+     * 当前保存的锁数量
+     *
+     * @return 锁数量
+     */
+    public int size() {
+        return lockMap.size();
+    }
+
+    /**
+     * 进程内的锁，只在 compute 中或持有引擎写锁时读写
+     */
+    private static final class LocalLock {
+
+        /**
+         * 持有者 -> 重入次数
+         */
+        final Map<String, Integer> holdCountMap = new HashMap<>(2);
+
+        /**
+         * 过期时间（毫秒）
+         */
+        long expireAt;
+    }
+
+}
@@ -0,0 +1,120 @@
+package extend.engine;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @author 田奇杭
+ * @Description 锁存储引擎 SPI：可重入的独占锁（持有者 -> 重入次数）的抢占、释放、续期与释放通知。
+ * 锁类型只负责本地排队、等待与看门狗，锁保存在哪里、释放消息如何传递由引擎决定，
+ * 通过 extend.lock.engine 选择 RedisLockEngine 或 LocalLockEngine，两者语义一致
+ * @Date 2023/7/2 20:12
+ */
+public interface LockEngine {
+
+    /**
+     * 抢占锁，未被持有或已被 owner 持有（重入）时成功并重置持续时间
+     *
+     * @param lockName  锁名称
+     * @param leaseTime 锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return null:成功 !null:锁被其他持有者占用时的剩余时间（毫秒）
+     */
+    Long acquire(String lockName, long leaseTime, String owner);
+
+    /**
+     * 异步抢占锁
+     *
+     * @param lockName  锁名称
+     * @param leaseTime 锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return 同 acquire
+     */
+    CompletableFuture<Long> acquireAsync(String lockName, long leaseTime, String owner);
+
+    /**
+     * 按组抢占多把锁，每组全部成功或全部失败，所有分组一次性下发
+     *
+     * @param groups    锁名称分组，同一组的锁能够原子地获取（Redis 下在同一个 slot）
+     * @param leaseTime 锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return 与 groups 一一对应，null:全部成功 !null:第一个被其他持有者占用的锁在组内的下标（从 1 开始），此时该组未做任何修改
+     */
+    List<CompletableFuture<Long>> acquireAll(List<List<String>> groups, long leaseTime, String owner);
+
+    /**
+     * 释放锁，重入次数减一，归零时删除锁并通知订阅者
+     *
+     * @param lockName  锁名称
+     * @param leaseTime 重入次数未归零时重置的锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return null:未持有锁 0:重入次数减一 1:已释放
+     */
+    Long release(String lockName, long leaseTime, String owner);
+
+    /**
+     * 异步释放锁
+     *
+     * @param lockName  锁名称
+     * @param leaseTime 重入次数未归零时重置的锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return 同 release
+     */
+    CompletableFuture<Long> releaseAsync(String lockName, long leaseTime, String owner);
+
+    /**
+     * 按组释放多把锁，所有分组一次性下发
+     *
+     * @param groups    锁名称分组
+     * @param leaseTime 重入次数未归零时重置的锁持续时间（毫秒）
+     * @param owner     持有者标识
+     * @return 与 groups 一一对应，组内由 owner 持有并已释放（或重入次数减一）的锁数量
+     */
+    List<CompletableFuture<Long>> releaseAll(List<List<String>> groups, long leaseTime, String owner);
+
+    /**
+     * 本地交接：owner 不再持有时直接把锁转给 nextOwner，不删除锁、不通知订阅者
+     *
+     * @param lockName      锁名称
+     * @param leaseTime     重入次数未归零时重置的锁持续时间（毫秒）
+     * @param owner         持有者标识
+     * @param nextOwner     接手者标识
+     * @param nextLeaseTime 接手者的锁持续时间（毫秒）
+     * @return null:未持有锁 0:重入次数减一 1:已交接
+     */
+    Long handoff(String lockName, long leaseTime, String owner, String nextOwner, long nextLeaseTime);
+
+    /**
+     * 批量续期
+     *
+     * @param lockNames 锁名称
+     * @param owners    与 lockNames 一一对应的持有者标识
+     * @param leaseTime 锁持续时间（毫秒）
+     * @return 与 lockNames 一一对应，true:续期成功 false:锁已不属于该持有者
+     */
+    List<Boolean> renew(List<String> lockNames, List<String> owners, long leaseTime);
+
+    /**
+     * 注册常驻监听，接收不属于任何锁频道的公共释放消息
+     *
+     * @param listener 监听
+     */
+    void listen(LockReleaseListener listener);
+
+    /**
+     * 订阅锁的释放通知
+     *
+     * @param lockName 锁名称
+     * @param listener 监听
+     */
+    void subscribe(String lockName, LockReleaseListener listener);
+
+    /**
+     * 取消订阅锁的释放通知
+     *
+     * @param lockName 锁名称
+     * @param listener 监听
+     */
+    void unsubscribe(String lockName, LockReleaseListener listener);
+
+}
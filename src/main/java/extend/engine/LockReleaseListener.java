@@ -0,0 +1,19 @@
+package extend.engine;
+
+/**
+ * @author 田奇杭
+ * @Description 锁释放监听
+ * @Date 2023/7/2 20:16
+ */
+@FunctionalInterface
+public interface LockReleaseListener {
+
+    /**
+     * 锁被释放（或过期）
+     *
+     * @param lockName 锁名称
+     * @param message  释放消息内容，由释放方决定，例如公平锁的下一个持有者、信号量释放的许可数
+     */
+    void onRelease(String lockName, String message);
+
+}
@@ -0,0 +1,417 @@
+package extend.engine;
+
+import extend.config.DistributedLockProperties;
+import extend.listener.PublishSubscribe;
+import extend.script.LuaScriptRegistry;
+import io.lettuce.core.cluster.SlotHash;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * @author 田奇杭
+ * @Description Redis 锁引擎：锁为 hash 结构（持有者 -> 重入次数），抢占与释放各一次 Lua 脚本调用，
+ * 释放消息发布到每把锁各自的频道 UN_LOCK_TOPIC:锁名称，可选同时订阅键空间过期通知；
+ * 通知方式为 tracking 时释放脚本不再发布，等待线程由客户端追踪的失效消息唤醒
+ * @Date 2023/7/2 20:25
+ */
+@Component
+@ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "redis", matchIfMissing = true)
+public class RedisLockEngine implements LockEngine {
+
+    /**
+     * 抢占脚本
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者标识
+     */
+    private static final String LOCK_SCRIPT = "if (redis.call('EXISTS', KEYS[1]) == 0) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1) then\n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "return redis.call('PTTL', KEYS[1]);";
+
+    /**
+     * 释放脚本
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者标识
+     * ARGV[3]: 锁释放频道，为空时不发布（客户端追踪模式）
+     */
+    private static final String UNLOCK_SCRIPT = "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 0) then \n" +
+            "    return nil;\n" +
+            "end;\n" +
+            "if (tonumber(redis.call('HGET', KEYS[1], ARGV[2])) > 1) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], -1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], ARGV[1]);\n" +
+            "    return 0;\n" +
+            "else \n" +
+            "    redis.call('DEL', KEYS[1]); \n" +
+            "    if (ARGV[3] ~= '') then \n" +
+            "        redis.call('PUBLISH', ARGV[3], KEYS[1]); \n" +
+            "    end; \n" +
+            "    return 1;\n" +
+            "end; \n" +
+            "return nil;";
+
+    /**
+     * 本地交接脚本
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者标识
+     * ARGV[3]: 接手者标识
+     * ARGV[4]: 接手者的锁持续时间
+     * 返回值: nil:未持有锁 0:重入次数减一 1:已交接
+     */
+    private static final String HANDOFF_SCRIPT = "local count = redis.call('HGET', KEYS[1], ARGV[2]); \n" +
+            "if (count == false) then \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (tonumber(count) > 1) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], -1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], ARGV[1]); \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "redis.call('HDEL', KEYS[1], ARGV[2]); \n" +
+            "redis.call('HSET', KEYS[1], ARGV[3], 1); \n" +
+            "redis.call('PEXPIRE', KEYS[1], ARGV[4]); \n" +
+            "return 1;";
+
+    /**
+     * 多 key 抢占脚本，全部成功或全部失败
+     * KEYS[1..n]: 锁名称，必须在同一个 slot
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者标识
+     * 返回值: nil:全部成功 !nil:第一个被其他持有者占用的锁的下标（从 1 开始），此时未做任何修改
+     */
+    private static final String MULTI_LOCK_SCRIPT = "for i = 1, #KEYS do \n" +
+            "    if (redis.call('EXISTS', KEYS[i]) == 1) and (redis.call('HEXISTS', KEYS[i], ARGV[2]) == 0) then \n" +
+            "        return i; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "for i = 1, #KEYS do \n" +
+            "    redis.call('HINCRBY', KEYS[i], ARGV[2], 1); \n" +
+            "    redis.call('PEXPIRE', KEYS[i], tonumber(ARGV[1])); \n" +
+            "end; \n" +
+            "return nil;";
+
+    /**
+     * 多 key 释放脚本
+     * KEYS[1..n]: 锁名称，必须在同一个 slot
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者标识
+     * ARGV[3..n+2]: 与 KEYS 一一对应的锁释放频道，为空时不发布（客户端追踪模式）
+     * 返回值: 持有并已释放（或重入次数减一）的锁数量
+     */
+    private static final String MULTI_UNLOCK_SCRIPT = "local released = 0; \n" +
+            "for i = 1, #KEYS do \n" +
+            "    local count = redis.call('HGET', KEYS[i], ARGV[2]); \n" +
+            "    if (count ~= false) then \n" +
+            "        if (tonumber(count) > 1) then \n" +
+            "            redis.call('HINCRBY', KEYS[i], ARGV[2], -1); \n" +
+            "            redis.call('PEXPIRE', KEYS[i], ARGV[1]); \n" +
+            "        else \n" +
+            "            redis.call('DEL', KEYS[i]); \n" +
+            "            if (ARGV[i + 2] ~= '') then \n" +
+            "                redis.call('PUBLISH', ARGV[i + 2], KEYS[i]); \n" +
+            "            end; \n" +
+            "        end; \n" +
+            "        released = released + 1; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "return released;";
+
+    /**
+     * 批量续期脚本
+     * KEYS[1..n]: 锁名称，必须在同一个 slot
+     * ARGV[1]: 锁持续时间
+     * ARGV[2..n+1]: 与 KEYS 一一对应的持有者标识
+     * 返回值: 与 KEYS 一一对应，1:续期成功 0:锁已不属于该持有者
+     */
+    private static final String RENEW_SCRIPT = "local result = {}; \n" +
+            "for i = 1, #KEYS do \n" +
+            "    if (redis.call('HEXISTS', KEYS[i], ARGV[i + 1]) == 1) then \n" +
+            "        redis.call('PEXPIRE', KEYS[i], tonumber(ARGV[1])); \n" +
+            "        result[i] = 1; \n" +
+            "    else \n" +
+            "        result[i] = 0; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "return result;";
+
+    /**
+     * 锁释放频道前缀
+     */
+    private static final String CHANNEL_PREFIX = PublishSubscribe.UN_LOCK_TOPIC + ":";
+
+    /**
+     * 键空间通知频道前缀：__keyspace@库号__:锁名称
+     */
+    private static final String KEYSPACE_PREFIX = "__keyspace@";
+
+    /**
+     * 键空间通知中代表 key 过期的事件
+     */
+    private static final String EXPIRED_EVENT = "expired";
+
+    /**
+     * 每个释放监听对应的消息监听，同一个监听在容器中只注册一个对象，取消订阅时才能按频道移除
+     */
+    private final Map<LockReleaseListener, MessageListener> messageListenerMap = new ConcurrentHashMap<>();
+
+    /**
+     * Lua 脚本注册中心
+     */
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    /**
+     * 消息监听容器
+     */
+    @Resource
+    private RedisMessageListenerContainer container;
+
+    /**
+     * 客户端追踪订阅
+     */
+    @Resource
+    private ClientTrackingSubscriber clientTrackingSubscriber;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * Redis 配置，用于拼接键空间通知频道中的库号
+     */
+    @Resource
+    private RedisProperties redisProperties;
+
+    /**
+     * 抢占脚本
+     */
+    private RedisScript<Long> lockScript;
+
+    /**
+     * 释放脚本
+     */
+    private RedisScript<Long> unLockScript;
+
+    /**
+     * 本地交接脚本
+     */
+    private RedisScript<Long> handoffScript;
+
+    /**
+     * 多 key 抢占脚本
+     */
+    private RedisScript<Long> multiLockScript;
+
+    /**
+     * 多 key 释放脚本
+     */
+    private RedisScript<Long> multiUnLockScript;
+
+    /**
+     * 批量续期脚本
+     */
+    private RedisScript<List<Long>> renewScript;
+
+    /**
+     * 注册脚本，由注册中心在启动时统一预加载
+     */
+    @PostConstruct
+    public void registerScript() {
+        lockScript = luaScriptRegistry.register(RedisLockEngine.LOCK_SCRIPT, Long.class);
+        unLockScript = luaScriptRegistry.register(RedisLockEngine.UNLOCK_SCRIPT, Long.class);
+        handoffScript = luaScriptRegistry.register(RedisLockEngine.HANDOFF_SCRIPT, Long.class);
+        multiLockScript = luaScriptRegistry.register(RedisLockEngine.MULTI_LOCK_SCRIPT, Long.class);
+        multiUnLockScript = luaScriptRegistry.register(RedisLockEngine.MULTI_UNLOCK_SCRIPT, Long.class);
+        renewScript = luaScriptRegistry.registerLongList(RedisLockEngine.RENEW_SCRIPT);
+    }
+
+    @Override
+    public Long acquire(String lockName, long leaseTime, String owner) {
+        return luaScriptRegistry.execute(lockScript, Collections.singletonList(lockName), String.valueOf(leaseTime), owner);
+    }
+
+    @Override
+    public CompletableFuture<Long> acquireAsync(String lockName, long leaseTime, String owner) {
+        return luaScriptRegistry.executeAsync(lockScript, Collections.singletonList(lockName), String.valueOf(leaseTime), owner);
+    }
+
+    /**
+     * 每组一次多 key 脚本调用，所有分组一次性并发下发（集群下按节点流水线执行）
+     */
+    @Override
+    public List<CompletableFuture<Long>> acquireAll(List<List<String>> groups, long leaseTime, String owner) {
+        Object[] args = {String.valueOf(leaseTime), owner};
+        return luaScriptRegistry.executeBatch(multiLockScript, groups, Collections.nCopies(groups.size(), args));
+    }
+
+    @Override
+    public Long release(String lockName, long leaseTime, String owner) {
+        return luaScriptRegistry.execute(unLockScript, Collections.singletonList(lockName), String.valueOf(leaseTime), owner,
+                getReleaseChannel(lockName));
+    }
+
+    @Override
+    public CompletableFuture<Long> releaseAsync(String lockName, long leaseTime, String owner) {
+        return luaScriptRegistry.executeAsync(unLockScript, Collections.singletonList(lockName), String.valueOf(leaseTime), owner,
+                getReleaseChannel(lockName));
+    }
+
+    @Override
+    public List<CompletableFuture<Long>> releaseAll(List<List<String>> groups, long leaseTime, String owner) {
+        List<Object[]> argsList = new ArrayList<>(groups.size());
+        for (List<String> keys : groups) {
+            Object[] args = new Object[keys.size() + 2];
+            args[0] = String.valueOf(leaseTime);
+            args[1] = owner;
+            for (int i = 0; i < keys.size(); i++)
+                args[i + 2] = getReleaseChannel(keys.get(i));
+            argsList.add(args);
+        }
+        return luaScriptRegistry.executeBatch(multiUnLockScript, groups, argsList);
+    }
+
+    @Override
+    public Long handoff(String lockName, long leaseTime, String owner, String nextOwner, long nextLeaseTime) {
+        return luaScriptRegistry.execute(handoffScript, Collections.singletonList(lockName), String.valueOf(leaseTime),
+                owner, nextOwner, String.valueOf(nextLeaseTime));
+    }
+
+    /**
+     * 按 slot 分组，每组一次多 key 脚本调用，所有分组放在同一个 pipeline 中一次往返完成
+     */
+    @Override
+    public List<Boolean> renew(List<String> lockNames, List<String> owners, long leaseTime) {
+        Map<Integer, List<Integer>> slotMap = new TreeMap<>();
+        for (int i = 0; i < lockNames.size(); i++)
+            slotMap.computeIfAbsent(SlotHash.getSlot(lockNames.get(i)), k -> new ArrayList<>()).add(i);
+
+        List<List<Integer>> groups = new ArrayList<>(slotMap.values());
+        List<List<String>> keysList = new ArrayList<>(groups.size());
+        List<Object[]> argsList = new ArrayList<>(groups.size());
+        for (List<Integer> group : groups) {
+            List<String> keys = new ArrayList<>(group.size());
+            Object[] args = new Object[group.size() + 1];
+            args[0] = leaseTime;
+            for (int i = 0; i < group.size(); i++) {
+                keys.add(lockNames.get(group.get(i)));
+                args[i + 1] = owners.get(group.get(i));
+            }
+            keysList.add(keys);
+            argsList.add(args);
+        }
+
+        List<List<Long>> results = luaScriptRegistry.executePipelined(renewScript, keysList, argsList);
+        List<Boolean> renewed = new ArrayList<>(Collections.nCopies(lockNames.size(), Boolean.FALSE));
+        for (int i = 0; i < groups.size(); i++) {
+            List<Long> result = results.get(i);
+            List<Integer> group = groups.get(i);
+            for (int j = 0; j < group.size(); j++)
+                renewed.set(group.get(j), result != null && Long.valueOf(1L).equals(result.get(j)));
+        }
+        return renewed;
+    }
+
+    /**
+     * 常驻订阅公共主题，保证订阅连接在没有任何锁频道时也不会断开，
+     * 同时兼容滚动升级期间仍向公共主题发布释放消息的旧节点，公共主题上的消息内容即锁名称
+     */
+    @Override
+    public void listen(LockReleaseListener listener) {
+        container.addMessageListener(messageListener(listener), new ChannelTopic(PublishSubscribe.UN_LOCK_TOPIC));
+    }
+
+    @Override
+    public void subscribe(String lockName, LockReleaseListener listener) {
+        if (clientTrackingSubscriber.isTracked(lockName)) {
+            clientTrackingSubscriber.subscribe(lockName, listener);
+            return;
+        }
+        MessageListener messageListener = messageListener(listener);
+        container.addMessageListener(messageListener, new ChannelTopic(PublishSubscribe.getChannelName(lockName)));
+        if (distributedLockProperties.isKeyspaceNotifications())
+            container.addMessageListener(messageListener, new ChannelTopic(getKeyspaceChannelName(lockName)));
+    }
+
+    @Override
+    public void unsubscribe(String lockName, LockReleaseListener listener) {
+        if (clientTrackingSubscriber.isTracked(lockName)) {
+            clientTrackingSubscriber.unsubscribe(lockName, listener);
+            return;
+        }
+        MessageListener messageListener = messageListener(listener);
+        container.removeMessageListener(messageListener, new ChannelTopic(PublishSubscribe.getChannelName(lockName)));
+        if (distributedLockProperties.isKeyspaceNotifications())
+            container.removeMessageListener(messageListener, new ChannelTopic(getKeyspaceChannelName(lockName)));
+    }
+
+    /**
+     * 释放监听对应的消息监听，从频道中解析锁名称
+     *
+     * @param listener 释放监听
+     * @return 消息监听
+     */
+    private MessageListener messageListener(LockReleaseListener listener) {
+        return messageListenerMap.computeIfAbsent(listener, k -> (message, pattern) -> {
+            String body = message.toString();
+            String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+            String lockName;
+            if (channel.startsWith(KEYSPACE_PREFIX)) {
+                // 键空间通知只关心过期事件：持有者宕机未释放，锁过期时没有释放消息
+                if (!EXPIRED_EVENT.equals(body))
+                    return;
+                lockName = channel.substring(channel.indexOf("__:") + 3);
+            } else
+                lockName = channel.startsWith(CHANNEL_PREFIX) ? channel.substring(CHANNEL_PREFIX.length()) : body;
+            listener.onRelease(lockName, body);
+        });
+    }
+
+    /**
+     * 释放脚本发布消息的频道，通过客户端追踪传递释放消息时为空，脚本不发布
+     *
+     * @param lockName 锁名称
+     * @return 频道名称
+     */
+    private String getReleaseChannel(String lockName) {
+        return clientTrackingSubscriber.isTracked(lockName) ? "" : PublishSubscribe.getChannelName(lockName);
+    }
+
+    /**
+     * 锁名称对应的键空间通知频道
+     *
+     * @param lockName 锁名称
+     * @return 频道名称
+     */
+    private String getKeyspaceChannelName(String lockName) {
+        return KEYSPACE_PREFIX + redisProperties.getDatabase() + "__:" + lockName;
+    }
+
+}
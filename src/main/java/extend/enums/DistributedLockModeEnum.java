@@ -0,0 +1,37 @@
+package extend.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @author 田奇杭
+ * @Description 分布式锁模式枚举
+ * @Date 2023/6/10 20:12
+ */
+@Getter
+@AllArgsConstructor
+public enum DistributedLockModeEnum {
+
+    /**
+     * 读锁（共享）
+     */
+    READ(1, "读锁"),
+
+    /**
+     * 写锁（独占）
+     */
+    WRITE(2, "写锁"),
+
+    ;
+
+    /**
+     * 分布式锁模式
+     */
+    private final Integer distributedLockMode;
+
+    /**
+     * 分布式锁模式描述
+     */
+    private final String distributedLockModeDesc;
+
+}
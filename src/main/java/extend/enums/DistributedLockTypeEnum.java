@@ -17,6 +17,26 @@ public enum DistributedLockTypeEnum {
      */
     ORDINARY(1, "ordinaryDistributedLock", "普通分布式锁"),
 
+    /**
+     * 读写分布式锁（单节点），读锁共享、写锁独占
+     */
+    READ_WRITE(2, "readWriteDistributedLock", "读写分布式锁"),
+
+    /**
+     * 信号量分布式锁（单节点），最多允许 permits 个持有者同时持有
+     */
+    SEMAPHORE(3, "semaphoreDistributedLock", "信号量分布式锁"),
+
+    /**
+     * 公平分布式锁（单节点），按 Redis 等待队列的先后顺序获取锁
+     */
+    FAIR(4, "fairDistributedLock", "公平分布式锁"),
+
+    /**
+     * 仲裁分布式锁（多个独立主节点），过半节点加锁成功才算成功
+     */
+    QUORUM(5, "quorumDistributedLock", "仲裁分布式锁"),
+
     ;
 
     /**
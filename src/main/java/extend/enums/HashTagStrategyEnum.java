@@ -0,0 +1,66 @@
+package extend.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @author 田奇杭
+ * @Description 锁名称的 hash tag 策略，决定锁在 Redis Cluster 中落在哪个 slot。
+ * 同一 slot 的多把锁可以在一次脚本调用中原子地获取，但 slot 过于集中会形成热点节点
+ * @Date 2023/6/28 20:05
+ */
+@Getter
+@AllArgsConstructor
+public enum HashTagStrategyEnum {
+
+    /**
+     * 整个关键字作为 hash tag：锁类型:{关键字}，每个关键字各自分散
+     */
+    KEYWORD(1, "整个关键字"),
+
+    /**
+     * 关键字第一个冒号之前的部分作为 hash tag：锁类型:{order}:1001，同一前缀的锁落在同一个 slot；
+     * 关键字中没有冒号时同 KEYWORD
+     */
+    PREFIX(2, "关键字前缀"),
+
+    /**
+     * 关键字中已经写明 hash tag 时原样使用：锁类型:order{42}:item，由调用方决定哪些锁放在一起；
+     * 关键字中没有 hash tag 时同 KEYWORD
+     */
+    EXPLICIT(3, "关键字中的 hash tag"),
+
+    ;
+
+    /**
+     * 策略编号
+     */
+    private final Integer hashTagStrategy;
+
+    /**
+     * 策略描述
+     */
+    private final String hashTagStrategyDesc;
+
+    /**
+     * 组装锁名称
+     *
+     * @param type    锁类型
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    public String assemble(String type, String keyword) {
+        if (this == PREFIX) {
+            int index = keyword.indexOf(':');
+            if (index > 0)
+                return type + ":{" + keyword.substring(0, index) + "}" + keyword.substring(index);
+        } else if (this == EXPLICIT) {
+            int begin = keyword.indexOf('{');
+            // 与 Redis 相同：第一个 { 之后第一个 } 之间的非空内容才是 hash tag
+            if (begin >= 0 && keyword.indexOf('}', begin + 1) > begin + 1)
+                return type + ":" + keyword;
+        }
+        return type + ":{" + keyword + "}";
+    }
+
+}
@@ -0,0 +1,42 @@
+package extend.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @author 田奇杭
+ * @Description 锁存储引擎枚举，由 extend.lock.engine 选择
+ * @Date 2023/7/2 20:10
+ */
+@Getter
+@AllArgsConstructor
+public enum LockEngineEnum {
+
+    /**
+     * Redis 引擎，锁保存在 Redis 中，释放消息通过 pub/sub 传递
+     */
+    REDIS(1, "redis", "Redis 引擎"),
+
+    /**
+     * 进程内引擎，锁保存在本 JVM 内存中，只适用于单实例部署与测试；只装配普通锁
+     */
+    LOCAL(2, "local", "进程内引擎"),
+
+    ;
+
+    /**
+     * 引擎类型
+     */
+    private final Integer lockEngineType;
+
+    /**
+     * 配置值
+     */
+    private final String lockEngineName;
+
+    /**
+     * 引擎类型描述
+     */
+    private final String lockEngineTypeDesc;
+
+}
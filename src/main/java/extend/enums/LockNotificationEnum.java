@@ -0,0 +1,43 @@
+package extend.enums;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * @author 田奇杭
+ * @Description 锁释放通知方式枚举，由 extend.lock.notification 选择，只对 Redis 引擎下的普通锁生效
+ * @Date 2023/7/8 20:12
+ */
+@Getter
+@AllArgsConstructor
+public enum LockNotificationEnum {
+
+    /**
+     * 发布订阅，释放脚本向锁释放频道 PUBLISH 消息
+     */
+    PUBLISH(1, "publish", "发布订阅"),
+
+    /**
+     * 客户端追踪，普通锁 key 被删除、过期或修改时由 Redis 推送失效消息，普通锁的释放脚本不再 PUBLISH；
+     * 其他锁类型仍使用发布订阅
+     */
+    TRACKING(2, "tracking", "客户端追踪"),
+
+    ;
+
+    /**
+     * 通知方式
+     */
+    private final Integer notificationType;
+
+    /**
+     * 配置值
+     */
+    private final String notificationName;
+
+    /**
+     * 通知方式描述
+     */
+    private final String notificationTypeDesc;
+
+}
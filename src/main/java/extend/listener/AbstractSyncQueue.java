@@ -0,0 +1,140 @@
+package extend.listener;
+
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author 田奇杭
+ * @Description 同步队列基类，PublishSubscribe 按锁名称管理，收到锁释放消息时唤醒等待线程
+ * @Date 2023/6/10 20:47
+ */
+public abstract class AbstractSyncQueue {
+
+    /**
+     * 引用计数：持有或等待该锁的线程数，只在 PublishSubscribe 的 compute 中修改
+     */
+    int references;
+
+    /**
+     * 锁释放消息次数，旁观等待前读取，避免错过抢占失败与开始等待之间到达的消息
+     */
+    private final AtomicInteger releaseCount = new AtomicInteger();
+
+    /**
+     * 旁观线程：不在本地队列中排队，只等待锁释放消息的线程（例如多 key 抢占）
+     */
+    private final Set<Thread> observers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 一次性的锁释放回调（例如异步抢占），按登记顺序排列，每条锁释放消息只执行并移除一个
+     */
+    private final Queue<Runnable> releaseCallbacks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 锁已释放，唤醒等待线程使其能够尝试获取分布式锁
+     *
+     * @return true:唤醒成功
+     */
+    public abstract boolean doSignal();
+
+    /**
+     * 收到锁释放消息，默认忽略消息内容直接唤醒
+     *
+     * @param message 锁释放消息内容
+     * @return true:唤醒成功
+     */
+    public boolean doSignal(String message) {
+        return doSignal();
+    }
+
+    /**
+     * 当前在本地排队的等待线程数量，用于监控，遍历期间队列可能变化，结果为近似值
+     *
+     * @return 等待线程数量
+     */
+    public abstract int getQueueLength();
+
+    /**
+     * 收到锁释放消息，唤醒所有旁观线程后按队列规则唤醒等待线程
+     *
+     * @param message 锁释放消息内容
+     * @return true:唤醒成功
+     */
+    public final boolean signal(String message) {
+        releaseCount.incrementAndGet();
+        for (Thread observer : observers)
+            LockSupport.unpark(observer);
+        passRelease();
+        return doSignal(message);
+    }
+
+    /**
+     * 当前锁释放消息次数，在尝试抢占分布式锁之前读取，作为 awaitRelease 的参数
+     *
+     * @return 锁释放消息次数
+     */
+    public final int getReleaseCount() {
+        return releaseCount.get();
+    }
+
+    /**
+     * 以旁观者身份等待下一次锁释放消息，不参与本地排队
+     *
+     * @param waitTime     等待时间（毫秒）
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则立即返回
+     * @return true:收到锁释放消息 false:等待超时
+     */
+    public final boolean awaitRelease(long waitTime, int releaseCount) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        Thread current = Thread.currentThread();
+        observers.add(current);
+        try {
+            while (this.releaseCount.get() == releaseCount) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    return false;
+                LockSupport.parkNanos(this, nanos);
+            }
+            return true;
+        } finally {
+            observers.remove(current);
+        }
+    }
+
+    /**
+     * 登记一次性的锁释放回调，在收到锁释放消息的线程中执行，回调内不能阻塞
+     *
+     * @param callback     回调
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则立即执行
+     */
+    public final void onRelease(Runnable callback, int releaseCount) {
+        releaseCallbacks.offer(callback);
+        // 登记前已有释放消息：谁移除成功谁执行，保证回调只执行一次
+        if (this.releaseCount.get() != releaseCount && releaseCallbacks.remove(callback))
+            callback.run();
+    }
+
+    /**
+     * 执行下一个锁释放回调，回调对应的抢占已结束（超时、取消）时由其调用，把这次锁释放交给下一个
+     */
+    public final void passRelease() {
+        Runnable callback = releaseCallbacks.poll();
+        if (callback != null)
+            callback.run();
+    }
+
+    /**
+     * 移除尚未执行的锁释放回调
+     *
+     * @param callback 回调
+     */
+    public final void removeReleaseCallback(Runnable callback) {
+        releaseCallbacks.remove(callback);
+    }
+
+}
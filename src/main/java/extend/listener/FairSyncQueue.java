@@ -0,0 +1,39 @@
+package extend.listener;
+
+import java.util.function.ToLongFunction;
+
+/**
+ * @author 田奇杭
+ * @Description 公平同步队列，锁释放消息内容为 Redis 等待队列的队首线程标识，只唤醒该线程，
+ * 其余等待线程继续休眠，避免所有节点一起抢占
+ * @Date 2023/6/18 20:12
+ */
+public class FairSyncQueue extends SharedSyncQueue {
+
+    /**
+     * 本地线程到线程标识的转换
+     */
+    private final ToLongFunction<Thread> threadFlag;
+
+    public FairSyncQueue(ToLongFunction<Thread> threadFlag) {
+        this.threadFlag = threadFlag;
+    }
+
+    /**
+     * 只唤醒消息中指定的线程，消息内容无法解析时按默认规则唤醒
+     *
+     * @param message 下一个应获取锁的线程标识
+     * @return true:唤醒成功
+     */
+    @Override
+    public boolean doSignal(String message) {
+        long flag;
+        try {
+            flag = Long.parseLong(message);
+        } catch (NumberFormatException e) {
+            return doSignal();
+        }
+        return doSignal(thread -> threadFlag.applyAsLong(thread) == flag);
+    }
+
+}
@@ -0,0 +1,27 @@
+package extend.listener;
+
+/**
+ * @author 田奇杭
+ * @Description 许可同步队列，锁释放消息内容为释放的许可数量，只唤醒同样数量的本地等待线程
+ * @Date 2023/6/17 21:40
+ */
+public class PermitSyncQueue extends SharedSyncQueue {
+
+    /**
+     * 按释放的许可数量唤醒等待线程，消息内容无法解析时唤醒一个
+     *
+     * @param message 释放的许可数量
+     * @return true:唤醒成功
+     */
+    @Override
+    public boolean doSignal(String message) {
+        int permits;
+        try {
+            permits = Integer.parseInt(message);
+        } catch (NumberFormatException e) {
+            permits = 1;
+        }
+        return doSignal(permits);
+    }
+
+}
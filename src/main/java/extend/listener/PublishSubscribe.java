@@ -1,71 +1,310 @@
 package extend.listener;
 
 import com.alibaba.fastjson.JSON;
-import lombok.NonNull;
+import extend.config.DistributedLockProperties;
+import extend.engine.LockEngine;
+import extend.engine.LockReleaseListener;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.connection.Message;
-import org.springframework.data.redis.connection.MessageListener;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ObjIntConsumer;
+import java.util.function.Supplier;
 
 /**
  * @author 田奇杭
- * @Description 分布式锁释放监听类
+ * @Description 分布式锁释放监听类，释放消息由锁引擎传递
  * @Date 2023/5/14 22:03
  */
 @Slf4j
 @Component
-public class PublishSubscribe implements MessageListener {
+public class PublishSubscribe implements LockReleaseListener {
+
+    /**
+     * 锁释放主题前缀，每把锁对应一个频道：UN_LOCK_TOPIC:锁名称
+     * 锁名称中的 {关键字} 同样是频道的 hash tag，频道与锁 key 落在同一个 slot
+     */
+    public static final String UN_LOCK_TOPIC = "UN_LOCK_TOPIC";
+
+    /**
+     * 锁释放频道前缀
+     */
+    private static final String CHANNEL_PREFIX = UN_LOCK_TOPIC + ":";
 
     /**
      * 等待订阅消息的线程集合
      * key: 锁名称
-     * value: 等待锁释放的线程 set 集合
+     * value: 等待锁释放的线程 set 集合，引用计数归零时自动移除
      */
-    private static final Map<String, SyncQueue> SYNC_QUEUE_MAP = new ConcurrentHashMap<>();
+    private final Map<String, AbstractSyncQueue> syncQueueMap = new ConcurrentHashMap<>();
 
     /**
-     * 监听锁释放 Topic 根据释放的锁名称获取对应的同步节点
+     * 普通锁的分段同步队列，数量为 2 的幂，未开启分段模式时为 null
+     */
+    private StripedSyncQueue[] stripes;
+
+    /**
+     * 同步队列回收次数
+     */
+    private final LongAdder evictionCount = new LongAdder();
+
+    /**
+     * 频道订阅
+     * key: 锁名称
+     * value: 订阅状态，等待线程数归零时取消订阅并移除
+     */
+    private final Map<String, Subscription> subscriptionMap = new ConcurrentHashMap<>();
+
+    /**
+     * 锁引擎
+     */
+    @Resource
+    private LockEngine lockEngine;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * 注册常驻监听，Redis 引擎下为公共主题，保证订阅连接在没有任何锁频道时也不会断开，
+     * 同时兼容滚动升级期间仍向公共主题发布释放消息的旧节点；
+     * 开启分段模式时按配置创建分段同步队列，数量向上取整为 2 的幂，最多 65536 个
+     */
+    @PostConstruct
+    public void init() {
+        int stripeCount = distributedLockProperties.getLocalQueueStripes();
+        if (stripeCount > 0) {
+            stripeCount = Integer.highestOneBit(Math.min(stripeCount, 1 << 16) * 2 - 1);
+            stripes = new StripedSyncQueue[stripeCount];
+            for (int i = 0; i < stripeCount; i++)
+                stripes[i] = new StripedSyncQueue();
+        }
+        lockEngine.listen(this);
+    }
+
+    /**
+     * 监听锁释放消息，根据释放的锁名称获取对应的同步节点
      * 在对列不为空的情况下，尝试唤醒头部节点，使其能够参加到分布式锁的抢占中
      *
-     * @param message 释放的锁名称
-     * @param pattern pattern matching the channel (if specified) - can be {@literal null}.
+     * @param unLockName 被释放的锁名称
+     * @param body       锁释放消息内容
      */
     @Override
-    public void onMessage(@NonNull Message message, byte[] pattern) {
-        log.info("PublishSubscribe.onMessage message:{} pattern:{}", message, pattern);
-        // 获取释放的临界资源名字
-        String unLockName = message.toString();
+    public void onRelease(String unLockName, String body) {
+        log.info("PublishSubscribe.onRelease unLockName:{} body:{}", unLockName, body);
         // 尝试获取被释放锁的本地同步队列
-        SyncQueue syncQueue = SYNC_QUEUE_MAP.get(unLockName);
+        AbstractSyncQueue syncQueue = syncQueueMap.get(unLockName);
         log.info("PublishSubscribe.syncQueue syncQueue:{}", JSON.toJSONString(syncQueue));
         // 本地同步队列可能为空，因为可能压根就没有针对这个临界资源的操作
         if (syncQueue != null) {
             // 唤醒头部节点使其能够苏醒，参与到临界资源的抢占中
-            syncQueue.doSignal();
+            syncQueue.signal(body);
+        }
+        // 分段模式下普通锁的等待者在分段同步队列中，只唤醒等待这把锁的线程
+        if (stripes != null)
+            getStripe(unLockName).signal(unLockName);
+    }
+
+    /**
+     * 锁名称对应的释放频道
+     *
+     * @param lockName 锁名称
+     * @return 频道名称
+     */
+    public static String getChannelName(String lockName) {
+        return CHANNEL_PREFIX + lockName;
+    }
+
+    /**
+     * 订阅锁释放频道，只有本地存在等待线程时才订阅，多个等待线程共享同一个订阅。
+     * 订阅需要一次 Redis 往返，在该锁自己的订阅对象上同步执行，不占用 ConcurrentHashMap 的桶锁，
+     * 不会阻塞落在同一个桶里的其他锁；同一把锁的其他等待线程等到订阅生效后才返回
+     *
+     * @param lockName 锁名称
+     */
+    public void subscribe(String lockName) {
+        for (; ; ) {
+            Subscription subscription = subscriptionMap.computeIfAbsent(lockName, k -> new Subscription());
+            synchronized (subscription) {
+                // 最后一个等待线程刚取消订阅并移除，重新获取
+                if (subscription.removed)
+                    continue;
+                if (subscription.count == 0) {
+                    try {
+                        lockEngine.subscribe(lockName, this);
+                    } catch (RuntimeException e) {
+                        subscription.removed = true;
+                        subscriptionMap.remove(lockName, subscription);
+                        throw e;
+                    }
+                }
+                subscription.count++;
+                return;
+            }
         }
     }
 
     /**
-     * 根据锁名称获取同步队列
+     * 取消订阅锁释放频道，最后一个等待线程离开时真正取消订阅。
+     * 取消订阅完成后才移除订阅对象，之后的订阅一定排在取消订阅之后
      *
      * @param lockName 锁名称
+     */
+    public void unsubscribe(String lockName) {
+        Subscription subscription = subscriptionMap.get(lockName);
+        if (subscription == null)
+            return;
+        synchronized (subscription) {
+            if (subscription.removed || --subscription.count > 0)
+                return;
+            try {
+                lockEngine.unsubscribe(lockName, this);
+            } finally {
+                subscription.removed = true;
+                subscriptionMap.remove(lockName, subscription);
+            }
+        }
+    }
+
+    /**
+     * 当前订阅的锁频道数量
+     *
+     * @return 频道数量
+     */
+    public int getSubscribeCount() {
+        return subscriptionMap.size();
+    }
+
+    /**
+     * 根据锁名称获取同步队列并持有引用，不存在时创建，
+     * 引用计数在 compute 中原子递增，持有引用期间同步队列不会被回收
+     *
+     * @param lockName 锁名称
+     * @return 同步队列
+     */
+    public SyncQueue acquireSyncQueue(String lockName) {
+        return acquireSyncQueue(lockName, SyncQueue::new);
+    }
+
+    /**
+     * 根据锁名称获取指定类型的同步队列并持有引用，不存在时通过 factory 创建
+     *
+     * @param lockName 锁名称
+     * @param factory  同步队列工厂
      * @return 同步队列
      */
-    public static SyncQueue getSyncQueueByLockName(String lockName) {
-        return SYNC_QUEUE_MAP.computeIfAbsent(lockName, k -> new SyncQueue());
+    @SuppressWarnings("unchecked")
+    public <T extends AbstractSyncQueue> T acquireSyncQueue(String lockName, Supplier<T> factory) {
+        return (T) syncQueueMap.compute(lockName, (k, syncQueue) -> {
+            if (syncQueue == null)
+                syncQueue = factory.get();
+            syncQueue.references++;
+            return syncQueue;
+        });
+    }
+
+    /**
+     * 根据锁名称获取同步队列，不持有引用
+     *
+     * @param lockName 锁名称
+     * @return 同步队列，没有线程持有或等待该锁时为 null
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends AbstractSyncQueue> T getSyncQueue(String lockName) {
+        return (T) syncQueueMap.get(lockName);
+    }
+
+    /**
+     * 释放同步队列引用，最后一个引用释放时移除同步队列
+     *
+     * @param lockName  锁名称
+     * @param syncQueue 同步队列
+     */
+    public void releaseSyncQueue(String lockName, AbstractSyncQueue syncQueue) {
+        syncQueueMap.computeIfPresent(lockName, (k, current) -> {
+            if (current != syncQueue || --current.references > 0)
+                return current;
+            evictionCount.increment();
+            return null;
+        });
+    }
+
+    /**
+     * 是否开启了分段模式
+     *
+     * @return true:普通锁使用分段同步队列
+     */
+    public boolean isStriped() {
+        return stripes != null;
     }
 
     /**
-     * 根据锁名称删除同步队列
+     * 锁名称所在的分段同步队列，仅在分段模式下调用
      *
      * @param lockName 锁名称
+     * @return 分段同步队列
+     */
+    public StripedSyncQueue getStripe(String lockName) {
+        int h = lockName.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (stripes.length - 1)];
+    }
+
+    /**
+     * 当前同步队列数量
+     *
+     * @return 同步队列数量
+     */
+    public int getSyncQueueCount() {
+        return syncQueueMap.size();
+    }
+
+    /**
+     * 遍历所有同步队列中排队的等待线程，按锁名称回调排队数量，用于监控，结果为近似值。
+     * 一次遍历即可得到所有锁名称的排队深度，由调用方按需汇总
+     *
+     * @param consumer 回调，参数为锁名称与该锁名称的排队数量
      */
-    public static SyncQueue deleteSyncQueueByLockName(String lockName) {
-        return SYNC_QUEUE_MAP.remove(lockName);
+    public void forEachQueueDepth(ObjIntConsumer<String> consumer) {
+        for (Map.Entry<String, AbstractSyncQueue> entry : syncQueueMap.entrySet()) {
+            int depth = entry.getValue().getQueueLength();
+            if (depth > 0)
+                consumer.accept(entry.getKey(), depth);
+        }
+        if (stripes != null) {
+            for (StripedSyncQueue stripe : stripes)
+                stripe.forEachWaiter(lockName -> consumer.accept(lockName, 1));
+        }
+    }
+
+    /**
+     * 同步队列回收次数
+     *
+     * @return 回收次数
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
     }
 
+    /**
+     * 一把锁的频道订阅状态，所有字段都在该对象的监视器下读写
+     */
+    private static final class Subscription {
+
+        /**
+         * 正在等待该锁释放的线程数
+         */
+        int count;
+
+        /**
+         * 是否已取消订阅并从订阅表中移除，移除后的对象不再使用
+         */
+        boolean removed;
+    }
 
 }
@@ -0,0 +1,160 @@
+package extend.listener;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+/**
+ * @author 田奇杭
+ * @Description 共享同步队列，本地不做互斥，只负责等待线程的休眠与唤醒，由 Redis 决定谁能拿到锁。
+ * 锁释放时若队首是独占等待者只唤醒它一个，否则一次唤醒所有共享等待者（读锁一起放行）
+ * @Date 2023/6/10 21:15
+ */
+public class SharedSyncQueue extends AbstractSyncQueue {
+
+    /**
+     * 等待线程，按入队顺序排列
+     */
+    private final ConcurrentLinkedQueue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 唤醒次数，等待前读取，避免在抢占失败与入队之间到达的唤醒被错过
+     */
+    private final AtomicInteger signalCount = new AtomicInteger();
+
+    /**
+     * 当前唤醒次数，在尝试抢占分布式锁之前读取，作为 await 的参数
+     *
+     * @return 唤醒次数
+     */
+    public int getSignalCount() {
+        return signalCount.get();
+    }
+
+    /**
+     * 等待唤醒
+     *
+     * @param shared      true:共享等待 false:独占等待
+     * @param waitTime    等待时间（毫秒）
+     * @param signalCount 抢占前读取的唤醒次数，期间已有唤醒则立即返回
+     * @return true:被唤醒 false:等待超时
+     */
+    public boolean await(boolean shared, long waitTime, int signalCount) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        Waiter waiter = new Waiter(Thread.currentThread(), shared);
+        waiters.offer(waiter);
+        try {
+            while (!waiter.signalled && this.signalCount.get() == signalCount) {
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    return false;
+                LockSupport.parkNanos(this, nanos);
+            }
+            return true;
+        } finally {
+            waiters.remove(waiter);
+        }
+    }
+
+    /**
+     * 唤醒等待线程：队首为独占等待者时只唤醒它，否则唤醒所有共享等待者
+     *
+     * @return true:唤醒成功
+     */
+    @Override
+    public boolean doSignal() {
+        signalCount.incrementAndGet();
+        Iterator<Waiter> iterator = waiters.iterator();
+        if (!iterator.hasNext())
+            return true;
+        Waiter first = iterator.next();
+        if (!first.shared) {
+            first.signal();
+            return true;
+        }
+        for (Waiter waiter : waiters) {
+            if (waiter.shared)
+                waiter.signal();
+        }
+        return true;
+    }
+
+    /**
+     * 按入队顺序唤醒指定数量的等待线程
+     *
+     * @param permits 唤醒数量
+     * @return true:唤醒成功
+     */
+    public boolean doSignal(int permits) {
+        signalCount.incrementAndGet();
+        int count = 0;
+        for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext() && count < permits; ) {
+            Waiter waiter = iterator.next();
+            if (!waiter.signalled) {
+                waiter.signal();
+                count++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 只唤醒满足条件的等待线程
+     *
+     * @param predicate 等待线程筛选条件
+     * @return true:唤醒成功
+     */
+    protected boolean doSignal(Predicate<Thread> predicate) {
+        signalCount.incrementAndGet();
+        for (Waiter waiter : waiters) {
+            if (predicate.test(waiter.thread))
+                waiter.signal();
+        }
+        return true;
+    }
+
+    /**
+     * 当前等待线程数量
+     *
+     * @return 等待线程数量
+     */
+    @Override
+    public int getQueueLength() {
+        return waiters.size();
+    }
+
+    /**
+     * 等待线程
+     */
+    private static final class Waiter {
+
+        /**
+         * 等待的线程
+         */
+        final Thread thread;
+
+        /**
+         * true:共享等待 false:独占等待
+         */
+        final boolean shared;
+
+        /**
+         * 是否已被唤醒
+         */
+        volatile boolean signalled;
+
+        Waiter(Thread thread, boolean shared) {
+            this.thread = thread;
+            this.shared = shared;
+        }
+
+        void signal() {
+            signalled = true;
+            LockSupport.unpark(thread);
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package extend.listener;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * @author 田奇杭
+ * @Description 分段同步队列：多把锁共用一个等待队列，每个等待者登记自己等待的锁名称，
+ * 锁释放消息只唤醒等待同一把锁的线程。没有本地持有者，等待者各自抢占分布式锁，互斥完全由 Redis 保证；
+ * 队列只保存正在等待的线程，内存不随锁名称数量增长
+ * @Date 2023/7/5 20:41
+ */
+public class StripedSyncQueue {
+
+    /**
+     * 分段内的锁释放消息次数，等待前读取，避免错过抢占失败与登记等待之间到达的消息；
+     * 分段内其他锁的消息同样会改变该值，只会多一次抢占，不会漏掉唤醒
+     */
+    private final AtomicInteger releaseCount = new AtomicInteger();
+
+    /**
+     * 等待者，按登记顺序排列，修改与遍历都在 this 监视器下
+     */
+    private final Set<Waiter> waiters = new LinkedHashSet<>();
+
+    /**
+     * 当前锁释放消息次数，在尝试抢占分布式锁之前读取，作为等待方法的参数
+     *
+     * @return 锁释放消息次数
+     */
+    public int getReleaseCount() {
+        return releaseCount.get();
+    }
+
+    /**
+     * 排队等待指定锁的释放消息，每条消息只唤醒等待该锁的第一个排队者
+     *
+     * @param lockName     锁名称
+     * @param waitTime     剩余等待时间（毫秒）
+     * @param parkTime     单次休眠上限（毫秒），通常为上次抢占返回的锁剩余时间，小于等于 0 时不限制
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则不再休眠
+     * @return true:收到锁释放消息或锁可能已过期，尝试抢占 false:等待超时
+     */
+    public boolean await(String lockName, long waitTime, long parkTime, int releaseCount) {
+        return await(new Waiter(lockName, Thread.currentThread(), null, false), waitTime, parkTime, releaseCount);
+    }
+
+    /**
+     * 以旁观者身份等待指定锁的下一次释放消息，每条消息唤醒所有旁观者（例如多 key 抢占）
+     *
+     * @param lockName     锁名称
+     * @param waitTime     等待时间（毫秒）
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则立即返回
+     * @return true:收到锁释放消息 false:等待超时
+     */
+    public boolean awaitRelease(String lockName, long waitTime, int releaseCount) {
+        return await(new Waiter(lockName, Thread.currentThread(), null, true), waitTime, 0L, releaseCount);
+    }
+
+    /**
+     * 登记等待者并休眠，直到被唤醒、到达单次休眠上限或等待超时
+     *
+     * @param waiter       等待者
+     * @param waitTime     等待时间（毫秒）
+     * @param parkTime     单次休眠上限（毫秒），小于等于 0 时不限制
+     * @param releaseCount 抢占前读取的锁释放消息次数
+     * @return true:被唤醒或到达单次休眠上限 false:等待超时
+     */
+    private boolean await(Waiter waiter, long waitTime, long parkTime, int releaseCount) {
+        final long now = System.nanoTime();
+        final long deadline = now + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        final long wakeup = now + TimeUnit.MILLISECONDS.toNanos(parkTime > 0 ? Math.min(waitTime, parkTime) : waitTime);
+        synchronized (this) {
+            waiters.add(waiter);
+        }
+        // 登记前已有释放消息（不一定是这把锁的），直接返回重试一次
+        if (this.releaseCount.get() != releaseCount) {
+            remove(waiter);
+            return true;
+        }
+        long nanos;
+        while (!waiter.signalled && (nanos = wakeup - System.nanoTime()) > 0L)
+            LockSupport.parkNanos(this, nanos);
+        // 超时的同时可能刚好被唤醒，移除失败说明唤醒已经属于当前线程
+        if (waiter.signalled || !remove(waiter)) {
+            waiter.signalled = true;
+            return true;
+        }
+        return deadline - System.nanoTime() > 0L;
+    }
+
+    /**
+     * 登记一次性的锁释放回调（例如异步抢占），与排队等待者按登记顺序共同排队，在收到锁释放消息的线程中执行，回调内不能阻塞
+     *
+     * @param lockName     锁名称
+     * @param callback     回调
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则立即执行
+     */
+    public void onRelease(String lockName, Runnable callback, int releaseCount) {
+        Waiter waiter = new Waiter(lockName, null, callback, false);
+        synchronized (this) {
+            waiters.add(waiter);
+        }
+        // 登记前已有释放消息：谁移除成功谁执行，保证回调只执行一次
+        if (this.releaseCount.get() != releaseCount && remove(waiter))
+            callback.run();
+    }
+
+    /**
+     * 移除尚未执行的锁释放回调
+     *
+     * @param callback 回调
+     */
+    public synchronized void removeReleaseCallback(Runnable callback) {
+        waiters.removeIf(waiter -> waiter.callback == callback);
+    }
+
+    /**
+     * 收到锁释放消息，唤醒等待该锁的所有旁观者与第一个排队者
+     *
+     * @param lockName 被释放的锁名称
+     */
+    public void signal(String lockName) {
+        releaseCount.incrementAndGet();
+        wake(lockName, true);
+    }
+
+    /**
+     * 把一次锁释放交给等待该锁的下一个排队者，被唤醒的回调对应的抢占已结束（超时、取消）时调用
+     *
+     * @param lockName 锁名称
+     */
+    public void passRelease(String lockName) {
+        wake(lockName, false);
+    }
+
+    /**
+     * 在监视器内摘除被唤醒的等待者，监视器外唤醒线程、执行回调
+     *
+     * @param lockName  锁名称
+     * @param observers 是否同时唤醒旁观者
+     */
+    private void wake(String lockName, boolean observers) {
+        List<Waiter> woken = new ArrayList<>();
+        synchronized (this) {
+            boolean first = true;
+            for (Iterator<Waiter> iterator = waiters.iterator(); iterator.hasNext(); ) {
+                Waiter waiter = iterator.next();
+                if (!waiter.lockName.equals(lockName))
+                    continue;
+                if (waiter.observer ? !observers : !first)
+                    continue;
+                if (!waiter.observer)
+                    first = false;
+                iterator.remove();
+                woken.add(waiter);
+            }
+        }
+        for (Waiter waiter : woken) {
+            waiter.signalled = true;
+            if (waiter.thread != null)
+                LockSupport.unpark(waiter.thread);
+            else
+                waiter.callback.run();
+        }
+    }
+
+    /**
+     * 移除等待者
+     *
+     * @param waiter 等待者
+     * @return true:移除成功 false:已被唤醒
+     */
+    private synchronized boolean remove(Waiter waiter) {
+        return waiters.remove(waiter);
+    }
+
+    /**
+     * 遍历等待者，按等待者回调其锁名称，用于监控
+     *
+     * @param consumer 回调，参数为锁名称
+     */
+    public synchronized void forEachWaiter(Consumer<String> consumer) {
+        for (Waiter waiter : waiters)
+            consumer.accept(waiter.lockName);
+    }
+
+    /**
+     * 等待者：排队等待的线程、旁观线程或锁释放回调
+     */
+    private static final class Waiter {
+
+        /**
+         * 等待的锁名称
+         */
+        final String lockName;
+
+        /**
+         * 等待线程，回调时为 null
+         */
+        final Thread thread;
+
+        /**
+         * 锁释放回调，等待线程时为 null
+         */
+        final Runnable callback;
+
+        /**
+         * 是否为旁观者
+         */
+        final boolean observer;
+
+        /**
+         * 是否已被唤醒
+         */
+        volatile boolean signalled;
+
+        Waiter(String lockName, Thread thread, Runnable callback, boolean observer) {
+            this.lockName = lockName;
+            this.thread = thread;
+            this.callback = callback;
+            this.observer = observer;
+        }
+    }
+
+}
@@ -1,29 +1,40 @@
 package extend.listener;
 
-import jdk.internal.vm.annotation.ReservedStackAccess;
-
 import java.lang.invoke.MethodHandles;
 import java.lang.invoke.VarHandle;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.AbstractOwnableSynchronizer;
 import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiPredicate;
 
 /**
  * @author 田奇杭
  * @Description 同步队列（数据模型参考AQS）
  * @Date 2023/5/15 22:08
  */
-public class SyncQueue extends AbstractOwnableSynchronizer {
+public class SyncQueue extends AbstractSyncQueue {
 
     // VarHandle mechanics
     private static final VarHandle HEAD;
     private static final VarHandle TAIL;
+    private static final VarHandle OWNER;
+
+    /**
+     * 多核才自旋，单核自旋只会挡住持有者
+     */
+    private static final boolean SPIN_ENABLED = Runtime.getRuntime().availableProcessors() > 1;
+
+    /**
+     * 自适应自旋次数的上下限
+     */
+    private static final int MIN_SPINS = 16;
+    private static final int MAX_SPINS = 1 << 10;
 
     static {
         try {
             MethodHandles.Lookup l = MethodHandles.lookup();
             HEAD = l.findVarHandle(SyncQueue.class, "head", Node.class);
             TAIL = l.findVarHandle(SyncQueue.class, "tail", Node.class);
+            OWNER = l.findVarHandle(SyncQueue.class, "owner", Thread.class);
         } catch (ReflectiveOperationException e) {
             throw new ExceptionInInitializerError(e);
         }
@@ -46,6 +57,33 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
      */
     private transient volatile Node tail;
 
+    /**
+     * 本地锁持有者（负责抢占分布式锁的线程），空闲时为 null，获取通过 CAS，
+     * 队列中有等待线程时由释放者直接移交给队首，不会出现空闲状态，因此自旋线程不会插队
+     */
+    private transient volatile Thread owner;
+
+    /**
+     * 本地持有者的重入次数（不含第一次获取），只由持有者线程读写；
+     * 易主（释放、交接、入队线程接手）时一定为 0
+     */
+    private int holdCount;
+
+    /**
+     * 自适应自旋次数：自旋成功时加倍，失败时减半
+     */
+    private volatile int spinLimit = MIN_SPINS;
+
+    /**
+     * 通过本地交接拿到分布式锁、尚未被自己确认的线程
+     */
+    private volatile Thread handoffThread;
+
+    /**
+     * 连续本地交接次数，分布式锁真正释放时清零
+     */
+    private volatile int handoffCount;
+
     /**
      * 检查并更新前置节点的状态。若线程应该阻塞，则返回 true
      * 硬指标：要求 pred == node.prev
@@ -90,57 +128,131 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
      * @return true:分布式锁已被释放，尝试抢占 false:等待超时
      */
     public final boolean acquire(long waitTime) {
-        if (tryAcquire())
-            return waitingForWakeup(waitTime, null);
-        else
-            return joinTheTeam(waitTime);
+        return acquire(waitTime, 0L);
     }
 
     /**
-     * 等待唤醒
+     * 获取本地JVM锁，同时登记等待线程期望的锁持续时间，本地交接时按该时间续期
      *
-     * @param waitTime 等待时间
-     * @param node     当前线程所代表的节点
-     * @return true:被唤醒 false:正常苏醒
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间（毫秒）
+     * @return true:分布式锁已被释放或已交接给当前线程 false:等待超时
+     */
+    public final boolean acquire(long waitTime, long leaseTime) {
+        return acquire(waitTime, leaseTime, 0L, getReleaseCount());
+    }
+
+    /**
+     * 获取本地JVM锁，单次休眠不超过分布式锁的剩余时间：持有者宕机或释放消息丢失时，
+     * 锁一过期就醒来重试，而不是睡满整个等待时间
+     *
+     * @param waitTime     剩余等待时间（毫秒）
+     * @param leaseTime    锁持续时间（毫秒）
+     * @param parkTime     单次休眠上限（毫秒），通常为上次抢占返回的锁剩余时间，小于等于 0 时不限制
+     * @param releaseCount 抢占前读取的锁释放消息次数，期间已有消息则不再休眠
+     * @return true:分布式锁已被释放、已过期或已交接给当前线程，尝试抢占 false:等待超时
+     */
+    public final boolean acquire(long waitTime, long leaseTime, long parkTime, int releaseCount) {
+        // 已持有本地锁，等待分布式锁的释放消息
+        if (owner == Thread.currentThread())
+            return waitingForWakeup(waitTime, parkTime, releaseCount, null);
+        // 刚拿到本地锁说明上一个持有者已经离开（释放或放弃），立即尝试抢占；
+        // 入队休眠前先短暂自旋，持有者很快释放时省去一次 park/unpark
+        if (tryAcquire() || spinAcquire())
+            return true;
+        return joinTheTeam(waitTime, leaseTime, parkTime);
+    }
+
+    /**
+     * 自旋等待本地锁空闲，自旋次数根据最近的成功率自适应调整
+     *
+     * @return true:自旋期间获取到本地锁（上一个持有者刚释放了分布式锁，可以立即尝试抢占）
      */
-    private boolean waitingForWakeup(long waitTime, Node node) {
+    private boolean spinAcquire() {
+        if (!SPIN_ENABLED)
+            return false;
         final Thread current = Thread.currentThread();
-        long l = TimeUnit.MILLISECONDS.toNanos(waitTime);
-        waitTime = System.currentTimeMillis() + waitTime;
-        LockSupport.parkNanos(current, l);
-        // 等待时间小于当前时间
-        if (waitTime < System.currentTimeMillis()) {
-            // 持有锁
-            if (getExclusiveOwnerThread() == current) {
-                // fifo 队列已初始化
-                if (hasQueuedPredecessors()) {
-                    release();
-                } else {
-                    // fifo 对列未初始化
-                    setExclusiveOwnerThread(null);
-                }
-            } else {
-                // 非 head 节点
-                cancelAcquire(node);
+        int limit = spinLimit;
+        for (int i = 0; i < limit; i++) {
+            if (owner == null && OWNER.compareAndSet(this, null, current)) {
+                spinLimit = Math.min(limit << 1, MAX_SPINS);
+                return true;
             }
-            return false;
+            Thread.onSpinWait();
+        }
+        spinLimit = Math.max(limit >> 1, MIN_SPINS);
+        return false;
+    }
+
+    /**
+     * 等待唤醒，最多休眠 parkTime，醒来时未到等待截止时间则返回 true 由调用方重试。
+     * 以释放消息次数而不是 unpark 许可判断是否被唤醒：释放消息可能在抢占分布式锁的途中到达，
+     * 许可会被等待 Redis 响应时的 park 消耗掉
+     *
+     * @param waitTime     等待时间
+     * @param parkTime     单次休眠上限，小于等于 0 时不限制
+     * @param releaseCount 抢占前读取的锁释放消息次数
+     * @param node         当前线程所代表的节点
+     * @return true:被唤醒或锁可能已过期 false:等待超时
+     */
+    private boolean waitingForWakeup(long waitTime, long parkTime, int releaseCount, Node node) {
+        final long now = System.nanoTime();
+        final long deadline = now + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        final long wakeup = now + TimeUnit.MILLISECONDS.toNanos(parkTime > 0 ? Math.min(waitTime, parkTime) : waitTime);
+        long nanos;
+        while (getReleaseCount() == releaseCount && (nanos = wakeup - System.nanoTime()) > 0L)
+            LockSupport.parkNanos(this, nanos);
+        // 已到等待截止时间
+        if (deadline - System.nanoTime() <= 0L) {
+            // 与本地交接互斥，超时的同时分布式锁可能刚好交接给了当前线程
+            return timeout(node);
         }
         return true;
     }
 
     /**
-     * 尝试获取前置锁
+     * 等待超时，与本地交接、释放互斥：超时的同时分布式锁可能刚好交接给了当前线程，
+     * 或者本地锁刚好移交给了当前线程，此时需要继续移交给下一个等待线程
      *
-     * @return true 成功 false 失败
+     * @param node 当前线程所代表的节点，持有者为 null
+     * @return true:分布式锁已交接给当前线程 false:等待超时
      */
-    @ReservedStackAccess
-    public synchronized boolean tryAcquire() {
+    private synchronized boolean timeout(Node node) {
         final Thread current = Thread.currentThread();
-        if (null == getExclusiveOwnerThread()) {
-            setExclusiveOwnerThread(current);
+        if (handoffThread == current)
             return true;
-        }
-        return current == getExclusiveOwnerThread();
+        // 持有锁
+        if (owner == current)
+            release();
+        else
+            // 非 head 节点
+            cancelAcquire(node);
+        return false;
+    }
+
+    /**
+     * 尝试获取前置锁，无锁 CAS；已是持有者时重入次数加一，每次成功都需要一次 release 对应
+     *
+     * @return true 成功 false 失败
+     */
+    public boolean tryAcquire() {
+        final Thread current = Thread.currentThread();
+        Thread o = owner;
+        if (o == null)
+            return OWNER.compareAndSet(this, null, current);
+        if (o != current)
+            return false;
+        holdCount++;
+        return true;
+    }
+
+    /**
+     * 当前线程是否为本地锁持有者
+     *
+     * @return true 是 false 否
+     */
+    public final boolean isHeldByCurrentThread() {
+        return owner == Thread.currentThread();
     }
 
     /**
@@ -151,11 +263,41 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
      * @return true:分布式锁已被释放，尝试抢占 false:等待超时
      */
     public boolean joinTheTeam(long waitTime) {
+        return joinTheTeam(waitTime, 0L, 0L);
+    }
+
+    /**
+     * 本地 JVM 锁已被抢占，入队等待，并登记期望的锁持续时间
+     *
+     * @param waitTime  等待时间
+     * @param leaseTime    锁持续时间（毫秒）
+     * @param parkTime     单次休眠上限（毫秒），成为本地持有者后若释放消息迟迟未到，锁过期时自行醒来重试
+     * @return true:分布式锁已被释放或已交接给当前线程 false:等待超时
+     */
+    private boolean joinTheTeam(long waitTime, long leaseTime, long parkTime) {
+        final Thread current = Thread.currentThread();
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitTime);
+        final long parkNanos = parkTime > 0 ? TimeUnit.MILLISECONDS.toNanos(parkTime) : Long.MAX_VALUE;
         Node node = addWaiter(Node.EXCLUSIVE);
+        node.leaseTime = leaseTime;
         try {
             for (; ; ) {
-                if (shouldParkAfterFailedAcquire(node.prev, node))
-                    return waitingForWakeup(waitTime, node);
+                Node p = node.prev;
+                // 排在队首且本地锁空闲（持有者释放时队列还是空的），直接成为持有者
+                if (p == head && owner == null && OWNER.compareAndSet(this, null, current)) {
+                    setHead(node);
+                    p.next = null;
+                    return true;
+                }
+                if (!shouldParkAfterFailedAcquire(p, node))
+                    continue;
+                long nanos = deadline - System.nanoTime();
+                if (nanos <= 0L)
+                    return timeout(node);
+                LockSupport.parkNanos(this, Math.min(nanos, parkNanos));
+                // 被释放消息唤醒（本地锁已移交给当前线程）或分布式锁已交接给当前线程
+                if (owner == current || handoffThread == current)
+                    return true;
             }
         } catch (Exception t) {
             cancelAcquire(node);
@@ -185,36 +327,112 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
     }
 
     /**
-     * 唤醒 head 节点，使其能够尝试获取分布式锁
+     * 唤醒本地锁持有者，使其能够尝试获取分布式锁
      *
      * @return true:唤醒成功
      */
+    @Override
     public final boolean doSignal() {
-        if (head != null)
-            LockSupport.unpark(getExclusiveOwnerThread());
+        // 队列未初始化时持有者同样在等待释放消息，不能以 head 判断
+        LockSupport.unpark(owner);
+        return true;
+    }
+
+    /**
+     * 本地交接：持有分布式锁的线程释放时，若本地还有等待线程，直接把分布式锁转交给队首等待线程，
+     * 不释放 Redis 中的锁。选择队首、转交分布式锁、切换本地持有者在同一把监视器下完成，
+     * 与等待线程的超时取消互斥，转交成功后队首线程一定能感知到交接
+     *
+     * @param transfer 转交分布式锁，参数为接手线程与其期望的锁持续时间，返回 true 表示转交成功
+     * @return true:交接成功 false:重入未归零、没有可交接的等待线程或转交失败，本地锁状态不变
+     */
+    public final synchronized boolean handoff(BiPredicate<Thread, Long> transfer) {
+        if (Thread.currentThread() != owner)
+            throw new IllegalMonitorStateException();
+        // 重入未归零时本地锁不易主
+        Node h = head;
+        if (holdCount > 0 || h == null)
+            return false;
+        Node s = tailIteration(h);
+        Thread next;
+        if (s == null || (next = s.thread) == null || !transfer.test(next, s.leaseTime))
+            return false;
+        handoffThread = next;
+        handoffCount++;
+        setHead(s);
+        h.next = null;
+        LockSupport.unpark(next);
+        return true;
+    }
+
+    /**
+     * 确认本地交接，当前线程是交接对象时清除交接标记
+     *
+     * @return true:分布式锁已交接给当前线程
+     */
+    public final boolean takeHandoff() {
+        if (handoffThread != Thread.currentThread())
+            return false;
+        handoffThread = null;
         return true;
     }
 
     /**
-     * 释放 JVM 本地锁
+     * 连续本地交接次数
+     *
+     * @return 交接次数
+     */
+    public final int getHandoffCount() {
+        return handoffCount;
+    }
+
+    /**
+     * 分布式锁真正释放，连续交接次数清零
+     */
+    public final void resetHandoffCount() {
+        handoffCount = 0;
+    }
+
+    /**
+     * 释放 JVM 本地锁：重入时只将重入次数减一；否则有等待线程时直接移交给队首并唤醒它立即尝试抢占，
+     * 没有则置为空闲。与超时取消互斥，保证移交的目标不会同时在取消
      */
-    @ReservedStackAccess
-    public final void release() {
-        if (Thread.currentThread() != getExclusiveOwnerThread())
+    public final synchronized void release() {
+        if (Thread.currentThread() != owner)
             throw new IllegalMonitorStateException();
-        // 队列尚未初始化
-        if (!hasQueuedPredecessors()) {
-            setExclusiveOwnerThread(null);
+        if (holdCount > 0) {
+            holdCount--;
             return;
         }
         Node h = head;
-        Node s = h.next != null ? h.next : tailIteration(h);
-        if (s != null) {
+        Node s = h != null ? tailIteration(h) : null;
+        Thread next;
+        if (s != null && (next = s.thread) != null) {
             setHead(s);
-        } else {
-            setExclusiveOwnerThread(null);
+            h.next = null;
+            LockSupport.unpark(next);
+            return;
         }
-        h.next = null;
+        owner = null;
+        // 置为空闲后再检查一次：入队线程可能在上面的检查之后、置空之前已经休眠，唤醒它重新竞争
+        h = head;
+        if (h != null && (s = tailIteration(h)) != null && s.thread != null)
+            LockSupport.unpark(s.thread);
+    }
+
+    /**
+     * 当前在本地排队的等待线程数量，不含持有者
+     *
+     * @return 等待线程数量
+     */
+    @Override
+    public final int getQueueLength() {
+        int n = 0;
+        for (Node p = tail; p != null; p = p.prev) {
+            if (p.thread != null)
+                ++n;
+        }
+        return n;
     }
 
     /**
@@ -248,7 +466,7 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
      */
     private void setHead(Node node) {
         head = node;
-        setExclusiveOwnerThread(node.thread);
+        owner = node.thread;
         node.thread = null;
         node.prev = null;
     }
@@ -265,7 +483,7 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
         if (node == null)
             return;
         // node 身份发生变化时，走特殊流程
-        if (node == head || node.thread == getExclusiveOwnerThread()) {
+        if (node == head || node.thread == owner) {
             release();
             return;
         }
@@ -442,6 +660,10 @@ public class SyncQueue extends AbstractOwnableSynchronizer {
          * construction and nulled out after use.
          */
         volatile Thread thread;
+        /**
+         * 等待线程期望的锁持续时间（毫秒），本地交接时使用
+         */
+        volatile long leaseTime;
         /**
          * Link to next node waiting on condition, or the special
          * value SHARED.  Because condition queues are accessed only
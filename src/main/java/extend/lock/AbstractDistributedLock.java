@@ -1,38 +1,114 @@
 package extend.lock;
 
 
+import extend.annotation.DistributedLock;
+import extend.config.DistributedLockProperties;
+import extend.enums.DistributedLockModeEnum;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 
 /**
  * @author 田奇杭
- * @Description 分布式锁基类
+ * @Description 分布式锁基类，只包含所有锁类型都支持的同步加锁与释放。
+ * 异步与响应式加锁（tryLockAsync、acquire、withLock）只有普通锁实现，定义在 OrdinaryDistributedLock 上，
+ * 其他锁类型的等待依赖线程休眠，不提供异步接口
  * @Date 2023/5/10 23:48
  */
 public abstract class AbstractDistributedLock {
 
-    /**
-     * 锁名称基本格式
-     * 锁类型:{关键字}
-     */
-    protected static final String LOCK_NAME_FORMAT = "%s:{%s}";
-
     /**
      * 线程标识，与线程ID拼接保证多服务器下的抢占线程唯一，
      * 避免多服务器下线程名称一致导致的错误重入（系统启动时的时间戳能够满足随机需求，后期可以考虑使用雪花算法，那样更安全）
      */
     protected static final Long THREAD_FLAG = System.currentTimeMillis();
 
+    /**
+     * 脚本片段：读取 Redis 服务端时间（毫秒）到局部变量 now，必须放在脚本开头。
+     * 按时间判断持有者或等待者是否过期的脚本一律使用服务端时间，各节点的时钟偏差不会让存活的持有者被提前清理；
+     * TIME 之后还要执行写命令，先切换为按效果复制（Redis 5 起为默认行为，3.2 ~ 4 需要显式开启）
+     */
+    protected static final String SERVER_TIME_SCRIPT = "redis.replicate_commands(); \n" +
+            "local serverTime = redis.call('TIME'); \n" +
+            "local now = tonumber(serverTime[1]) * 1000 + math.floor(tonumber(serverTime[2]) / 1000); \n";
+
+    /**
+     * 锁续期看门狗
+     */
+    @Resource
+    protected LeaseWatchdog leaseWatchdog;
+
+    /**
+     * 监控指标
+     */
+    @Resource
+    protected LockMetrics lockMetrics;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    protected DistributedLockProperties distributedLockProperties;
+
     /**
      * 尝试获取锁
      *
      * @param key       锁名称
      * @param waitTime  等待时间
-     * @param leaseTime 锁持续时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
      * @param unit      时间单位
      * @return true:抢占成功 false:抢占失败
      */
     public abstract boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit);
 
+    /**
+     * 按读写模式尝试获取锁，不区分读写的锁类型忽略模式
+     *
+     * @param key       锁名称
+     * @param mode      读写模式
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    public boolean tryLock(String key, DistributedLockModeEnum mode, long waitTime, long leaseTime, TimeUnit unit) {
+        return tryLock(key, waitTime, leaseTime, unit);
+    }
+
+    /**
+     * 按注解配置尝试获取锁，切面统一入口，需要额外注解属性的锁类型覆盖此方法
+     *
+     * @param key             锁名称
+     * @param distributedLock 分布式锁注解
+     * @return true:抢占成功 false:抢占失败
+     */
+    public boolean tryLock(String key, DistributedLock distributedLock) {
+        return tryLock(key, distributedLock.mode(), distributedLock.waitTime(), distributedLock.leaseTime(), distributedLock.timeUnit());
+    }
+
+    /**
+     * 按注解配置同时获取多把锁，全部成功或全部失败，切面统一入口。
+     * 默认按关键字排序后逐个获取，任意一个失败时释放已获取的锁；支持单脚本批量抢占的锁类型覆盖此方法
+     *
+     * @param keys            锁名称集合
+     * @param distributedLock 分布式锁注解
+     * @return true:全部抢占成功 false:抢占失败
+     */
+    public boolean tryLock(List<String> keys, DistributedLock distributedLock) {
+        List<String> sortedKeys = new ArrayList<>(new TreeSet<>(keys));
+        for (int i = 0; i < sortedKeys.size(); i++) {
+            if (tryLock(sortedKeys.get(i), distributedLock))
+                continue;
+            for (int j = i - 1; j >= 0; j--)
+                unLock(sortedKeys.get(j), distributedLock);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * 获取锁
      *
@@ -51,6 +127,45 @@ public abstract class AbstractDistributedLock {
      */
     public abstract boolean unLock(String key, long leaseTime, TimeUnit unit);
 
+    /**
+     * 按读写模式释放锁，不区分读写的锁类型忽略模式
+     *
+     * @param key       锁名称
+     * @param mode      读写模式
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    public boolean unLock(String key, DistributedLockModeEnum mode, long leaseTime, TimeUnit unit) {
+        return unLock(key, leaseTime, unit);
+    }
+
+    /**
+     * 按注解配置释放锁，切面统一入口
+     *
+     * @param key             锁名称
+     * @param distributedLock 分布式锁注解
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    public boolean unLock(String key, DistributedLock distributedLock) {
+        return unLock(key, distributedLock.mode(), distributedLock.leaseTime(), distributedLock.timeUnit());
+    }
+
+    /**
+     * 按注解配置释放多把锁，切面统一入口
+     *
+     * @param keys            锁名称集合
+     * @param distributedLock 分布式锁注解
+     * @return true：全部释放成功 false：存在释放失败的锁
+     */
+    public boolean unLock(List<String> keys, DistributedLock distributedLock) {
+        List<String> sortedKeys = new ArrayList<>(new TreeSet<>(keys));
+        boolean flag = true;
+        for (int i = sortedKeys.size() - 1; i >= 0; i--)
+            flag &= unLock(sortedKeys.get(i), distributedLock);
+        return flag;
+    }
+
     /**
      * 组装锁名称
      *
@@ -59,5 +174,49 @@ public abstract class AbstractDistributedLock {
      */
     public abstract String assembleLockName(String keyword);
 
+    /**
+     * 按配置的 hash tag 策略组装锁名称，基本格式为 锁类型:{关键字}
+     *
+     * @param type    锁类型
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    protected String assembleLockName(String type, String keyword) {
+        return distributedLockProperties.getHashTagStrategy().assemble(type, keyword);
+    }
+
+    /**
+     * 是否为看门狗模式
+     *
+     * @param leaseTime 锁持续时间
+     * @return true:看门狗模式
+     */
+    protected boolean isWatchdogMode(long leaseTime) {
+        return leaseTime <= 0;
+    }
+
+    /**
+     * 单次休眠时间：不超过剩余等待时间，也不超过锁的剩余时间，
+     * 持有者宕机或释放消息丢失时锁一过期就醒来重试
+     *
+     * @param remain 剩余等待时间（毫秒）
+     * @param ttl    上次抢占失败时锁的剩余时间（毫秒），null 或小于等于 0 时视为未知
+     * @return 休眠时间（毫秒）
+     */
+    protected long parkTime(long remain, Long ttl) {
+        return ttl != null && ttl > 0 ? Math.min(remain, ttl) : remain;
+    }
+
+    /**
+     * 实际写入 Redis 的锁持续时间，看门狗模式下使用较短的续期时间
+     *
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return 锁持续时间（毫秒）
+     */
+    protected long internalLeaseTime(long leaseTime, TimeUnit unit) {
+        return isWatchdogMode(leaseTime) ? leaseWatchdog.getLeaseTime() : unit.toMillis(leaseTime);
+    }
+
 
 }
@@ -0,0 +1,362 @@
+package extend.lock;
+
+import extend.listener.FairSyncQueue;
+import extend.listener.PublishSubscribe;
+import extend.script.LuaScriptRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 公平分布式锁，所有节点的等待线程在 Redis 中排成一个先进先出队列，锁只授予队首线程。
+ * 锁结构与普通锁相同（hash），另有等待队列（list）与等待超时（zset，分值为条目过期时间），三个 key 在同一个 slot；
+ * 等待线程定期刷新自己的超时时间，宕机节点的等待条目过期（按 Redis 服务端时间计算，不受各节点时钟偏差影响）后由脚本清理。
+ * 释放锁时只发布下一个应获取锁的线程标识，各节点只唤醒该线程。
+ * 等待队列、续期与释放消息都直接依赖 Redis，只在 Redis 锁引擎下装配
+ * @Date 2023/6/18 20:30
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "redis", matchIfMissing = true)
+public class FairDistributedLock extends AbstractDistributedLock {
+
+    /**
+     * 等待队列名称后缀
+     */
+    private static final String QUEUE_SUFFIX = ":queue";
+
+    /**
+     * 等待超时名称后缀
+     */
+    private static final String TIMEOUT_SUFFIX = ":timeout";
+
+    /**
+     * 清理等待队列队首已超时的条目，脚本片段，不读取 ARGV
+     * KEYS[2]: 等待队列
+     * KEYS[3]: 等待超时
+     * 依赖 SERVER_TIME_SCRIPT 定义的 now（Redis 服务端毫秒时间）
+     */
+    private static final String CLEAN_QUEUE_SCRIPT = "while true do \n" +
+            "    local first = redis.call('LINDEX', KEYS[2], 0); \n" +
+            "    if (first == false) then \n" +
+            "        break; \n" +
+            "    end; \n" +
+            "    local timeout = redis.call('ZSCORE', KEYS[3], first); \n" +
+            "    if (timeout ~= false) and (tonumber(timeout) > now) then \n" +
+            "        break; \n" +
+            "    end; \n" +
+            "    redis.call('LPOP', KEYS[2]); \n" +
+            "    redis.call('ZREM', KEYS[3], first); \n" +
+            "end; \n";
+
+    /**
+     * 公平分布式锁lua脚本-抢占
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 等待队列
+     * KEYS[3]: 等待超时
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 线程标识
+     * ARGV[3]: 等待条目超时时间
+     * 返回值: nil:成功 !nil:锁剩余时间，当前线程已进入（或刷新）等待队列
+     */
+    private static final String FAIR_LOCK_SCRIPT = SERVER_TIME_SCRIPT + CLEAN_QUEUE_SCRIPT +
+            "if (redis.call('EXISTS', KEYS[1]) == 0) then \n" +
+            "    local first = redis.call('LINDEX', KEYS[2], 0); \n" +
+            "    if (first == false) or (first == ARGV[2]) then \n" +
+            "        if (first ~= false) then \n" +
+            "            redis.call('LPOP', KEYS[2]); \n" +
+            "            redis.call('ZREM', KEYS[3], ARGV[2]); \n" +
+            "        end; \n" +
+            "        redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "        redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "        return nil; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (redis.call('ZADD', KEYS[3], now + tonumber(ARGV[3]), ARGV[2]) == 1) then \n" +
+            "    redis.call('RPUSH', KEYS[2], ARGV[2]); \n" +
+            "end; \n" +
+            "redis.call('PEXPIRE', KEYS[2], tonumber(ARGV[3])); \n" +
+            "redis.call('PEXPIRE', KEYS[3], tonumber(ARGV[3])); \n" +
+            "return redis.call('PTTL', KEYS[1]);";
+
+    /**
+     * 公平分布式锁lua脚本-释放
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 等待队列
+     * KEYS[3]: 等待超时
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 线程标识
+     * ARGV[3]: 锁释放频道
+     * 返回值: nil:未持有锁 0:重入次数减一 1:已释放，并向频道发布下一个应获取锁的线程标识
+     */
+    private static final String FAIR_UNLOCK_SCRIPT = SERVER_TIME_SCRIPT + "local count = redis.call('HGET', KEYS[1], ARGV[2]); \n" +
+            "if (count == false) then \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (tonumber(count) > 1) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], -1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], ARGV[1]); \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "redis.call('DEL', KEYS[1]); \n" +
+            CLEAN_QUEUE_SCRIPT +
+            "local next = redis.call('LINDEX', KEYS[2], 0); \n" +
+            "if (next ~= false) then \n" +
+            "    redis.call('PUBLISH', ARGV[3], next); \n" +
+            "end; \n" +
+            "return 1;";
+
+    /**
+     * 公平分布式锁lua脚本-放弃等待
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 等待队列
+     * KEYS[3]: 等待超时
+     * ARGV[1]: 线程标识
+     * ARGV[2]: 锁释放频道
+     * 放弃的可能是队首，锁空闲时通知新的队首
+     */
+    private static final String FAIR_CANCEL_SCRIPT = SERVER_TIME_SCRIPT + "redis.call('ZREM', KEYS[3], ARGV[1]); \n" +
+            "if (redis.call('LREM', KEYS[2], 0, ARGV[1]) == 0) then \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "if (redis.call('EXISTS', KEYS[1]) == 0) then \n" +
+            CLEAN_QUEUE_SCRIPT +
+            "    local next = redis.call('LINDEX', KEYS[2], 0); \n" +
+            "    if (next ~= false) then \n" +
+            "        redis.call('PUBLISH', ARGV[2], next); \n" +
+            "    end; \n" +
+            "end; \n" +
+            "return 1;";
+
+    /**
+     * 锁释放监听
+     */
+    @Resource
+    private PublishSubscribe publishSubscribe;
+
+    /**
+     * Lua 脚本注册中心
+     */
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    /**
+     * 抢占脚本
+     */
+    private RedisScript<Long> lockScript;
+
+    /**
+     * 释放脚本
+     */
+    private RedisScript<Long> unLockScript;
+
+    /**
+     * 放弃等待脚本
+     */
+    private RedisScript<Long> cancelScript;
+
+    /**
+     * 注册脚本，由注册中心在启动时统一预加载
+     */
+    @PostConstruct
+    public void registerScript() {
+        lockScript = luaScriptRegistry.register(FairDistributedLock.FAIR_LOCK_SCRIPT, Long.class);
+        unLockScript = luaScriptRegistry.register(FairDistributedLock.FAIR_UNLOCK_SCRIPT, Long.class);
+        cancelScript = luaScriptRegistry.register(FairDistributedLock.FAIR_CANCEL_SCRIPT, Long.class);
+    }
+
+    /**
+     * 尝试获取锁
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long waiterTimeout = distributedLockProperties.getFairWaiterTimeout();
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        long start = lockMetrics.start();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+        List<String> keys = assembleKeys(lockName);
+
+        // 获取分布式锁对应的JVM本地等待队列，持有引用直到抢占失败或释放锁
+        FairSyncQueue syncQueue = publishSubscribe.acquireSyncQueue(lockName,
+                () -> new FairSyncQueue(thread -> AbstractDistributedLock.THREAD_FLAG + thread.getId()));
+        boolean locked = false;
+        boolean subscribed = false;
+
+        try {
+            for (; ; ) {
+                // 抢占前读取唤醒次数，抢占失败后若期间已轮到当前线程则不再休眠
+                int signalCount = syncQueue.getSignalCount();
+                // 尝试设置分布式锁，失败时进入（或刷新）Redis 等待队列
+                Long ttl = tryAcquireDistributedLock(keys, internalLeaseTime, threadFlag, waiterTimeout);
+                // 设置分布式锁成功
+                if (ttl == null) {
+                    // 看门狗模式登记续期
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, threadFlag);
+                    locked = true;
+                    lockMetrics.acquired(lockName, start);
+                    return true;
+                }
+                if (!subscribed) {
+                    // 首次需要等待时订阅锁释放频道，订阅生效前的释放消息可能已经错过，订阅后立即重试一次
+                    publishSubscribe.subscribe(lockName);
+                    subscribed = true;
+                    continue;
+                }
+                // 等待轮到当前线程，最长休眠半个等待条目超时时间，醒来后重试以刷新等待条目
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    cancelDistributedLock(keys, threadFlag);
+                    lockMetrics.failed(lockName, false);
+                    return false;
+                }
+                syncQueue.await(false, Math.min(parkTime(remain, ttl), Math.max(waiterTimeout / 2, 1L)), signalCount);
+            }
+        } finally {
+            if (subscribed)
+                publishSubscribe.unsubscribe(lockName);
+            if (!locked)
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+        }
+    }
+
+    /**
+     * 获取锁
+     *
+     * @param key 锁名称
+     * @return true：抢占成功 false：抢占失败
+     */
+    @Override
+    public boolean lock(String key) {
+        return false;
+    }
+
+    /**
+     * 释放锁
+     *
+     * @param key       锁名称
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    @Override
+    public boolean unLock(String key, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        // 取消续期
+        if (isWatchdogMode(leaseTime))
+            leaseWatchdog.unwatch(lockName, threadFlag);
+
+        // 执行释放分布式锁脚本
+        Long flag = unDistributedLock(assembleKeys(lockName), internalLeaseTime, threadFlag);
+
+        // 释放抢占时持有的引用
+        FairSyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
+        if (syncQueue != null)
+            publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+
+        return flag != null;
+    }
+
+    /**
+     * 组装锁名称
+     *
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    @Override
+    public String assembleLockName(String keyword) {
+        return assembleLockName("fair", keyword);
+    }
+
+    /**
+     * 组装脚本 key：锁名称、等待队列、等待超时，共用锁名称中的 hash tag
+     *
+     * @param lockName 锁名称
+     * @return 脚本 key
+     */
+    private List<String> assembleKeys(String lockName) {
+        return Arrays.asList(lockName, lockName + QUEUE_SUFFIX, lockName + TIMEOUT_SUFFIX);
+    }
+
+    /**
+     * 尝试获取分布式锁
+     *
+     * @param keys          脚本 key
+     * @param current       持续时间
+     * @param threadId      线程标识
+     * @param waiterTimeout 等待条目超时时间
+     * @return null:成功 !null:失败
+     */
+    private Long tryAcquireDistributedLock(List<String> keys, long current, long threadId, long waiterTimeout) {
+        try {
+            return luaScriptRegistry.execute(lockScript, keys, String.valueOf(current), String.valueOf(threadId),
+                    String.valueOf(waiterTimeout));
+        } catch (Exception e) {
+            log.error("tryAcquireDistributedLock fail key:{}, current:{}, threadId:{}, e:", keys.get(0), current, threadId, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * 释放分布式锁
+     *
+     * @param keys     脚本 key
+     * @param current  持续时间
+     * @param threadId 线程标识
+     * @return null:失败 !null:成功
+     */
+    private Long unDistributedLock(List<String> keys, long current, long threadId) {
+        try {
+            return luaScriptRegistry.execute(unLockScript, keys, String.valueOf(current), String.valueOf(threadId),
+                    PublishSubscribe.getChannelName(keys.get(0)));
+        } catch (Exception e) {
+            log.error("unDistributedLock fail key:{}, current:{}, threadId:{}, e:", keys.get(0), current, threadId, e);
+        }
+        return null;
+    }
+
+    /**
+     * 等待超时，退出 Redis 等待队列
+     *
+     * @param keys     脚本 key
+     * @param threadId 线程标识
+     */
+    private void cancelDistributedLock(List<String> keys, long threadId) {
+        try {
+            luaScriptRegistry.execute(cancelScript, keys, String.valueOf(threadId), PublishSubscribe.getChannelName(keys.get(0)));
+        } catch (Exception e) {
+            log.error("cancelDistributedLock fail key:{}, threadId:{}, e:", keys.get(0), threadId, e);
+        }
+    }
+
+}
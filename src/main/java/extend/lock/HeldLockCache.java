@@ -0,0 +1,169 @@
+package extend.lock;
+
+import extend.config.DistributedLockProperties;
+import extend.engine.LockEngine;
+import extend.engine.LockReleaseListener;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 已被其他持有者占用的锁的本地缓存（负缓存）：抢占脚本返回锁的剩余时间时记录 锁名称 -> 占用截止时间，
+ * 不等待的抢占命中缓存时直接失败，不访问 Redis。
+ * 记录时订阅锁的释放频道，释放消息到达时立即失效；订阅生效前错过的释放消息最多造成 negativeCacheMaxTtl 的误判，
+ * 条目的有效期同样不超过该值。订阅在条目失效后由清理线程统一取消，热点锁在多次占用之间复用同一个订阅
+ * @Date 2023/6/30 20:18
+ */
+@Slf4j
+@Component
+public class HeldLockCache implements LockReleaseListener {
+
+    /**
+     * key: 锁名称
+     * value: 占用截止时间（毫秒）
+     */
+    private final Map<String, Long> heldUntilMap = new ConcurrentHashMap<>();
+
+    /**
+     * 已订阅释放频道的锁名称
+     */
+    private final Set<String> subscribedSet = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 清理线程，未开启时为 null
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 锁引擎
+     */
+    @Resource
+    private LockEngine lockEngine;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * 开启时启动清理线程，每个条目最长有效期清理一次
+     */
+    @PostConstruct
+    public void start() {
+        if (!distributedLockProperties.isNegativeCacheEnabled())
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-negative-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(distributedLockProperties.getNegativeCacheMaxTtl(), 1L);
+        scheduler.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止清理线程
+     */
+    @PreDestroy
+    public void stop() {
+        if (scheduler != null)
+            scheduler.shutdownNow();
+    }
+
+    /**
+     * 锁是否已知被其他持有者占用，只有等待时间不超过 negativeCacheMaxWaitTime 的抢占才使用缓存
+     *
+     * @param lockName 锁名称
+     * @param waitTime 等待时间（毫秒）
+     * @return true:已知被占用，可以直接失败
+     */
+    public boolean isHeld(String lockName, long waitTime) {
+        if (scheduler == null || waitTime > distributedLockProperties.getNegativeCacheMaxWaitTime())
+            return false;
+        Long heldUntil = heldUntilMap.get(lockName);
+        if (heldUntil == null)
+            return false;
+        if (heldUntil > System.currentTimeMillis())
+            return true;
+        heldUntilMap.remove(lockName, heldUntil);
+        return false;
+    }
+
+    /**
+     * 记录锁被其他持有者占用，条目数量达到上限时不再记录新的锁
+     *
+     * @param lockName 锁名称
+     * @param ttl      抢占脚本返回的锁剩余时间（毫秒），小于等于 0 时不记录
+     */
+    public void put(String lockName, Long ttl) {
+        if (scheduler == null || ttl == null || ttl <= 0)
+            return;
+        if (heldUntilMap.size() >= distributedLockProperties.getNegativeCacheMaxSize() && !heldUntilMap.containsKey(lockName))
+            return;
+        heldUntilMap.put(lockName, System.currentTimeMillis() + Math.min(ttl, distributedLockProperties.getNegativeCacheMaxTtl()));
+        if (subscribedSet.add(lockName))
+            lockEngine.subscribe(lockName, this);
+    }
+
+    /**
+     * 锁已释放，移除缓存
+     *
+     * @param lockName 锁名称
+     */
+    public void invalidate(String lockName) {
+        if (scheduler != null)
+            heldUntilMap.remove(lockName);
+    }
+
+    /**
+     * 锁释放消息，移除缓存，订阅留给清理线程取消
+     *
+     * @param lockName 被释放的锁名称
+     * @param message  锁释放消息内容
+     */
+    @Override
+    public void onRelease(String lockName, String message) {
+        heldUntilMap.remove(lockName);
+    }
+
+    /**
+     * 清理过期条目，取消已没有条目的锁的订阅
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            heldUntilMap.entrySet().removeIf(entry -> entry.getValue() <= now);
+            for (Iterator<String> iterator = subscribedSet.iterator(); iterator.hasNext(); ) {
+                String lockName = iterator.next();
+                if (heldUntilMap.containsKey(lockName))
+                    continue;
+                iterator.remove();
+                lockEngine.unsubscribe(lockName, this);
+            }
+        } catch (Exception e) {
+            log.error("HeldLockCache.sweep fail e:", e);
+        }
+    }
+
+    /**
+     * 当前缓存的锁数量
+     *
+     * @return 锁数量
+     */
+    public int size() {
+        return heldUntilMap.size();
+    }
+
+}
@@ -0,0 +1,309 @@
+package extend.lock;
+
+import extend.config.DistributedLockProperties;
+import extend.engine.LockEngine;
+import extend.script.LuaScriptRegistry;
+import io.lettuce.core.cluster.SlotHash;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 锁续期看门狗，单个调度线程负责本 JVM 持有的所有看门狗模式的锁。
+ * hash 结构的锁交给锁引擎批量续期；使用自定义续期脚本的锁按 slot 分组，每组一次多 key 脚本调用，所有分组放在同一个 pipeline 中一次往返完成
+ * @Date 2023/6/4 21:02
+ */
+@Slf4j
+@Component
+public class LeaseWatchdog {
+
+    /**
+     * 需要续期的锁
+     * key: 锁名称 + 持有者字段
+     * value: 续期条目
+     */
+    private final Map<String, WatchEntry> watchEntryMap = new ConcurrentHashMap<>();
+
+    /**
+     * 续期调度线程
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Lua 脚本注册中心
+     */
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    /**
+     * 锁引擎，负责 hash 结构的锁的续期
+     */
+    @Resource
+    private LockEngine lockEngine;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * 启动调度线程
+     */
+    @PostConstruct
+    public void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "lock-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(getLeaseTime() / 3, 1L);
+        scheduler.scheduleAtFixedRate(this::renew, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止调度线程
+     */
+    @PreDestroy
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 看门狗模式下的锁持续时间
+     *
+     * @return 锁持续时间（毫秒）
+     */
+    public long getLeaseTime() {
+        return distributedLockProperties.getWatchdogLeaseTime();
+    }
+
+    /**
+     * 加锁成功后登记续期，重入时只增加计数
+     *
+     * @param lockName   锁名称
+     * @param threadFlag 线程标识
+     */
+    public void watch(String lockName, long threadFlag) {
+        watch(lockName, String.valueOf(threadFlag));
+    }
+
+    /**
+     * 加锁成功后登记续期，重入时只增加计数，由锁引擎续期
+     *
+     * @param lockName 锁名称
+     * @param field    锁 hash 中代表持有者的字段
+     */
+    public void watch(String lockName, String field) {
+        watch(lockName, field, null);
+    }
+
+    /**
+     * 加锁成功后登记续期，使用锁类型自己的续期脚本。
+     * 续期脚本参数 KEYS[1..n]: 锁名称 ARGV[1]: 锁持续时间 ARGV[2..n+1]: 与 KEYS 一一对应的持有者字段，
+     * 返回值与 KEYS 一一对应，1:续期成功 0:锁已不属于该持有者
+     *
+     * @param lockName    锁名称
+     * @param field       锁中代表持有者的字段
+     * @param renewScript 续期脚本，为 null 时由锁引擎续期
+     */
+    public void watch(String lockName, String field, RedisScript<List<Long>> renewScript) {
+        watchEntryMap.compute(entryKey(lockName, field), (k, entry) -> {
+            if (entry == null)
+                entry = new WatchEntry(lockName, field, renewScript);
+            entry.holdCount++;
+            return entry;
+        });
+    }
+
+    /**
+     * 释放锁后取消续期，重入计数归零时移出续期集合
+     *
+     * @param lockName   锁名称
+     * @param threadFlag 线程标识
+     */
+    public void unwatch(String lockName, long threadFlag) {
+        unwatch(lockName, String.valueOf(threadFlag));
+    }
+
+    /**
+     * 释放锁后取消续期，重入计数归零时移出续期集合
+     *
+     * @param lockName 锁名称
+     * @param field    锁中代表持有者的字段
+     */
+    public void unwatch(String lockName, String field) {
+        watchEntryMap.computeIfPresent(entryKey(lockName, field), (k, entry) -> --entry.holdCount > 0 ? entry : null);
+    }
+
+    /**
+     * 当前正在续期的锁数量
+     *
+     * @return 锁数量
+     */
+    public int size() {
+        return watchEntryMap.size();
+    }
+
+    /**
+     * 续期所有持有的锁
+     */
+    void renew() {
+        if (watchEntryMap.isEmpty())
+            return;
+
+        // 引擎续期的锁一次批量续期；自定义脚本按脚本与 slot 分组，保证集群下每次脚本调用的 key 都在同一个 slot
+        List<WatchEntry> engineEntries = new ArrayList<>();
+        Map<RedisScript<List<Long>>, Map<Integer, List<WatchEntry>>> scriptMap = new HashMap<>();
+        for (WatchEntry entry : watchEntryMap.values()) {
+            if (entry.renewScript == null)
+                engineEntries.add(entry);
+            else
+                scriptMap.computeIfAbsent(entry.renewScript, k -> new TreeMap<>())
+                        .computeIfAbsent(SlotHash.getSlot(entry.lockName), k -> new ArrayList<>()).add(entry);
+        }
+
+        if (!engineEntries.isEmpty())
+            renew(engineEntries);
+        for (Map.Entry<RedisScript<List<Long>>, Map<Integer, List<WatchEntry>>> scriptEntry : scriptMap.entrySet())
+            renew(scriptEntry.getKey(), new ArrayList<>(scriptEntry.getValue().values()));
+    }
+
+    /**
+     * 由锁引擎批量续期
+     *
+     * @param entries 续期条目
+     */
+    private void renew(List<WatchEntry> entries) {
+        List<String> lockNames = new ArrayList<>(entries.size());
+        List<String> fields = new ArrayList<>(entries.size());
+        for (WatchEntry entry : entries) {
+            lockNames.add(entry.lockName);
+            fields.add(entry.field);
+        }
+
+        List<Boolean> results;
+        try {
+            results = lockEngine.renew(lockNames, fields, getLeaseTime());
+        } catch (Exception e) {
+            log.error("LeaseWatchdog.renew fail size:{}, e:", entries.size(), e);
+            return;
+        }
+
+        // 续期失败说明锁已过期或被其他线程持有，不再续期
+        for (int i = 0; i < entries.size(); i++) {
+            if (Boolean.TRUE.equals(results.get(i)))
+                continue;
+            lost(entries.get(i));
+        }
+    }
+
+    /**
+     * 使用同一个续期脚本续期多组锁，每组一次脚本调用，所有分组在同一个 pipeline 中
+     *
+     * @param renewScript 续期脚本
+     * @param groups      按 slot 分好的组
+     */
+    private void renew(RedisScript<List<Long>> renewScript, List<List<WatchEntry>> groups) {
+        List<List<String>> keysList = new ArrayList<>(groups.size());
+        List<Object[]> argsList = new ArrayList<>(groups.size());
+        for (List<WatchEntry> group : groups) {
+            List<String> keys = new ArrayList<>(group.size());
+            Object[] args = new Object[group.size() + 1];
+            args[0] = getLeaseTime();
+            for (int i = 0; i < group.size(); i++) {
+                keys.add(group.get(i).lockName);
+                args[i + 1] = group.get(i).field;
+            }
+            keysList.add(keys);
+            argsList.add(args);
+        }
+
+        List<List<Long>> results;
+        try {
+            results = luaScriptRegistry.executePipelined(renewScript, keysList, argsList);
+        } catch (Exception e) {
+            log.error("LeaseWatchdog.renew fail size:{}, e:", watchEntryMap.size(), e);
+            return;
+        }
+
+        // 续期失败说明锁已过期或被其他线程持有，不再续期
+        for (int i = 0; i < groups.size(); i++) {
+            List<Long> result = results.get(i);
+            List<WatchEntry> group = groups.get(i);
+            for (int j = 0; j < group.size(); j++) {
+                if (result != null && Long.valueOf(1L).equals(result.get(j)))
+                    continue;
+                lost(group.get(j));
+            }
+        }
+    }
+
+    /**
+     * 锁已丢失，不再续期
+     *
+     * @param entry 续期条目
+     */
+    private void lost(WatchEntry entry) {
+        log.warn("LeaseWatchdog.renew lost lock lockName:{}, field:{}", entry.lockName, entry.field);
+        watchEntryMap.remove(entryKey(entry.lockName, entry.field), entry);
+    }
+
+    /**
+     * 续期条目 key
+     *
+     * @param lockName 锁名称
+     * @param field    锁中代表持有者的字段
+     * @return 条目 key
+     */
+    private String entryKey(String lockName, String field) {
+        return lockName + "#" + field;
+    }
+
+    /**
+     * 续期条目
+     */
+    private static final class WatchEntry {
+
+        /**
+         * 锁名称
+         */
+        final String lockName;
+
+        /**
+         * 锁中代表持有者的字段
+         */
+        final String field;
+
+        /**
+         * 续期脚本，为 null 时由锁引擎续期
+         */
+        final RedisScript<List<Long>> renewScript;
+
+        /**
+         * 重入次数，只在 compute 中修改
+         */
+        int holdCount;
+
+        WatchEntry(String lockName, String field, RedisScript<List<Long>> renewScript) {
+            this.lockName = lockName;
+            this.field = field;
+            this.renewScript = renewScript;
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package extend.lock;
+
+import lombok.Getter;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author 田奇杭
+ * @Description 响应式获取到的锁，持有者为 handle 本身而不是线程，释放只会生效一次
+ * @Date 2023/6/25 21:05
+ */
+@Getter
+public class LockHandle {
+
+    /**
+     * 分布式锁实现
+     */
+    private final OrdinaryDistributedLock distributedLock;
+
+    /**
+     * 锁名称
+     */
+    private final String key;
+
+    /**
+     * 持有者标识
+     */
+    private final String ownerId;
+
+    /**
+     * 锁持续时间
+     */
+    private final long leaseTime;
+
+    /**
+     * 时间单位
+     */
+    private final TimeUnit unit;
+
+    /**
+     * 是否已释放
+     */
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    LockHandle(OrdinaryDistributedLock distributedLock, String key, String ownerId, long leaseTime, TimeUnit unit) {
+        this.distributedLock = distributedLock;
+        this.key = key;
+        this.ownerId = ownerId;
+        this.leaseTime = leaseTime;
+        this.unit = unit;
+    }
+
+    /**
+     * 释放锁，重复调用时直接返回 false
+     *
+     * @return true：释放锁成功 false：释放锁失败或已释放
+     */
+    public Mono<Boolean> release() {
+        return Mono.defer(() -> released.compareAndSet(false, true)
+                ? Mono.fromFuture(distributedLock.unlockAsync(key, ownerId, leaseTime, unit))
+                : Mono.just(false));
+    }
+
+}
@@ -0,0 +1,497 @@
+package extend.lock;
+
+import extend.config.DistributedLockProperties;
+import extend.enums.LockNotificationEnum;
+import extend.listener.PublishSubscribe;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 分布式锁监控指标：等待时间、持有时间、抢占结果、脚本耗时与本地排队深度。
+ * 所有指标按锁类型与关键字模式打标签，关键字中含数字的段替换为 *（ordinary:{pay:10086} → pay:*），
+ * 模式数量超过上限后统一归入 other，保证标签基数有界；同一模式的指标对象只注册一次并缓存。
+ * 锁名称到指标对象的解析结果按锁名称（切面按关键字）缓存，热路径上只有一次 map 查找，不再重复解析关键字模式；
+ * 排队深度在抓取时一次遍历所有同步队列，所有模式共用遍历结果。
+ * 通知方式为 tracking 时另外统计收到的失效消息数与 key 数，用于评估 BCAST 追踪的推送量。
+ * 容器中有 MeterRegistry（引入 actuator）时使用它，否则注册到 Metrics.globalRegistry
+ * @Date 2023/6/25 20:14
+ */
+@Component
+public class LockMetrics {
+
+    /**
+     * 超过模式数量上限后使用的关键字模式
+     */
+    private static final String OTHER_PATTERN = "other";
+
+    /**
+     * 超过该长度的关键字段同样视为变量
+     */
+    private static final int MAX_SEGMENT_LENGTH = 24;
+
+    /**
+     * 抢占结果：成功
+     */
+    private static final String RESULT_SUCCESS = "success";
+
+    /**
+     * 抢占结果：等待超时
+     */
+    private static final String RESULT_TIMEOUT = "timeout";
+
+    /**
+     * 抢占结果：脚本执行出错
+     */
+    private static final String RESULT_ERROR = "error";
+
+    /**
+     * 锁名称（关键字）解析结果缓存的上限，超过后清空重建，锁名称数量无界时内存仍然有界
+     */
+    private static final int MAX_CACHED_LOCK_NAMES = 10_000;
+
+    /**
+     * 排队深度遍历结果的有效期（纳秒），同一次抓取中各模式的 gauge 共用一次遍历
+     */
+    private static final long QUEUE_DEPTH_SNAPSHOT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * 按锁类型与关键字模式缓存的指标
+     * key: 锁类型|关键字模式
+     */
+    private final Map<String, KeyMeters> keyMetersMap = new ConcurrentHashMap<>();
+
+    /**
+     * 锁名称解析结果缓存
+     * key: 锁名称
+     * value: 锁名称所属的指标
+     */
+    private final Map<String, KeyMeters> lockNameMetersMap = new ConcurrentHashMap<>();
+
+    /**
+     * 切面使用的关键字解析结果缓存，切面只有关键字，避免每次组装锁名称
+     * key: 分布式锁对象
+     * value: key: 关键字 value: 关键字对应锁名称所属的指标
+     */
+    private final Map<AbstractDistributedLock, Map<String, KeyMeters>> keywordMetersMap = new ConcurrentHashMap<>();
+
+    /**
+     * 最近一次遍历得到的各模式排队深度
+     */
+    private volatile QueueDepthSnapshot queueDepthSnapshot;
+
+    /**
+     * 按锁类型、脚本与执行结果缓存的脚本耗时
+     * key: 锁类型|脚本|执行结果
+     */
+    private final Map<String, Timer> scriptTimerMap = new ConcurrentHashMap<>();
+
+    /**
+     * 客户端追踪收到的失效消息数，通知方式不是 tracking 时为 null
+     */
+    private Counter trackingMessageCounter;
+
+    /**
+     * 客户端追踪收到的失效 key 数，BCAST 会把多个 key 合并为一条消息
+     */
+    private Counter trackingKeyCounter;
+
+    /**
+     * 指标注册中心
+     */
+    private MeterRegistry meterRegistry;
+
+    /**
+     * 容器中的指标注册中心，可能不存在
+     */
+    @Resource
+    private ObjectProvider<MeterRegistry> meterRegistryProvider;
+
+    /**
+     * 锁释放监听，用于统计本地排队深度
+     */
+    @Resource
+    private PublishSubscribe publishSubscribe;
+
+    /**
+     * 分布式锁配置
+     */
+    @Resource
+    private DistributedLockProperties distributedLockProperties;
+
+    /**
+     * 确定指标注册中心，通知方式为 tracking 时注册失效消息计数器
+     */
+    @PostConstruct
+    public void init() {
+        meterRegistry = meterRegistryProvider.getIfAvailable(() -> Metrics.globalRegistry);
+        if (distributedLockProperties.getNotification() != LockNotificationEnum.TRACKING)
+            return;
+        trackingMessageCounter = Counter.builder("extend.lock.tracking.messages")
+                .description("客户端追踪收到的失效消息数")
+                .register(meterRegistry);
+        trackingKeyCounter = Counter.builder("extend.lock.tracking.keys")
+                .description("客户端追踪收到的失效 key 数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 是否开启监控
+     *
+     * @return true:开启
+     */
+    public boolean isEnabled() {
+        return distributedLockProperties.isMetricsEnabled();
+    }
+
+    /**
+     * 计时起点
+     *
+     * @return 当前纳秒时间，未开启监控时为 0
+     */
+    public long start() {
+        return distributedLockProperties.isMetricsEnabled() ? System.nanoTime() : 0L;
+    }
+
+    /**
+     * 抢占成功，记录等待时间
+     *
+     * @param lockName 锁名称
+     * @param start    开始抢占的时间
+     */
+    public void acquired(String lockName, long start) {
+        if (!distributedLockProperties.isMetricsEnabled())
+            return;
+        KeyMeters meters = keyMeters(lockName);
+        meters.success.increment();
+        meters.waitTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 抢占失败
+     *
+     * @param lockName 锁名称
+     * @param error    true:期间执行脚本出错 false:等待超时
+     */
+    public void failed(String lockName, boolean error) {
+        if (!distributedLockProperties.isMetricsEnabled())
+            return;
+        KeyMeters meters = keyMeters(lockName);
+        (error ? meters.error : meters.timeout).increment();
+    }
+
+    /**
+     * 释放锁，记录持有时间
+     *
+     * @param lockName 锁名称
+     * @param start    抢占成功的时间
+     */
+    public void released(String lockName, long start) {
+        if (!distributedLockProperties.isMetricsEnabled())
+            return;
+        keyMeters(lockName).holdTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 释放锁，记录持有时间，切面入口：按关键字缓存解析结果，不必组装锁名称
+     *
+     * @param distributedLock 分布式锁对象
+     * @param keyword         关键字
+     * @param start           抢占成功的时间
+     */
+    public void released(AbstractDistributedLock distributedLock, String keyword, long start) {
+        if (!distributedLockProperties.isMetricsEnabled())
+            return;
+        Map<String, KeyMeters> metersMap = keywordMetersMap.computeIfAbsent(distributedLock, k -> new ConcurrentHashMap<>());
+        KeyMeters meters = metersMap.get(keyword);
+        if (meters == null) {
+            meters = keyMeters(distributedLock.assembleLockName(keyword));
+            cache(metersMap, keyword, meters);
+        }
+        meters.holdTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 收到一条客户端追踪的失效消息
+     *
+     * @param keys 消息中的 key 数量，FLUSHDB/FLUSHALL 时为 0
+     */
+    public void trackingInvalidated(int keys) {
+        if (!distributedLockProperties.isMetricsEnabled() || trackingMessageCounter == null)
+            return;
+        trackingMessageCounter.increment();
+        trackingKeyCounter.increment(keys);
+    }
+
+    /**
+     * 记录一次脚本执行耗时
+     *
+     * @param lockName 锁名称
+     * @param script   脚本名称
+     * @param start    开始执行的时间
+     * @param success  true:执行成功 false:执行出错
+     */
+    public void script(String lockName, String script, long start, boolean success) {
+        if (!distributedLockProperties.isMetricsEnabled())
+            return;
+        String type = lockType(lockName);
+        String outcome = success ? RESULT_SUCCESS : RESULT_ERROR;
+        scriptTimerMap.computeIfAbsent(type + "|" + script + "|" + outcome, k -> Timer.builder("extend.lock.script")
+                .description("分布式锁 Lua 脚本执行耗时")
+                .tag("type", type)
+                .tag("script", script)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry))
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 获取锁对应的指标，模式数量超过上限时归入 other
+     *
+     * @param lockName 锁名称
+     * @return 指标
+     */
+    private KeyMeters keyMeters(String lockName) {
+        KeyMeters meters = lockNameMetersMap.get(lockName);
+        if (meters != null)
+            return meters;
+        String type = lockType(lockName);
+        String pattern = keyPattern(lockName);
+        meters = keyMetersMap.get(type + "|" + pattern);
+        if (meters == null) {
+            if (keyMetersMap.size() >= distributedLockProperties.getMetricsMaxKeyPatterns())
+                pattern = OTHER_PATTERN;
+            String finalPattern = pattern;
+            meters = keyMetersMap.computeIfAbsent(type + "|" + pattern, k -> new KeyMeters(type, finalPattern));
+        }
+        cache(lockNameMetersMap, lockName, meters);
+        return meters;
+    }
+
+    /**
+     * 缓存解析结果，超过上限时先清空
+     *
+     * @param cache  缓存
+     * @param key    锁名称或关键字
+     * @param meters 指标
+     */
+    private static void cache(Map<String, KeyMeters> cache, String key, KeyMeters meters) {
+        if (cache.size() >= MAX_CACHED_LOCK_NAMES)
+            cache.clear();
+        cache.put(key, meters);
+    }
+
+    /**
+     * 指标对应的本地排队深度，有效期内复用上一次遍历的结果
+     *
+     * @param meters 指标
+     * @return 排队深度
+     */
+    private int queueDepth(KeyMeters meters) {
+        QueueDepthSnapshot snapshot = queueDepthSnapshot;
+        long now = System.nanoTime();
+        if (snapshot == null || now - snapshot.time > QUEUE_DEPTH_SNAPSHOT_NANOS) {
+            Map<KeyMeters, Integer> depthMap = new HashMap<>();
+            publishSubscribe.forEachQueueDepth((lockName, depth) -> {
+                KeyMeters matched = matchedKeyMeters(lockName);
+                if (matched != null)
+                    depthMap.merge(matched, depth, Integer::sum);
+            });
+            snapshot = new QueueDepthSnapshot(now, depthMap);
+            queueDepthSnapshot = snapshot;
+        }
+        return snapshot.depthMap.getOrDefault(meters, 0);
+    }
+
+    /**
+     * 锁名称归属的已注册指标，只查找不注册：未单独注册的模式归入 other，other 也未注册时返回 null
+     *
+     * @param lockName 锁名称
+     * @return 指标
+     */
+    private KeyMeters matchedKeyMeters(String lockName) {
+        KeyMeters meters = lockNameMetersMap.get(lockName);
+        if (meters != null)
+            return meters;
+        String type = lockType(lockName);
+        meters = keyMetersMap.get(type + "|" + keyPattern(lockName));
+        return meters != null ? meters : keyMetersMap.get(type + "|" + OTHER_PATTERN);
+    }
+
+    /**
+     * 从锁名称中解析锁类型（类型:{关键字} 中的类型）
+     *
+     * @param lockName 锁名称
+     * @return 锁类型
+     */
+    static String lockType(String lockName) {
+        int index = lockName.indexOf(':');
+        return index > 0 ? lockName.substring(0, index) : lockName;
+    }
+
+    /**
+     * 从锁名称中解析关键字模式：按分隔符切段，含数字或过长的段替换为 *
+     *
+     * @param lockName 锁名称
+     * @return 关键字模式
+     */
+    static String keyPattern(String lockName) {
+        // 去掉锁类型前缀与 hash tag 的花括号
+        String keyword = lockName.substring(lockName.indexOf(':') + 1).replace("{", "").replace("}", "");
+        StringBuilder pattern = new StringBuilder(keyword.length());
+        int start = 0;
+        for (int i = 0, n = keyword.length(); i <= n; i++) {
+            if (i < n && !isSeparator(keyword.charAt(i)))
+                continue;
+            appendSegment(pattern, keyword, start, i);
+            if (i < n)
+                pattern.append(keyword.charAt(i));
+            start = i + 1;
+        }
+        return pattern.toString();
+    }
+
+    /**
+     * 关键字分隔符
+     *
+     * @param c 字符
+     * @return true:分隔符
+     */
+    private static boolean isSeparator(char c) {
+        return c == ':' || c == '_' || c == '-' || c == '.' || c == '/' || c == '#';
+    }
+
+    /**
+     * 追加关键字的一段，变量段替换为 *
+     *
+     * @param pattern 关键字模式
+     * @param keyword 关键字
+     * @param start   段起点（包含）
+     * @param end     段终点（不包含）
+     */
+    private static void appendSegment(StringBuilder pattern, String keyword, int start, int end) {
+        if (end - start > MAX_SEGMENT_LENGTH) {
+            pattern.append('*');
+            return;
+        }
+        for (int i = start; i < end; i++) {
+            if (Character.isDigit(keyword.charAt(i))) {
+                pattern.append('*');
+                return;
+            }
+        }
+        pattern.append(keyword, start, end);
+    }
+
+    /**
+     * 同一锁类型与关键字模式的指标
+     */
+    private final class KeyMeters {
+
+        /**
+         * 抢占成功次数
+         */
+        final Counter success;
+
+        /**
+         * 等待超时次数
+         */
+        final Counter timeout;
+
+        /**
+         * 脚本出错导致的抢占失败次数
+         */
+        final Counter error;
+
+        /**
+         * 抢占成功前的等待时间
+         */
+        final Timer waitTimer;
+
+        /**
+         * 锁持有时间
+         */
+        final Timer holdTimer;
+
+        KeyMeters(String type, String pattern) {
+            success = acquireCounter(type, pattern, RESULT_SUCCESS);
+            timeout = acquireCounter(type, pattern, RESULT_TIMEOUT);
+            error = acquireCounter(type, pattern, RESULT_ERROR);
+            waitTimer = Timer.builder("extend.lock.wait")
+                    .description("分布式锁抢占成功前的等待时间")
+                    .tag("type", type)
+                    .tag("key", pattern)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofMinutes(1))
+                    .register(meterRegistry);
+            holdTimer = Timer.builder("extend.lock.hold")
+                    .description("分布式锁持有时间")
+                    .tag("type", type)
+                    .tag("key", pattern)
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(Duration.ofMillis(1))
+                    .maximumExpectedValue(Duration.ofMinutes(10))
+                    .register(meterRegistry);
+            // 抓取时才遍历同步队列，各模式共用一次遍历结果，热路径上没有开销
+            Gauge.builder("extend.lock.queue.depth", this, LockMetrics.this::queueDepth)
+                    .description("本地同步队列中排队的等待线程数")
+                    .tag("type", type)
+                    .tag("key", pattern)
+                    .register(meterRegistry);
+        }
+
+        /**
+         * 抢占结果计数器
+         *
+         * @param type    锁类型
+         * @param pattern 关键字模式
+         * @param result  抢占结果
+         * @return 计数器
+         */
+        private Counter acquireCounter(String type, String pattern, String result) {
+            return Counter.builder("extend.lock.acquire")
+                    .description("分布式锁抢占结果")
+                    .tag("type", type)
+                    .tag("key", pattern)
+                    .tag("result", result)
+                    .register(meterRegistry);
+        }
+    }
+
+    /**
+     * 一次遍历得到的各模式排队深度
+     */
+    private static final class QueueDepthSnapshot {
+
+        /**
+         * 遍历时间（纳秒）
+         */
+        final long time;
+
+        /**
+         * key: 指标 value: 排队深度
+         */
+        final Map<KeyMeters, Integer> depthMap;
+
+        QueueDepthSnapshot(long time, Map<KeyMeters, Integer> depthMap) {
+            this.time = time;
+            this.depthMap = depthMap;
+        }
+    }
+
+}
@@ -1,19 +1,39 @@
 package extend.lock;
 
+import extend.annotation.DistributedLock;
+import extend.engine.LockEngine;
+import extend.listener.AbstractSyncQueue;
 import extend.listener.PublishSubscribe;
+import extend.listener.StripedSyncQueue;
 import extend.listener.SyncQueue;
+import io.lettuce.core.cluster.SlotHash;
 import lombok.extern.slf4j.Slf4j;
-import org.springframework.data.redis.core.RedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import javax.annotation.Resource;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * @author 田奇杭
- * @Description 普通分布式锁
+ * @Description 普通分布式锁，锁的存储与释放消息由锁引擎提供。
+ * 唯一支持异步与响应式加锁的锁类型：异步锁的持有者是调用方生成的持有者标识而不是线程，等待期间不占用线程
  * @Date 2023/5/10 21:11
  */
 @Slf4j
@@ -21,55 +41,49 @@ import java.util.concurrent.TimeUnit;
 public class OrdinaryDistributedLock extends AbstractDistributedLock {
 
     /**
-     * 普通分布式锁lua脚本-抢占
-     * KEYS[1]: 锁名称
-     * ARGV[1]: 锁持续时间
-     * ARGV[2]: 线程标识
-     */
-    private static final String ORDINARY_LOCK_SCRIPT = "if (redis.call('EXISTS', KEYS[1]) == 0) then \n" +
-            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
-            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
-            "    return nil; \n" +
-            "end; \n" +
-            "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1) then\n" +
-            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
-            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
-            "    return nil; \n" +
-            "end; \n" +
-            "return redis.call('PTTL', KEYS[1]);";
-
-    /**
-     * 普通分布式锁lua脚本-释放
-     * KEYS[1]: 锁名称
-     * ARGV[1]: 锁持续时间
-     * ARGV[2]: 线程标识
-     */
-    private static final String ORDINARY_UNLOCK_SCRIPT = "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 0) then \n" +
-            "    return nil;\n" +
-            "end;\n" +
-            "if (tonumber(redis.call('HGET', KEYS[1], ARGV[2])) > 1) then \n" +
-            "    redis.call('HINCRBY', KEYS[1], ARGV[2], -1); \n" +
-            "    redis.call('PEXPIRE', KEYS[1], ARGV[1]);\n" +
-            "    return 0;\n" +
-            "else \n" +
-            "    redis.call('DEL', KEYS[1]); \n" +
-            "    redis.call('PUBLISH', 'UN_LOCK_TOPIC', KEYS[1]); \n" +
-            "    return 1;\n" +
-            "end; \n" +
-            "return nil;";
-
-    /**
-     * redis 操作对象
+     * 抢占脚本执行出错时的返回值，按锁已被占用、剩余时间未知处理
+     */
+    private static final long SCRIPT_ERROR = -1L;
+
+    /**
+     * 多锁交叉冲突回滚后的退避时间下限（毫秒），每次回滚翻倍
+     */
+    private static final long MULTI_LOCK_BACKOFF_MIN = 1L;
+
+    /**
+     * 多锁交叉冲突回滚后的退避时间上限（毫秒）
+     */
+    private static final long MULTI_LOCK_BACKOFF_MAX = 64L;
+
+    /**
+     * 异步持有者序号
+     */
+    private static final AtomicLong OWNER_SEQUENCE = new AtomicLong();
+
+    /**
+     * 锁释放监听
+     */
+    @Resource
+    private PublishSubscribe publishSubscribe;
+
+    /**
+     * 锁引擎
+     */
+    @Resource
+    private LockEngine lockEngine;
+
+    /**
+     * 已占用锁的本地缓存
      */
     @Resource
-    private RedisTemplate<String, String> redisTemplate;
+    private HeldLockCache heldLockCache;
 
     /**
      * 尝试获取锁
      *
      * @param key       锁名称
      * @param waitTime  等待时间
-     * @param leaseTime 锁持续时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
      * @param unit      时间单位
      * @return true:抢占成功 false:抢占失败
      */
@@ -77,32 +91,272 @@ public class OrdinaryDistributedLock extends AbstractDistributedLock {
     public boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit) {
         // 格式化参数
         long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+
+        long start = lockMetrics.start();
 
         // 组装锁名称
         String lockName = assembleLockName(key);
 
-        // 获取分布式锁对应的JVM本地锁对象
-        SyncQueue syncQueue = PublishSubscribe.getSyncQueueByLockName(lockName);
+        // 分段模式下没有本地持有者，等待者在分段同步队列中各自抢占
+        if (publishSubscribe.isStriped())
+            return tryLockStriped(lockName, threadFlag, leaseTime, internalLeaseTime, deadline, start);
+
+        // 不等待的抢占先查本地缓存，已知被其他持有者占用时直接失败；当前线程持有本地锁时可能是重入，不使用缓存
+        if (heldLockCache.isHeld(lockName, unit.toMillis(waitTime))) {
+            SyncQueue current = publishSubscribe.getSyncQueue(lockName);
+            if (current == null || !current.isHeldByCurrentThread()) {
+                lockMetrics.failed(lockName, false);
+                return false;
+            }
+        }
+
+        // 获取分布式锁对应的JVM本地锁对象，持有引用直到抢占失败或释放锁
+        SyncQueue syncQueue = publishSubscribe.acquireSyncQueue(lockName);
+        boolean locked = false;
+        // 期间是否出现脚本执行错误
+        boolean error = false;
+        // 上次抢占失败时锁的剩余时间，作为单次休眠上限
+        Long ttl = null;
+        // 上次抢占前读取的锁释放消息次数
+        int releaseCount = syncQueue.getReleaseCount();
 
         // 获取JVM本地锁
         boolean flag = syncQueue.tryAcquire();
 
-        // 获取JVM本地锁成功 || 尝试获取结果
-        while (flag || syncQueue.acquire(waitTime)) {
-            // 尝试设置分布式锁
-            Long ttl = tryAcquireDistributedLock(lockName, leaseTime, threadFlag);
-            // 设置分布式锁成功
-            if (ttl == null)
-                // 抢占成功返回 true
-                return true;
-            else
+        // 本地锁已被其他线程持有，需要等待释放消息，订阅锁释放频道；不等待时直接失败，无需订阅
+        boolean subscribed = !flag && deadline > System.currentTimeMillis();
+        if (subscribed)
+            publishSubscribe.subscribe(lockName);
+
+        try {
+            // 获取JVM本地锁成功 || 等待释放消息，最迟在锁过期时醒来重试
+            while (flag || syncQueue.acquire(deadline - System.currentTimeMillis(), internalLeaseTime, ttl == null ? 0L : ttl, releaseCount)) {
+                // 持有分布式锁的本地线程直接交接给了当前线程
+                if (syncQueue.takeHandoff()) {
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, threadFlag);
+                    lockMetrics.acquired(lockName, start);
+                    locked = true;
+                    return true;
+                }
+                // 抢占前读取锁释放消息次数，抢占失败后若期间已有释放消息则不再休眠
+                releaseCount = syncQueue.getReleaseCount();
+                // 尝试设置分布式锁
+                ttl = tryAcquireDistributedLock(lockName, internalLeaseTime, threadFlag);
+                // 设置分布式锁成功
+                if (ttl == null) {
+                    // 看门狗模式登记续期
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, threadFlag);
+                    lockMetrics.acquired(lockName, start);
+                    // 抢占成功返回 true
+                    locked = true;
+                    return true;
+                }
+                error |= ttl == OrdinaryDistributedLock.SCRIPT_ERROR;
+                heldLockCache.put(lockName, ttl);
+                // 没有剩余等待时间时直接失败，不再订阅频道重试；放弃本次获取的本地锁（重入时只减一次），让本地等待线程接手
+                if (deadline <= System.currentTimeMillis()) {
+                    syncQueue.release();
+                    break;
+                }
                 // 分布式锁已被抢占，返回 false 进入 syncQueue.tryAcquire 方法中阻塞
                 flag = false;
+                if (!subscribed) {
+                    // 首次需要等待时订阅锁释放频道，订阅生效前的释放消息可能已经错过，订阅后立即重试一次
+                    publishSubscribe.subscribe(lockName);
+                    subscribed = true;
+                    flag = true;
+                }
+            }
+        } finally {
+            if (subscribed)
+                publishSubscribe.unsubscribe(lockName);
+            if (!locked)
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
         }
         // 未抢占成功返回 false
+        lockMetrics.failed(lockName, error);
         return false;
     }
 
+    /**
+     * 分段模式下尝试获取锁：抢占失败后在锁名称所在的分段中排队，只被这把锁的释放消息唤醒，
+     * 没有本地持有者与本地交接，本地等待线程之间的互斥同样由 Redis 保证。
+     * 不使用已占用锁的本地缓存：分段不记录本地持有者，无法区分重入
+     *
+     * @param lockName          锁名称
+     * @param threadFlag        线程标识
+     * @param leaseTime         锁持续时间，小于等于 0 时开启看门狗续期
+     * @param internalLeaseTime 实际写入 Redis 的锁持续时间
+     * @param deadline          等待截止时间（毫秒）
+     * @param start             监控计时起点
+     * @return true:抢占成功 false:抢占失败
+     */
+    private boolean tryLockStriped(String lockName, long threadFlag, long leaseTime, long internalLeaseTime, long deadline, long start) {
+        StripedSyncQueue stripe = publishSubscribe.getStripe(lockName);
+        boolean subscribed = false;
+        boolean error = false;
+        try {
+            for (; ; ) {
+                // 抢占前读取锁释放消息次数，抢占失败后若期间已有释放消息则不再休眠
+                int releaseCount = stripe.getReleaseCount();
+                // 尝试设置分布式锁
+                Long ttl = tryAcquireDistributedLock(lockName, internalLeaseTime, threadFlag);
+                // 设置分布式锁成功
+                if (ttl == null) {
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, threadFlag);
+                    lockMetrics.acquired(lockName, start);
+                    return true;
+                }
+                error |= ttl == OrdinaryDistributedLock.SCRIPT_ERROR;
+                // 没有剩余等待时间时直接失败，不再订阅频道重试
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0)
+                    break;
+                if (!subscribed) {
+                    // 首次需要等待时订阅锁释放频道，订阅后立即重试一次
+                    publishSubscribe.subscribe(lockName);
+                    subscribed = true;
+                    continue;
+                }
+                // 等待这把锁的释放消息，最迟在锁过期时醒来重试
+                if (!stripe.await(lockName, remain, ttl, releaseCount))
+                    break;
+            }
+        } finally {
+            if (subscribed)
+                publishSubscribe.unsubscribe(lockName);
+        }
+        lockMetrics.failed(lockName, error);
+        return false;
+    }
+
+    /**
+     * 按注解配置同时获取多把锁
+     *
+     * @param keys            锁名称集合
+     * @param distributedLock 分布式锁注解
+     * @return true:全部抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(List<String> keys, DistributedLock distributedLock) {
+        return tryLock(keys, distributedLock.waitTime(), distributedLock.leaseTime(), distributedLock.timeUnit());
+    }
+
+    /**
+     * 同时获取多把锁，全部成功或全部失败。
+     * 锁按 slot 分组，每组一次脚本调用，所有分组一次性并发下发（集群下按节点流水线执行），耗时约为一次往返；
+     * 任意一组失败时释放已获取的分组后整体等待重试，不会出现持有部分锁再等待其余锁的情况。
+     * 两个请求各自抢到对方需要的分组时双方都会回滚，若都等释放消息后立即重试会反复互相回滚（活锁），
+     * 因此回滚过的一方改为随机退避后重试，退避上限随回滚次数翻倍，双方错开后总有一方能全部抢到
+     *
+     * @param keys      锁名称集合
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:全部抢占成功 false:抢占失败
+     */
+    public boolean tryLock(List<String> keys, long waitTime, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+
+        // 组装锁名称并按 slot 分组
+        List<List<String>> groups = groupBySlot(keys);
+
+        // 获取每把锁对应的JVM本地同步队列，持有引用直到抢占失败或释放锁；分段模式下使用分段同步队列，不持有引用
+        boolean striped = publishSubscribe.isStriped();
+        Map<String, AbstractSyncQueue> syncQueueMap = new LinkedHashMap<>();
+        for (List<String> group : groups) {
+            for (String lockName : group)
+                syncQueueMap.put(lockName, striped ? null : publishSubscribe.acquireSyncQueue(lockName));
+        }
+        Map<String, Integer> releaseCountMap = new HashMap<>(syncQueueMap.size());
+        Set<String> subscribed = new HashSet<>();
+        boolean[] rolledBack = new boolean[1];
+        long backoff = OrdinaryDistributedLock.MULTI_LOCK_BACKOFF_MIN;
+        boolean locked = false;
+
+        try {
+            for (; ; ) {
+                // 抢占前读取锁释放消息次数，抢占失败后若期间已有释放消息则不再休眠
+                for (Map.Entry<String, AbstractSyncQueue> entry : syncQueueMap.entrySet())
+                    releaseCountMap.put(entry.getKey(), striped ? publishSubscribe.getStripe(entry.getKey()).getReleaseCount()
+                            : entry.getValue().getReleaseCount());
+                // 尝试设置所有分布式锁
+                String conflict = tryAcquireDistributedLocks(groups, internalLeaseTime, threadFlag, rolledBack);
+                // 全部设置成功
+                if (conflict == null) {
+                    // 看门狗模式登记续期
+                    if (isWatchdogMode(leaseTime)) {
+                        for (String lockName : syncQueueMap.keySet())
+                            leaseWatchdog.watch(lockName, threadFlag);
+                    }
+                    locked = true;
+                    return true;
+                }
+                if (subscribed.add(conflict)) {
+                    // 首次等待该锁时订阅其释放频道，订阅后立即重试一次
+                    publishSubscribe.subscribe(conflict);
+                    continue;
+                }
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0)
+                    return false;
+                if (rolledBack[0]) {
+                    // 与其他多锁请求交叉冲突，对方同样回滚并发送释放消息，随机退避错开双方的重试时间
+                    long sleep = Math.min(remain, ThreadLocalRandom.current().nextLong(backoff) + 1);
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(sleep));
+                    backoff = Math.min(backoff << 1, OrdinaryDistributedLock.MULTI_LOCK_BACKOFF_MAX);
+                    continue;
+                }
+                // 以旁观者身份等待冲突锁的释放消息
+                boolean released = striped ? publishSubscribe.getStripe(conflict).awaitRelease(conflict, remain, releaseCountMap.get(conflict))
+                        : syncQueueMap.get(conflict).awaitRelease(remain, releaseCountMap.get(conflict));
+                if (!released)
+                    return false;
+            }
+        } finally {
+            for (String lockName : subscribed)
+                publishSubscribe.unsubscribe(lockName);
+            if (!locked && !striped) {
+                for (Map.Entry<String, AbstractSyncQueue> entry : syncQueueMap.entrySet())
+                    publishSubscribe.releaseSyncQueue(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * 异步获取锁，抢占与释放都通过 Lettuce 异步命令执行，等待期间不占用任何线程：
+     * 锁释放消息到达或锁过期时再次抢占
+     *
+     * @param key       锁名称
+     * @param ownerId   持有者标识，见 newOwnerId
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    public CompletableFuture<Boolean> tryLockAsync(String key, String ownerId, long waitTime, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        // 获取分布式锁对应的JVM本地同步队列，持有引用直到抢占失败或释放锁；分段模式下使用分段同步队列
+        AsyncAcquisition acquisition = new AsyncAcquisition(lockName, ownerId, leaseTime, internalLeaseTime, deadline,
+                publishSubscribe.isStriped() ? null : publishSubscribe.acquireSyncQueue(lockName));
+        acquisition.attempt();
+        return acquisition.future;
+    }
+
     /**
      * 获取锁
      *
@@ -126,24 +380,294 @@ public class OrdinaryDistributedLock extends AbstractDistributedLock {
     public boolean unLock(String key, long leaseTime, TimeUnit unit) {
 
         // 格式化参数
-        leaseTime = unit.toNanos(leaseTime);
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
         long threadId = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
 
         // 组装锁名称
         String lockName = assembleLockName(key);
 
-        // 获取分布式锁对应的JVM本地锁对象
-        SyncQueue syncQueue = PublishSubscribe.getSyncQueueByLockName(lockName);
+        // 获取分布式锁对应的JVM本地锁对象，抢占成功时已持有引用
+        SyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
 
-        // 释放JVM锁
-        syncQueue.release();
+        // 取消续期
+        if (isWatchdogMode(leaseTime))
+            leaseWatchdog.unwatch(lockName, threadId);
+
+        // 当前线程是否持有JVM锁，通过多把锁抢占得到的分布式锁不持有JVM锁
+        boolean owner = syncQueue != null && syncQueue.isHeldByCurrentThread();
+
+        // 本地还有等待线程时直接交接，不释放分布式锁
+        if (owner && isHandoffAllowed(syncQueue)) {
+            Long result = handoffDistributedLock(syncQueue, lockName, internalLeaseTime, threadId);
+            if (result != null) {
+                // 重入次数减一时同样释放一次JVM锁
+                if (result == 0L)
+                    syncQueue.release();
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+                return true;
+            }
+        }
 
         // 执行释放分布式锁脚本
-        Long flag = unDistributedLock(lockName, leaseTime, threadId);
+        Long flag = unDistributedLock(lockName, internalLeaseTime, threadId);
+        heldLockCache.invalidate(lockName);
+
+        // 分布式锁释放之后再释放JVM锁，被唤醒的下一个本地线程可以立即抢占，不必等待释放消息。
+        // JVM锁与单把锁的抢占一一对应地重入，每次释放减一次；分布式锁的重入次数还包含多把锁抢占，
+        // 可能在JVM锁完全释放后仍未归零，此时被唤醒的本地线程抢占失败后继续等待释放消息
+        if (owner) {
+            if (flag == null || flag != 0L)
+                syncQueue.resetHandoffCount();
+            syncQueue.release();
+        }
+
+        // 释放抢占时持有的引用，没有其他线程使用时回收同步队列
+        if (syncQueue != null)
+            publishSubscribe.releaseSyncQueue(lockName, syncQueue);
 
         return flag != null;
     }
 
+    /**
+     * 异步释放锁
+     *
+     * @param key       锁名称
+     * @param ownerId   获取锁时使用的持有者标识
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    public CompletableFuture<Boolean> unlockAsync(String key, String ownerId, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        return unDistributedLockAsync(lockName, ownerId, leaseTime, internalLeaseTime);
+    }
+
+    /**
+     * 异步释放分布式锁
+     *
+     * @param lockName          锁名称
+     * @param ownerId           持有者标识
+     * @param leaseTime         锁持续时间
+     * @param internalLeaseTime 实际写入 Redis 的锁持续时间
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    private CompletableFuture<Boolean> unDistributedLockAsync(String lockName, String ownerId, long leaseTime, long internalLeaseTime) {
+        // 取消续期
+        if (isWatchdogMode(leaseTime))
+            leaseWatchdog.unwatch(lockName, ownerId);
+
+        // 执行释放分布式锁脚本，完成后释放抢占时持有的引用
+        return lockEngine.releaseAsync(lockName, internalLeaseTime, ownerId).handle((flag, e) -> {
+            if (e != null)
+                log.error("unlockAsync fail key:{}, current:{}, ownerId:{}, e:", lockName, internalLeaseTime, ownerId, e);
+            heldLockCache.invalidate(lockName);
+            AbstractSyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
+            if (syncQueue != null)
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+            return e == null && flag != null;
+        });
+    }
+
+    /**
+     * 响应式获取锁，基于异步抢占，等待期间不阻塞任何线程；
+     * 等待超时返回空，订阅被取消时放弃等待，取消时已抢到的锁会被归还
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return 锁，等待超时为空
+     */
+    public Mono<LockHandle> acquire(String key, long waitTime, long leaseTime, TimeUnit unit) {
+        return Mono.create(sink -> {
+            LockHandle handle = new LockHandle(this, key, newOwnerId(), leaseTime, unit);
+            AtomicBoolean cancelled = new AtomicBoolean();
+            CompletableFuture<Boolean> future = tryLockAsync(key, handle.getOwnerId(), waitTime, leaseTime, unit);
+            sink.onCancel(() -> {
+                cancelled.set(true);
+                future.cancel(false);
+            });
+            future.whenComplete((locked, e) -> {
+                if (e != null) {
+                    sink.error(e);
+                } else if (!Boolean.TRUE.equals(locked)) {
+                    sink.success();
+                } else {
+                    sink.success(handle);
+                    // 抢到锁的同时订阅被取消，下游收不到 handle，由这里归还
+                    if (cancelled.get())
+                        handle.release().subscribe();
+                }
+            });
+        });
+    }
+
+    /**
+     * 响应式获取多把锁：关键字去重排序后逐个获取，所有调用方按相同顺序获取，持有部分锁的调用方之间不会互相等待成环；
+     * 共用一个等待截止时间，任意一把等待超时时归还已获取的锁并返回空，出错或订阅被取消时同样归还
+     *
+     * @param keys      锁名称集合
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return 按关键字排序的锁，等待超时为空
+     */
+    public Mono<List<LockHandle>> acquire(List<String> keys, long waitTime, long leaseTime, TimeUnit unit) {
+        List<String> sortedKeys = new ArrayList<>(new TreeSet<>(keys));
+        return Mono.defer(() -> {
+            long deadline = System.nanoTime() + unit.toNanos(waitTime);
+            List<LockHandle> handles = new CopyOnWriteArrayList<>();
+            return Flux.fromIterable(sortedKeys)
+                    .concatMap(key -> acquire(key, unit.convert(Math.max(deadline - System.nanoTime(), 0L), TimeUnit.NANOSECONDS), leaseTime, unit)
+                            .doOnNext(handles::add)
+                            .hasElement())
+                    .takeUntil(locked -> !locked)
+                    .then(Mono.defer(() -> handles.size() == sortedKeys.size()
+                            ? Mono.just((List<LockHandle>) new ArrayList<>(handles))
+                            : release(handles).then(Mono.<List<LockHandle>>empty())))
+                    .onErrorResume(e -> release(handles).then(Mono.error(e)))
+                    .doOnCancel(() -> release(handles).subscribe());
+        });
+    }
+
+    /**
+     * 释放多把锁
+     *
+     * @param handles 锁
+     * @return 全部释放完成
+     */
+    private static Mono<Void> release(List<LockHandle> handles) {
+        return Flux.fromIterable(handles).flatMap(LockHandle::release).then();
+    }
+
+    /**
+     * 持有锁执行 source，source 完成、出错或被取消时释放锁；等待超时时不执行 source，直接返回空
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @param source    需要加锁执行的逻辑
+     * @return source 的结果
+     */
+    public <T> Mono<T> withLock(String key, long waitTime, long leaseTime, TimeUnit unit, Mono<T> source) {
+        return Mono.usingWhen(acquire(key, waitTime, leaseTime, unit), handle -> source,
+                LockHandle::release, (handle, e) -> handle.release(), LockHandle::release);
+    }
+
+    /**
+     * 持有锁执行 source，source 完成、出错或被取消时释放锁；等待超时时不执行 source，直接返回空
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @param source    需要加锁执行的逻辑
+     * @return source 的结果
+     */
+    public <T> Flux<T> withLock(String key, long waitTime, long leaseTime, TimeUnit unit, Flux<T> source) {
+        return Flux.usingWhen(acquire(key, waitTime, leaseTime, unit), handle -> source,
+                LockHandle::release, (handle, e) -> handle.release(), LockHandle::release);
+    }
+
+    /**
+     * 持有所有锁执行 source，source 完成、出错或被取消时释放全部锁；任意一把等待超时时不执行 source，直接返回空
+     *
+     * @param keys      锁名称集合
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @param source    需要加锁执行的逻辑
+     * @return source 的结果
+     */
+    public <T> Mono<T> withLock(List<String> keys, long waitTime, long leaseTime, TimeUnit unit, Mono<T> source) {
+        return Mono.usingWhen(acquire(keys, waitTime, leaseTime, unit), handles -> source,
+                OrdinaryDistributedLock::release, (handles, e) -> release(handles), OrdinaryDistributedLock::release);
+    }
+
+    /**
+     * 持有所有锁执行 source，source 完成、出错或被取消时释放全部锁；任意一把等待超时时不执行 source，直接返回空
+     *
+     * @param keys      锁名称集合
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @param source    需要加锁执行的逻辑
+     * @return source 的结果
+     */
+    public <T> Flux<T> withLock(List<String> keys, long waitTime, long leaseTime, TimeUnit unit, Flux<T> source) {
+        return Flux.usingWhen(acquire(keys, waitTime, leaseTime, unit), handles -> source,
+                OrdinaryDistributedLock::release, (handles, e) -> release(handles), OrdinaryDistributedLock::release);
+    }
+
+    /**
+     * 生成异步锁的持有者标识，带有服务器标识，且不会与线程标识重复
+     *
+     * @return 持有者标识
+     */
+    public static String newOwnerId() {
+        return THREAD_FLAG + ":async:" + OWNER_SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * 按注解配置释放多把锁
+     *
+     * @param keys            锁名称集合
+     * @param distributedLock 分布式锁注解
+     * @return true：全部释放成功 false：存在释放失败的锁
+     */
+    @Override
+    public boolean unLock(List<String> keys, DistributedLock distributedLock) {
+        return unLock(keys, distributedLock.leaseTime(), distributedLock.timeUnit());
+    }
+
+    /**
+     * 释放多把锁，每个 slot 一次脚本调用，所有分组一次性并发下发
+     *
+     * @param keys      锁名称集合
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：全部释放成功 false：存在释放失败的锁
+     */
+    public boolean unLock(List<String> keys, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long threadId = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+
+        // 组装锁名称并按 slot 分组
+        List<List<String>> groups = groupBySlot(keys);
+
+        // 取消续期
+        if (isWatchdogMode(leaseTime)) {
+            for (List<String> group : groups) {
+                for (String lockName : group)
+                    leaseWatchdog.unwatch(lockName, threadId);
+            }
+        }
+
+        // 执行释放分布式锁脚本
+        List<Long> releasedList = unDistributedLocks(groups, internalLeaseTime, threadId);
+
+        boolean flag = true;
+        for (int i = 0; i < groups.size(); i++) {
+            List<String> group = groups.get(i);
+            Long released = releasedList.get(i);
+            flag &= released != null && released == group.size();
+            // 释放抢占时持有的引用
+            for (String lockName : group) {
+                AbstractSyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
+                if (syncQueue != null)
+                    publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+            }
+        }
+        return flag;
+    }
+
     /**
      * 组装锁名称
      *
@@ -152,7 +676,118 @@ public class OrdinaryDistributedLock extends AbstractDistributedLock {
      */
     @Override
     public String assembleLockName(String keyword) {
-        return String.format(AbstractDistributedLock.LOCK_NAME_FORMAT, "ordinary", keyword);
+        return assembleLockName("ordinary", keyword);
+    }
+
+    /**
+     * 是否允许本地交接
+     *
+     * @param syncQueue 同步队列
+     * @return true:允许
+     */
+    private boolean isHandoffAllowed(SyncQueue syncQueue) {
+        return distributedLockProperties.isLocalHandoff()
+                && syncQueue.getHandoffCount() < distributedLockProperties.getMaxLocalHandoffs();
+    }
+
+    /**
+     * 将分布式锁交接给本地队首等待线程
+     *
+     * @param syncQueue 同步队列
+     * @param lockName  锁名称
+     * @param current   持续时间
+     * @param threadId  线程标识
+     * @return null:没有可交接的线程或交接失败，需要走正常释放流程 0:重入次数减一 1:已交接
+     */
+    private Long handoffDistributedLock(SyncQueue syncQueue, String lockName, long current, long threadId) {
+        Long[] result = new Long[1];
+        syncQueue.handoff((next, leaseTime) -> {
+            long nextThreadId = AbstractDistributedLock.THREAD_FLAG + next.getId();
+            long start = lockMetrics.start();
+            try {
+                result[0] = lockEngine.handoff(lockName, current, String.valueOf(threadId), String.valueOf(nextThreadId), leaseTime > 0 ? leaseTime : current);
+                lockMetrics.script(lockName, "handoff", start, true);
+            } catch (Exception e) {
+                lockMetrics.script(lockName, "handoff", start, false);
+                log.error("handoffDistributedLock fail key:{}, current:{}, threadId:{}, nextThreadId:{}, e:", lockName, current, threadId, nextThreadId, e);
+            }
+            return result[0] != null && result[0] == 1L;
+        });
+        return result[0];
+    }
+
+    /**
+     * 组装锁名称并按 slot 分组，分组按 slot 排序，组内按锁名称排序并去重
+     *
+     * @param keys 关键字集合
+     * @return 分组后的锁名称
+     */
+    private List<List<String>> groupBySlot(List<String> keys) {
+        Map<Integer, Set<String>> slotMap = new TreeMap<>();
+        for (String key : keys) {
+            String lockName = assembleLockName(key);
+            slotMap.computeIfAbsent(SlotHash.getSlot(lockName), k -> new TreeSet<>()).add(lockName);
+        }
+        List<List<String>> groups = new ArrayList<>(slotMap.size());
+        for (Set<String> group : slotMap.values())
+            groups.add(new ArrayList<>(group));
+        return groups;
+    }
+
+    /**
+     * 一次性下发所有分组的抢占脚本，任意一组失败时释放已获取的分组
+     *
+     * @param groups   按 slot 分好的锁名称
+     * @param current    持续时间
+     * @param threadId   线程标识
+     * @param rolledBack 输出参数，是否回滚了已获取的分组
+     * @return null:全部成功 !null:被其他线程持有的锁名称
+     */
+    private String tryAcquireDistributedLocks(List<List<String>> groups, long current, long threadId, boolean[] rolledBack) {
+        List<CompletableFuture<Long>> futures = lockEngine.acquireAll(groups, current, String.valueOf(threadId));
+        String conflict = null;
+        List<List<String>> acquired = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            List<String> group = groups.get(i);
+            Long index;
+            try {
+                index = futures.get(i).join();
+            } catch (Exception e) {
+                log.error("tryAcquireDistributedLocks fail keys:{}, current:{}, threadId:{}, e:", group, current, threadId, e);
+                index = 1L;
+            }
+            if (index == null)
+                acquired.add(group);
+            else if (conflict == null)
+                conflict = group.get(index.intValue() - 1);
+        }
+        // 回滚已获取的分组
+        rolledBack[0] = conflict != null && !acquired.isEmpty();
+        if (rolledBack[0])
+            unDistributedLocks(acquired, current, threadId);
+        return conflict;
+    }
+
+    /**
+     * 释放多个分组的分布式锁，每组中的锁在同一个 slot，所有分组一次性下发
+     *
+     * @param groups   按 slot 分好的锁名称
+     * @param current  持续时间
+     * @param threadId 线程标识
+     * @return 每组已释放的锁数量，与 groups 顺序一致，释放失败的分组为 null
+     */
+    private List<Long> unDistributedLocks(List<List<String>> groups, long current, long threadId) {
+        List<CompletableFuture<Long>> futures = lockEngine.releaseAll(groups, current, String.valueOf(threadId));
+        List<Long> releasedList = new ArrayList<>(groups.size());
+        for (int i = 0; i < groups.size(); i++) {
+            try {
+                releasedList.add(futures.get(i).join());
+            } catch (Exception e) {
+                log.error("unDistributedLocks fail keys:{}, current:{}, threadId:{}, e:", groups.get(i), current, threadId, e);
+                releasedList.add(null);
+            }
+        }
+        return releasedList;
     }
 
     /**
@@ -164,13 +799,16 @@ public class OrdinaryDistributedLock extends AbstractDistributedLock {
      * @return null:成功 !null:失败
      */
     private Long tryAcquireDistributedLock(String key, long current, long threadId) {
-        DefaultRedisScript<Long> script = new DefaultRedisScript<>(OrdinaryDistributedLock.ORDINARY_LOCK_SCRIPT, Long.class);
+        long start = lockMetrics.start();
         try {
-            return redisTemplate.execute(script, Collections.singletonList(key), String.valueOf(current), String.valueOf(threadId));
+            Long ttl = lockEngine.acquire(key, current, String.valueOf(threadId));
+            lockMetrics.script(key, "lock", start, true);
+            return ttl;
         } catch (Exception e) {
+            lockMetrics.script(key, "lock", start, false);
             log.error("tryAcquireDistributedLock fail key:{}, current:{}, threadId:{}, e:", key, current, threadId, e);
         }
-        return 0L;
+        return OrdinaryDistributedLock.SCRIPT_ERROR;
     }
 
     /**
@@ -179,16 +817,175 @@ public class OrdinaryDistributedLock extends AbstractDistributedLock {
      * @param key      锁名称
      * @param current  持续时间
      * @param threadId 线程标识
-     * @return null:失败 !null:成功
+     * @return null:失败 0:重入次数减一 1:已释放
      */
     private Long unDistributedLock(String key, long current, long threadId) {
-        DefaultRedisScript<Long> script = new DefaultRedisScript<>(OrdinaryDistributedLock.ORDINARY_UNLOCK_SCRIPT, Long.class);
+        long start = lockMetrics.start();
         try {
-            return redisTemplate.execute(script, Collections.singletonList(key), String.valueOf(current), String.valueOf(threadId));
+            Long flag = lockEngine.release(key, current, String.valueOf(threadId));
+            lockMetrics.script(key, "unlock", start, true);
+            return flag;
         } catch (Exception e) {
+            lockMetrics.script(key, "unlock", start, false);
             log.error("unDistributedLock fail key:{}, current:{}, threadId:{}, e:", key, current, threadId, e);
         }
         return null;
     }
 
+    /**
+     * 一次异步抢占：每次抢占失败后登记锁释放回调与锁过期定时，先到者触发下一次抢占
+     */
+    private final class AsyncAcquisition {
+
+        /**
+         * 锁名称
+         */
+        final String lockName;
+
+        /**
+         * 持有者标识
+         */
+        final String ownerId;
+
+        /**
+         * 锁持续时间，小于等于 0 时为看门狗模式
+         */
+        final long leaseTime;
+
+        /**
+         * 实际写入 Redis 的锁持续时间
+         */
+        final long internalLeaseTime;
+
+        /**
+         * 等待截止时间（毫秒）
+         */
+        final long deadline;
+
+        /**
+         * 本地同步队列，分段模式下为 null
+         */
+        final AbstractSyncQueue syncQueue;
+
+        /**
+         * 分段同步队列，非分段模式下为 null
+         */
+        final StripedSyncQueue stripe;
+
+        /**
+         * 抢占结果
+         */
+        final CompletableFuture<Boolean> future = new CompletableFuture<>();
+
+        /**
+         * 是否已订阅锁释放频道
+         */
+        volatile boolean subscribed;
+
+        AsyncAcquisition(String lockName, String ownerId, long leaseTime, long internalLeaseTime, long deadline, AbstractSyncQueue syncQueue) {
+            this.lockName = lockName;
+            this.ownerId = ownerId;
+            this.leaseTime = leaseTime;
+            this.internalLeaseTime = internalLeaseTime;
+            this.deadline = deadline;
+            this.syncQueue = syncQueue;
+            this.stripe = syncQueue == null ? publishSubscribe.getStripe(lockName) : null;
+            // 结束（包括调用方取消）时取消订阅，未抢占成功时释放引用
+            future.whenComplete((locked, e) -> {
+                if (subscribed)
+                    publishSubscribe.unsubscribe(lockName);
+                if (!Boolean.TRUE.equals(locked) && syncQueue != null)
+                    publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+            });
+        }
+
+        /**
+         * 尝试设置分布式锁，结果在公共线程池中处理（订阅频道是阻塞操作，不能在 Lettuce 的 IO 线程中执行）
+         */
+        void attempt() {
+            if (future.isDone())
+                return;
+            // 抢占前读取锁释放消息次数，抢占失败后若期间已有释放消息则立即重试
+            int releaseCount = syncQueue != null ? syncQueue.getReleaseCount() : stripe.getReleaseCount();
+            lockEngine.acquireAsync(lockName, internalLeaseTime, ownerId)
+                    .whenCompleteAsync((ttl, e) -> {
+                        if (e != null) {
+                            log.error("tryLockAsync fail key:{}, current:{}, ownerId:{}, e:", lockName, internalLeaseTime, ownerId, e);
+                            ttl = 0L;
+                        }
+                        onResult(ttl, releaseCount);
+                    });
+        }
+
+        /**
+         * 处理抢占结果
+         *
+         * @param ttl          null:抢占成功 !null:锁剩余时间
+         * @param releaseCount 抢占前读取的锁释放消息次数
+         */
+        void onResult(Long ttl, int releaseCount) {
+            // 设置分布式锁成功
+            if (ttl == null) {
+                if (isWatchdogMode(leaseTime))
+                    leaseWatchdog.watch(lockName, ownerId);
+                // 调用方已取消，归还刚抢到的锁；取消时已释放过引用，归还前补回一次
+                if (!future.complete(true)) {
+                    if (syncQueue != null)
+                        publishSubscribe.acquireSyncQueue(lockName);
+                    unDistributedLockAsync(lockName, ownerId, leaseTime, internalLeaseTime);
+                }
+                return;
+            }
+            heldLockCache.put(lockName, ttl);
+            // 没有剩余等待时间时直接失败，不再订阅频道重试
+            long remain = deadline - System.currentTimeMillis();
+            if (remain <= 0) {
+                future.complete(false);
+                return;
+            }
+            if (!subscribed) {
+                // 首次需要等待时订阅锁释放频道，订阅生效前的释放消息可能已经错过，订阅后立即重试一次
+                publishSubscribe.subscribe(lockName);
+                subscribed = true;
+                attempt();
+                return;
+            }
+            // 等待锁释放消息，锁过期不会发布消息，最多等到锁过期
+            Retry retry = new Retry();
+            if (syncQueue != null)
+                syncQueue.onRelease(retry, releaseCount);
+            else
+                stripe.onRelease(lockName, retry, releaseCount);
+            CompletableFuture.delayedExecutor(ttl > 0 ? Math.min(ttl, remain) : remain, TimeUnit.MILLISECONDS).execute(retry);
+        }
+
+        /**
+         * 下一次抢占，锁释放回调与定时只有一个生效；每条锁释放消息只唤醒一个异步等待者
+         */
+        final class Retry implements Runnable {
+
+            /**
+             * 是否已触发
+             */
+            final AtomicBoolean fired = new AtomicBoolean();
+
+            @Override
+            public void run() {
+                if (!fired.compareAndSet(false, true))
+                    return;
+                if (syncQueue != null)
+                    syncQueue.removeReleaseCallback(this);
+                else
+                    stripe.removeReleaseCallback(this);
+                // 已经结束的抢占不再重试，锁释放交给下一个等待者
+                if (!future.isDone())
+                    attempt();
+                else if (syncQueue != null)
+                    syncQueue.passRelease();
+                else
+                    stripe.passRelease(lockName);
+            }
+        }
+    }
+
 }
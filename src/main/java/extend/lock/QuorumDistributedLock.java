@@ -0,0 +1,478 @@
+package extend.lock;
+
+import io.lettuce.core.ClientOptions;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.TimeoutOptions;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.codec.StringCodec;
+import io.lettuce.core.resource.ClientResources;
+import io.lettuce.core.resource.DefaultClientResources;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * @author 田奇杭
+ * @Description 仲裁分布式锁（RedLock），在 extend.lock.quorum-nodes 配置的多个相互独立的 Redis 主节点上同时加锁，
+ * 过半节点成功且扣除抢占耗时与时钟漂移后锁仍有剩余有效时间才算成功，任意少数节点宕机不影响锁的可用性与互斥性。
+ * 抢占与释放都并发下发到所有节点，只等待过半节点的结果，抢占耗时取决于中位节点而不是所有节点之和。
+ * 节点之间没有锁释放消息，等待线程按随机间隔重试；不支持看门狗模式，必须指定锁持续时间
+ * @Date 2023/6/29 20:20
+ */
+@Slf4j
+@Service
+public class QuorumDistributedLock extends AbstractDistributedLock {
+
+    /**
+     * 仲裁锁lua脚本-抢占
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 线程标识
+     * 返回值: nil:成功 !nil:锁剩余时间
+     */
+    private static final String QUORUM_LOCK_SCRIPT = "if ((redis.call('EXISTS', KEYS[1]) == 0) or (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1)) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "return redis.call('PTTL', KEYS[1]);";
+
+    /**
+     * 仲裁锁lua脚本-释放
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 线程标识
+     * 返回值: nil:未持有锁 0:重入次数减一 1:已释放
+     */
+    private static final String QUORUM_UNLOCK_SCRIPT = "local count = redis.call('HGET', KEYS[1], ARGV[2]); \n" +
+            "if (count == false) then \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (tonumber(count) > 1) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], -1); \n" +
+            "    redis.call('PEXPIRE', KEYS[1], ARGV[1]); \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "redis.call('DEL', KEYS[1]); \n" +
+            "return 1;";
+
+    /**
+     * NOSCRIPT 错误前缀
+     */
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+    /**
+     * 时钟漂移的固定部分（毫秒），对应 Redis 过期精度
+     */
+    private static final long CLOCK_DRIFT_MILLIS = 2L;
+
+    /**
+     * 抢占脚本
+     */
+    private final RedisScript<Long> lockScript = RedisScript.of(QuorumDistributedLock.QUORUM_LOCK_SCRIPT, Long.class);
+
+    /**
+     * 释放脚本
+     */
+    private final RedisScript<Long> unLockScript = RedisScript.of(QuorumDistributedLock.QUORUM_UNLOCK_SCRIPT, Long.class);
+
+    /**
+     * 各节点共享的 Lettuce 线程资源
+     */
+    private ClientResources clientResources;
+
+    /**
+     * 仲裁节点
+     */
+    private final List<QuorumNode> nodes = new ArrayList<>();
+
+    /**
+     * 为每个节点创建独立的 Lettuce 客户端并发起连接，连接失败的节点在使用时重新连接
+     */
+    @PostConstruct
+    public void init() {
+        List<String> uris = distributedLockProperties.getQuorumNodes();
+        if (uris == null || uris.isEmpty())
+            return;
+        clientResources = DefaultClientResources.create();
+        // 断线期间的命令立即失败而不是缓冲到重连，单个节点的命令超过节点超时时间即失败
+        Duration nodeTimeout = Duration.ofMillis(distributedLockProperties.getQuorumNodeTimeout());
+        ClientOptions clientOptions = ClientOptions.builder()
+                .disconnectedBehavior(ClientOptions.DisconnectedBehavior.REJECT_COMMANDS)
+                .timeoutOptions(TimeoutOptions.enabled(nodeTimeout))
+                .build();
+        for (String uri : uris) {
+            RedisURI redisURI = RedisURI.create(uri);
+            RedisClient client = RedisClient.create(clientResources, redisURI);
+            client.setOptions(clientOptions);
+            QuorumNode node = new QuorumNode(client, redisURI);
+            node.connect();
+            nodes.add(node);
+        }
+        if (nodes.size() % 2 == 0)
+            log.warn("QuorumDistributedLock.init 仲裁节点数量为偶数，容错能力与少一个节点时相同 size:{}", nodes.size());
+    }
+
+    /**
+     * 关闭所有节点的连接
+     */
+    @PreDestroy
+    public void destroy() {
+        for (QuorumNode node : nodes)
+            node.shutdown();
+        if (clientResources != null)
+            clientResources.shutdown();
+    }
+
+    /**
+     * 尝试获取锁
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，必须大于 0
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit) {
+        if (nodes.isEmpty()) {
+            log.error("QuorumDistributedLock.tryLock fail key:{}, 未配置 extend.lock.quorum-nodes", key);
+            return false;
+        }
+        if (isWatchdogMode(leaseTime)) {
+            log.error("QuorumDistributedLock.tryLock fail key:{}, leaseTime:{}, 仲裁锁不支持看门狗模式", key, leaseTime);
+            return false;
+        }
+
+        // 格式化参数
+        String threadFlag = threadFlag();
+        long internalLeaseTime = unit.toMillis(leaseTime);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        long start = lockMetrics.start();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        for (; ; ) {
+            // 尝试在过半节点上设置分布式锁
+            Long ttl = tryAcquireDistributedLock(lockName, internalLeaseTime, threadFlag);
+            if (ttl == null) {
+                lockMetrics.acquired(lockName, start);
+                return true;
+            }
+            // 随机间隔后重试，避免各服务器同时重试再次平票
+            long remain = deadline - System.currentTimeMillis();
+            if (remain <= 0) {
+                lockMetrics.failed(lockName, false);
+                return false;
+            }
+            long retryInterval = distributedLockProperties.getQuorumRetryInterval();
+            long delay = ThreadLocalRandom.current().nextLong(retryInterval / 2, retryInterval + 1);
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(Math.min(parkTime(remain, ttl), delay)));
+        }
+    }
+
+    /**
+     * 获取锁
+     *
+     * @param key 锁名称
+     * @return true：抢占成功 false：抢占失败
+     */
+    @Override
+    public boolean lock(String key) {
+        return false;
+    }
+
+    /**
+     * 释放锁，并发下发到所有节点，过半节点释放成功即为成功。
+     * 最多等待一个节点超时时间：超时后返回 false，但已下发的释放命令仍会在各节点上执行，锁实际上可能已经释放，
+     * 因此返回 false 只表示未能在超时时间内确认，调用方不应据此重试释放或认为仍持有锁
+     *
+     * @param key       锁名称
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    @Override
+    public boolean unLock(String key, long leaseTime, TimeUnit unit) {
+        if (nodes.isEmpty())
+            return false;
+        String threadFlag = threadFlag();
+        String lockName = assembleLockName(key);
+        int quorum = quorum();
+        QuorumAttempt attempt = new QuorumAttempt(quorum, nodes.size() - quorum + 1);
+        for (CompletableFuture<Long> future : unDistributedLock(lockName, unit.toMillis(leaseTime), threadFlag)) {
+            future.whenComplete((flag, e) -> {
+                if (e != null)
+                    log.error("QuorumDistributedLock.unLock fail key:{}, threadFlag:{}, e:", lockName, threadFlag, e);
+                attempt.onResult(e == null && flag != null, null);
+            });
+        }
+        // 同样只等待过半节点，最多等待一个节点超时时间，不可用节点不拖慢释放
+        try {
+            return attempt.result.get(distributedLockProperties.getQuorumNodeTimeout(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            log.error("QuorumDistributedLock.unLock fail key:{}, threadFlag:{}, e:", lockName, threadFlag, e);
+        }
+        return false;
+    }
+
+    /**
+     * 组装锁名称
+     *
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    @Override
+    public String assembleLockName(String keyword) {
+        return assembleLockName("quorum", keyword);
+    }
+
+    /**
+     * 线程标识：启动时间与线程 id 以冒号拼接，不能相加。多个应用实例共用同一组仲裁节点，
+     * 相加后不同 JVM 的两个线程可能得到相同的和，被当作同一个持有者而重入
+     *
+     * @return 线程标识
+     */
+    private static String threadFlag() {
+        return AbstractDistributedLock.THREAD_FLAG + ":" + Thread.currentThread().getId();
+    }
+
+    /**
+     * 过半节点数量
+     *
+     * @return 过半节点数量
+     */
+    private int quorum() {
+        return nodes.size() / 2 + 1;
+    }
+
+    /**
+     * 在所有节点上并发执行抢占脚本，过半节点成功或已不可能过半时立即返回，不等待其余节点。
+     * 成功后扣除抢占耗时与时钟漂移，锁已没有剩余有效时间时视为失败；失败时在所有节点上执行释放脚本（只会删除自己持有的锁）
+     *
+     * @param lockName   锁名称
+     * @param leaseTime  持续时间
+     * @param threadFlag 线程标识
+     * @return null:成功 !null:失败，值为各节点中锁的最小剩余时间，未知时为 0
+     */
+    private Long tryAcquireDistributedLock(String lockName, long leaseTime, String threadFlag) {
+        long start = System.nanoTime();
+        int quorum = quorum();
+        QuorumAttempt attempt = new QuorumAttempt(quorum, nodes.size() - quorum + 1);
+        String leaseTimeArg = String.valueOf(leaseTime);
+        for (QuorumNode node : nodes) {
+            node.execute(lockScript, lockName, leaseTimeArg, threadFlag)
+                    .whenComplete((ttl, e) -> attempt.onResult(e == null && ttl == null, e == null ? ttl : null));
+        }
+
+        boolean success;
+        try {
+            // 最多等待一个节点超时时间，未响应的节点视为失败；平票时不会一直等待不可用节点
+            success = attempt.result.get(Math.min(leaseTime, distributedLockProperties.getQuorumNodeTimeout()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            success = false;
+        } catch (Exception e) {
+            log.error("QuorumDistributedLock.tryAcquireDistributedLock fail key:{}, leaseTime:{}, threadFlag:{}, e:", lockName, leaseTime, threadFlag, e);
+            success = false;
+        }
+
+        // 有效时间 = 持续时间 - 抢占耗时 - 时钟漂移
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        long drift = (long) (leaseTime * distributedLockProperties.getQuorumClockDriftFactor()) + CLOCK_DRIFT_MILLIS;
+        if (success && leaseTime - elapsed - drift > 0)
+            return null;
+
+        // 同一连接上的命令按顺序执行，释放一定在本次抢占之后生效
+        unDistributedLock(lockName, leaseTime, threadFlag);
+        long ttl = attempt.minTtl;
+        return ttl == Long.MAX_VALUE ? 0L : ttl;
+    }
+
+    /**
+     * 在所有节点上并发执行释放脚本
+     *
+     * @param lockName   锁名称
+     * @param leaseTime  持续时间
+     * @param threadFlag 线程标识
+     * @return 各节点的释放结果
+     */
+    private List<CompletableFuture<Long>> unDistributedLock(String lockName, long leaseTime, String threadFlag) {
+        String leaseTimeArg = String.valueOf(leaseTime);
+        List<CompletableFuture<Long>> futures = new ArrayList<>(nodes.size());
+        for (QuorumNode node : nodes)
+            futures.add(node.execute(unLockScript, lockName, leaseTimeArg, threadFlag));
+        return futures;
+    }
+
+    /**
+     * 一次抢占（或释放）的计票
+     */
+    private static final class QuorumAttempt {
+
+        /**
+         * 抢占结果，过半成功或过半失败时完成
+         */
+        final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        /**
+         * 成功节点数
+         */
+        final AtomicInteger successes = new AtomicInteger();
+
+        /**
+         * 失败节点数
+         */
+        final AtomicInteger failures = new AtomicInteger();
+
+        /**
+         * 需要的成功节点数
+         */
+        final int quorum;
+
+        /**
+         * 达到该失败节点数时已不可能过半
+         */
+        final int maxFailures;
+
+        /**
+         * 被他人持有的节点中锁的最小剩余时间
+         */
+        volatile long minTtl = Long.MAX_VALUE;
+
+        QuorumAttempt(int quorum, int maxFailures) {
+            this.quorum = quorum;
+            this.maxFailures = maxFailures;
+        }
+
+        /**
+         * 记录一个节点的结果
+         *
+         * @param success true:该节点抢占成功
+         * @param ttl     该节点上锁的剩余时间，抢占成功或出错时为 null
+         */
+        void onResult(boolean success, Long ttl) {
+            if (success) {
+                if (successes.incrementAndGet() == quorum)
+                    result.complete(true);
+                return;
+            }
+            if (ttl != null && ttl > 0) {
+                synchronized (this) {
+                    minTtl = Math.min(minTtl, ttl);
+                }
+            }
+            if (failures.incrementAndGet() == maxFailures)
+                result.complete(false);
+        }
+    }
+
+    /**
+     * 一个仲裁节点：独立的 Lettuce 客户端与连接。连接异步建立，节点不可用时本次抢占直接计为失败，
+     * 不会阻塞等待连接超时；断线后由 Lettuce 自动重连
+     */
+    private static final class QuorumNode {
+
+        /**
+         * 连接失败后再次尝试连接的间隔（毫秒）
+         */
+        private static final long RECONNECT_INTERVAL = 1000L;
+
+        /**
+         * 客户端
+         */
+        private final RedisClient client;
+
+        /**
+         * 节点地址
+         */
+        private final RedisURI redisURI;
+
+        /**
+         * 连接
+         */
+        private volatile CompletableFuture<StatefulRedisConnection<String, String>> connection;
+
+        /**
+         * 上次发起连接的时间
+         */
+        private volatile long connectTime;
+
+        QuorumNode(RedisClient client, RedisURI redisURI) {
+            this.client = client;
+            this.redisURI = redisURI;
+        }
+
+        /**
+         * 获取连接，未连接或上次连接失败时重新连接
+         *
+         * @return 连接
+         */
+        CompletableFuture<StatefulRedisConnection<String, String>> connect() {
+            CompletableFuture<StatefulRedisConnection<String, String>> current = connection;
+            if (current != null && (!current.isCompletedExceptionally() || System.currentTimeMillis() - connectTime < RECONNECT_INTERVAL))
+                return current;
+            synchronized (this) {
+                if (connection == current) {
+                    connectTime = System.currentTimeMillis();
+                    connection = client.connectAsync(StringCodec.UTF8, redisURI).toCompletableFuture();
+                    connection.whenComplete((created, e) -> {
+                        if (e != null)
+                            log.error("QuorumNode.connect fail uri:{}, e:", redisURI, e);
+                    });
+                }
+                return connection;
+            }
+        }
+
+        /**
+         * 执行脚本，节点上没有脚本（首次执行、节点重启）时退化为 EVAL，EVAL 同时会缓存脚本
+         *
+         * @param script 脚本对象
+         * @param key    KEYS[1]
+         * @param args   ARGV
+         * @return 脚本返回值
+         */
+        CompletableFuture<Long> execute(RedisScript<Long> script, String key, String... args) {
+            String[] keys = {key};
+            return connect().thenCompose(connection -> {
+                RedisAsyncCommands<String, String> commands = connection.async();
+                return commands.<Long>evalsha(script.getSha1(), ScriptOutputType.INTEGER, keys, args).toCompletableFuture()
+                        .handle((result, e) -> {
+                            if (e == null)
+                                return CompletableFuture.completedFuture(result);
+                            if (e.getMessage() == null || !e.getMessage().contains(NO_SCRIPT_ERROR))
+                                return CompletableFuture.<Long>failedFuture(e);
+                            return commands.<Long>eval(script.getScriptAsString(), ScriptOutputType.INTEGER, keys, args).toCompletableFuture();
+                        })
+                        .thenCompose(future -> future);
+            });
+        }
+
+        /**
+         * 关闭连接与客户端
+         */
+        void shutdown() {
+            CompletableFuture<StatefulRedisConnection<String, String>> current = connection;
+            if (current != null && current.isDone() && !current.isCompletedExceptionally())
+                current.join().close();
+            client.shutdown();
+        }
+    }
+
+}
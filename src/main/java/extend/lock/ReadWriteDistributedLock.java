@@ -0,0 +1,511 @@
+package extend.lock;
+
+import extend.enums.DistributedLockModeEnum;
+import extend.listener.PublishSubscribe;
+import extend.listener.SharedSyncQueue;
+import extend.script.LuaScriptRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 读写分布式锁，读锁之间共享，写锁独占；持有写锁的线程可以再获取读锁（锁降级）
+ * 锁结构为 hash：mode 字段记录当前模式（read/write），其余字段为持有者及其重入次数，
+ * 读锁持有者字段为线程标识，写锁持有者字段为 线程标识:write。
+ * 每个持有者在 zset（锁名称:leases，分值为按 Redis 服务端时间计算的租约到期时间）中有独立租约，
+ * 宕机的读线程租约到期后由下一次脚本调用清理，不会拖到整个锁过期；
+ * 写锁抢占失败时写入写等待标记（锁名称:writer），标记存在期间新的读锁需要等待（重入与锁降级除外），避免连续重叠的读锁饿死写锁。
+ * 锁结构由专用脚本维护，只在 Redis 锁引擎下装配
+ * @Date 2023/6/10 22:03
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "redis", matchIfMissing = true)
+public class ReadWriteDistributedLock extends AbstractDistributedLock {
+
+    /**
+     * 写锁持有者字段后缀
+     */
+    private static final String WRITE_FIELD_SUFFIX = ":write";
+
+    /**
+     * 持有者租约名称后缀
+     */
+    private static final String LEASES_SUFFIX = ":leases";
+
+    /**
+     * 写等待标记名称后缀
+     */
+    private static final String WRITER_SUFFIX = ":writer";
+
+    /**
+     * 清理租约已过期的持有者，脚本片段，不读取 ARGV
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     * 依赖 SERVER_TIME_SCRIPT 定义的 now；持有者全部过期时删除锁，写锁持有者过期而读锁仍在（锁降级）时模式切换为 read
+     */
+    private static final String EXPIRE_HOLDERS_SCRIPT = "local expired = redis.call('ZRANGEBYSCORE', KEYS[2], '-inf', now); \n" +
+            "if (#expired > 0) then \n" +
+            "    local writerExpired = false; \n" +
+            "    for i = 1, #expired do \n" +
+            "        redis.call('HDEL', KEYS[1], expired[i]); \n" +
+            "        if (string.sub(expired[i], -6) == '" + WRITE_FIELD_SUFFIX + "') then \n" +
+            "            writerExpired = true; \n" +
+            "        end; \n" +
+            "    end; \n" +
+            "    redis.call('ZREMRANGEBYSCORE', KEYS[2], '-inf', now); \n" +
+            "    if (redis.call('HLEN', KEYS[1]) <= 1) then \n" +
+            "        redis.call('DEL', KEYS[1], KEYS[2]); \n" +
+            "    elseif (writerExpired) then \n" +
+            "        redis.call('HSET', KEYS[1], 'mode', 'read'); \n" +
+            "    end; \n" +
+            "end; \n";
+
+    /**
+     * 延长持有者租约，脚本片段，定义 lease(field, leaseTime)
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     * 租约只延长不缩短；锁与租约的过期时间不短于最晚的租约，所有持有者宕机后两者一起过期
+     */
+    private static final String LEASE_SCRIPT = "local function lease(field, leaseTime) \n" +
+            "    local old = redis.call('ZSCORE', KEYS[2], field); \n" +
+            "    if (old == false) or (tonumber(old) < now + leaseTime) then \n" +
+            "        redis.call('ZADD', KEYS[2], now + leaseTime, field); \n" +
+            "    end; \n" +
+            "    if (redis.call('PTTL', KEYS[1]) < leaseTime) then \n" +
+            "        redis.call('PEXPIRE', KEYS[1], leaseTime); \n" +
+            "        redis.call('PEXPIRE', KEYS[2], leaseTime); \n" +
+            "    end; \n" +
+            "end; \n";
+
+    /**
+     * 抢占失败时的等待时间，脚本片段：最早过期的持有者的剩余租约
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     */
+    private static final String EARLIEST_LEASE_SCRIPT = "local earliest = redis.call('ZRANGE', KEYS[2], 0, 0, 'WITHSCORES'); \n" +
+            "if (#earliest == 0) then \n" +
+            "    return redis.call('PTTL', KEYS[1]); \n" +
+            "end; \n" +
+            "return tonumber(earliest[2]) - now;";
+
+    /**
+     * 读写分布式锁lua脚本-读锁抢占
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     * KEYS[3]: 写等待标记
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 读锁持有者字段
+     * ARGV[3]: 写锁持有者字段
+     * 重入与锁降级直接放行；有写线程在等待时新的读锁不再加入，返回写等待标记的剩余时间
+     */
+    private static final String READ_LOCK_SCRIPT = SERVER_TIME_SCRIPT + EXPIRE_HOLDERS_SCRIPT + LEASE_SCRIPT +
+            "local mode = redis.call('HGET', KEYS[1], 'mode'); \n" +
+            "if (mode ~= false) and ((redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1) or (redis.call('HEXISTS', KEYS[1], ARGV[3]) == 1)) then \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    lease(ARGV[2], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (mode == false) or (mode == 'read') then \n" +
+            "    local writer = redis.call('PTTL', KEYS[3]); \n" +
+            "    if (writer > 0) then \n" +
+            "        return writer; \n" +
+            "    end; \n" +
+            "    redis.call('HSET', KEYS[1], 'mode', 'read'); \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    lease(ARGV[2], tonumber(ARGV[1])); \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            EARLIEST_LEASE_SCRIPT;
+
+    /**
+     * 读写分布式锁lua脚本-写锁抢占
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     * KEYS[3]: 写等待标记
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 写锁持有者字段
+     * ARGV[3]: 写等待标记超时时间
+     * 抢占失败时写入（或刷新）写等待标记，已被其他写线程占用时保持不变；抢占成功时删除自己的标记
+     */
+    private static final String WRITE_LOCK_SCRIPT = SERVER_TIME_SCRIPT + EXPIRE_HOLDERS_SCRIPT + LEASE_SCRIPT +
+            "local mode = redis.call('HGET', KEYS[1], 'mode'); \n" +
+            "if (mode == false) or ((mode == 'write') and (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 1)) then \n" +
+            "    redis.call('HSET', KEYS[1], 'mode', 'write'); \n" +
+            "    redis.call('HINCRBY', KEYS[1], ARGV[2], 1); \n" +
+            "    lease(ARGV[2], tonumber(ARGV[1])); \n" +
+            "    if (redis.call('GET', KEYS[3]) == ARGV[2]) then \n" +
+            "        redis.call('DEL', KEYS[3]); \n" +
+            "    end; \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "local writer = redis.call('GET', KEYS[3]); \n" +
+            "if (writer == false) or (writer == ARGV[2]) then \n" +
+            "    redis.call('SET', KEYS[3], ARGV[2], 'PX', tonumber(ARGV[3])); \n" +
+            "end; \n" +
+            EARLIEST_LEASE_SCRIPT;
+
+    /**
+     * 读写分布式锁lua脚本-写线程放弃等待
+     * KEYS[1]: 写等待标记
+     * ARGV[1]: 写锁持有者字段
+     * ARGV[2]: 锁释放频道
+     * ARGV[3]: 锁名称
+     * 删除自己的写等待标记并通知被标记拦下的读线程
+     */
+    private static final String WRITE_CANCEL_SCRIPT = "if (redis.call('GET', KEYS[1]) ~= ARGV[1]) then \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "redis.call('DEL', KEYS[1]); \n" +
+            "redis.call('PUBLISH', ARGV[2], ARGV[3]); \n" +
+            "return 1;";
+
+    /**
+     * 读写分布式锁lua脚本-释放
+     * KEYS[1]: 锁名称
+     * KEYS[2]: 持有者租约
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 持有者字段
+     * ARGV[3]: 锁释放频道
+     * ARGV[4]: 1:释放的是写锁
+     * 写锁释放后若仍有读锁（锁降级），模式切换为 read 并通知等待的读线程
+     */
+    private static final String UNLOCK_SCRIPT = SERVER_TIME_SCRIPT + EXPIRE_HOLDERS_SCRIPT + LEASE_SCRIPT +
+            "if (redis.call('HEXISTS', KEYS[1], ARGV[2]) == 0) then \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "if (redis.call('HINCRBY', KEYS[1], ARGV[2], -1) > 0) then \n" +
+            "    lease(ARGV[2], tonumber(ARGV[1])); \n" +
+            "    return 0; \n" +
+            "end; \n" +
+            "redis.call('HDEL', KEYS[1], ARGV[2]); \n" +
+            "redis.call('ZREM', KEYS[2], ARGV[2]); \n" +
+            "if (redis.call('HLEN', KEYS[1]) == 1) then \n" +
+            "    redis.call('DEL', KEYS[1], KEYS[2]); \n" +
+            "    redis.call('PUBLISH', ARGV[3], KEYS[1]); \n" +
+            "    return 1; \n" +
+            "end; \n" +
+            "if (ARGV[4] == '1') then \n" +
+            "    redis.call('HSET', KEYS[1], 'mode', 'read'); \n" +
+            "    redis.call('PUBLISH', ARGV[3], KEYS[1]); \n" +
+            "end; \n" +
+            "return 1;";
+
+    /**
+     * 读写分布式锁lua脚本-看门狗续期，参数与返回值约定同 LeaseWatchdog
+     * KEYS[1..n]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2..n+1]: 与 KEYS 一一对应的持有者字段
+     * 持有者租约 key 由锁名称加后缀得到，与锁名称共用 hash tag，处于同一个 slot；租约已过期的持有者不再续期
+     */
+    private static final String RENEW_SCRIPT = SERVER_TIME_SCRIPT +
+            "local result = {}; \n" +
+            "for i = 1, #KEYS do \n" +
+            "    local leases = KEYS[i] .. '" + LEASES_SUFFIX + "'; \n" +
+            "    local expire = redis.call('ZSCORE', leases, ARGV[i + 1]); \n" +
+            "    if (expire ~= false) and (tonumber(expire) > now) and (redis.call('HEXISTS', KEYS[i], ARGV[i + 1]) == 1) then \n" +
+            "        redis.call('ZADD', leases, now + tonumber(ARGV[1]), ARGV[i + 1]); \n" +
+            "        if (redis.call('PTTL', KEYS[i]) < tonumber(ARGV[1])) then \n" +
+            "            redis.call('PEXPIRE', KEYS[i], tonumber(ARGV[1])); \n" +
+            "            redis.call('PEXPIRE', leases, tonumber(ARGV[1])); \n" +
+            "        end; \n" +
+            "        result[i] = 1; \n" +
+            "    else \n" +
+            "        result[i] = 0; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "return result;";
+
+    /**
+     * 锁释放监听
+     */
+    @Resource
+    private PublishSubscribe publishSubscribe;
+
+    /**
+     * Lua 脚本注册中心
+     */
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    /**
+     * 读锁抢占脚本
+     */
+    private RedisScript<Long> readLockScript;
+
+    /**
+     * 写锁抢占脚本
+     */
+    private RedisScript<Long> writeLockScript;
+
+    /**
+     * 写线程放弃等待脚本
+     */
+    private RedisScript<Long> writeCancelScript;
+
+    /**
+     * 释放脚本
+     */
+    private RedisScript<Long> unLockScript;
+
+    /**
+     * 看门狗续期脚本
+     */
+    private RedisScript<List<Long>> renewScript;
+
+    /**
+     * 注册脚本，由注册中心在启动时统一预加载
+     */
+    @PostConstruct
+    public void registerScript() {
+        readLockScript = luaScriptRegistry.register(ReadWriteDistributedLock.READ_LOCK_SCRIPT, Long.class);
+        writeLockScript = luaScriptRegistry.register(ReadWriteDistributedLock.WRITE_LOCK_SCRIPT, Long.class);
+        writeCancelScript = luaScriptRegistry.register(ReadWriteDistributedLock.WRITE_CANCEL_SCRIPT, Long.class);
+        unLockScript = luaScriptRegistry.register(ReadWriteDistributedLock.UNLOCK_SCRIPT, Long.class);
+        renewScript = luaScriptRegistry.registerLongList(ReadWriteDistributedLock.RENEW_SCRIPT);
+    }
+
+    /**
+     * 尝试获取写锁
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit) {
+        return tryLock(key, DistributedLockModeEnum.WRITE, waitTime, leaseTime, unit);
+    }
+
+    /**
+     * 按读写模式尝试获取锁，读锁等待线程在锁释放时被一起唤醒
+     *
+     * @param key       锁名称
+     * @param mode      读写模式
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, DistributedLockModeEnum mode, long waitTime, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long writerIntentTimeout = distributedLockProperties.getWriterIntentTimeout();
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        boolean shared = mode == DistributedLockModeEnum.READ;
+        long start = lockMetrics.start();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+        List<String> keys = assembleKeys(lockName);
+
+        // 获取分布式锁对应的JVM本地等待队列，持有引用直到抢占失败或释放锁
+        SharedSyncQueue syncQueue = publishSubscribe.acquireSyncQueue(lockName, SharedSyncQueue::new);
+        boolean locked = false;
+        boolean subscribed = false;
+
+        try {
+            for (; ; ) {
+                // 抢占前读取唤醒次数，抢占失败后若期间已有释放消息则不再休眠
+                int signalCount = syncQueue.getSignalCount();
+                // 尝试设置分布式锁
+                Long ttl = tryAcquireDistributedLock(keys, internalLeaseTime, threadFlag, shared, writerIntentTimeout);
+                // 设置分布式锁成功
+                if (ttl == null) {
+                    // 看门狗模式登记续期
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, holderField(threadFlag, shared), renewScript);
+                    locked = true;
+                    lockMetrics.acquired(lockName, start);
+                    return true;
+                }
+                if (!subscribed) {
+                    // 首次需要等待时订阅锁释放频道，订阅生效前的释放消息可能已经错过，订阅后立即重试一次
+                    publishSubscribe.subscribe(lockName);
+                    subscribed = true;
+                    continue;
+                }
+                // 等待锁释放消息
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    if (!shared)
+                        cancelWriterIntent(keys, threadFlag);
+                    lockMetrics.failed(lockName, false);
+                    return false;
+                }
+                // 最迟在最早过期的持有者（或写等待标记）过期时醒来重试，写线程最长休眠半个标记超时时间以刷新标记
+                long parkTime = parkTime(remain, ttl);
+                if (!shared)
+                    parkTime = Math.min(parkTime, Math.max(writerIntentTimeout / 2, 1L));
+                syncQueue.await(shared, parkTime, signalCount);
+            }
+        } finally {
+            if (subscribed)
+                publishSubscribe.unsubscribe(lockName);
+            if (!locked)
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+        }
+    }
+
+    /**
+     * 获取锁
+     *
+     * @param key 锁名称
+     * @return true：抢占成功 false：抢占失败
+     */
+    @Override
+    public boolean lock(String key) {
+        return false;
+    }
+
+    /**
+     * 释放写锁
+     *
+     * @param key       锁名称
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    @Override
+    public boolean unLock(String key, long leaseTime, TimeUnit unit) {
+        return unLock(key, DistributedLockModeEnum.WRITE, leaseTime, unit);
+    }
+
+    /**
+     * 按读写模式释放锁
+     *
+     * @param key       锁名称
+     * @param mode      读写模式
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    @Override
+    public boolean unLock(String key, DistributedLockModeEnum mode, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        boolean shared = mode == DistributedLockModeEnum.READ;
+        String field = holderField(threadFlag, shared);
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        // 取消续期
+        if (isWatchdogMode(leaseTime))
+            leaseWatchdog.unwatch(lockName, field);
+
+        // 执行释放分布式锁脚本
+        Long flag = unDistributedLock(assembleKeys(lockName), internalLeaseTime, field, shared);
+
+        // 释放抢占时持有的引用
+        SharedSyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
+        if (syncQueue != null)
+            publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+
+        return flag != null;
+    }
+
+    /**
+     * 组装锁名称
+     *
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    @Override
+    public String assembleLockName(String keyword) {
+        return assembleLockName("readWrite", keyword);
+    }
+
+    /**
+     * 锁 hash 中代表持有者的字段
+     *
+     * @param threadFlag 线程标识
+     * @param shared     true:读锁 false:写锁
+     * @return 持有者字段
+     */
+    private String holderField(long threadFlag, boolean shared) {
+        return shared ? String.valueOf(threadFlag) : threadFlag + WRITE_FIELD_SUFFIX;
+    }
+
+    /**
+     * 组装脚本 key：锁名称、持有者租约、写等待标记，共用锁名称中的 hash tag
+     *
+     * @param lockName 锁名称
+     * @return 脚本 key
+     */
+    private List<String> assembleKeys(String lockName) {
+        return Arrays.asList(lockName, lockName + LEASES_SUFFIX, lockName + WRITER_SUFFIX);
+    }
+
+    /**
+     * 尝试获取分布式读锁或写锁
+     *
+     * @param keys                脚本 key
+     * @param current             持续时间
+     * @param threadFlag          线程标识
+     * @param shared              true:读锁 false:写锁
+     * @param writerIntentTimeout 写等待标记超时时间
+     * @return null:成功 !null:失败
+     */
+    private Long tryAcquireDistributedLock(List<String> keys, long current, long threadFlag, boolean shared, long writerIntentTimeout) {
+        try {
+            if (shared)
+                return luaScriptRegistry.execute(readLockScript, keys, String.valueOf(current),
+                        holderField(threadFlag, true), holderField(threadFlag, false));
+            return luaScriptRegistry.execute(writeLockScript, keys, String.valueOf(current),
+                    holderField(threadFlag, false), String.valueOf(writerIntentTimeout));
+        } catch (Exception e) {
+            log.error("tryAcquireDistributedLock fail key:{}, current:{}, threadFlag:{}, shared:{}, e:", keys.get(0), current, threadFlag, shared, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * 写线程等待超时，删除自己的写等待标记
+     *
+     * @param keys       脚本 key
+     * @param threadFlag 线程标识
+     */
+    private void cancelWriterIntent(List<String> keys, long threadFlag) {
+        try {
+            luaScriptRegistry.execute(writeCancelScript, Collections.singletonList(keys.get(2)), holderField(threadFlag, false),
+                    PublishSubscribe.getChannelName(keys.get(0)), keys.get(0));
+        } catch (Exception e) {
+            log.error("cancelWriterIntent fail key:{}, threadFlag:{}, e:", keys.get(0), threadFlag, e);
+        }
+    }
+
+    /**
+     * 释放分布式读锁或写锁
+     *
+     * @param keys    脚本 key
+     * @param current 持续时间
+     * @param field   持有者字段
+     * @param shared  true:读锁 false:写锁
+     * @return null:失败 !null:成功
+     */
+    private Long unDistributedLock(List<String> keys, long current, String field, boolean shared) {
+        try {
+            return luaScriptRegistry.execute(unLockScript, keys.subList(0, 2), String.valueOf(current), field,
+                    PublishSubscribe.getChannelName(keys.get(0)), shared ? "0" : "1");
+        } catch (Exception e) {
+            log.error("unDistributedLock fail key:{}, current:{}, field:{}, e:", keys.get(0), current, field, e);
+        }
+        return null;
+    }
+
+}
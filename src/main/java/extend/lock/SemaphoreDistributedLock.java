@@ -0,0 +1,325 @@
+package extend.lock;
+
+import extend.annotation.DistributedLock;
+import extend.listener.PermitSyncQueue;
+import extend.listener.PublishSubscribe;
+import extend.script.LuaScriptRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author 田奇杭
+ * @Description 信号量分布式锁，最多允许 permits 个线程同时持有。
+ * 锁结构为 zset：成员为持有者线程标识，分值为该持有者的过期时间，每个持有者独立过期，
+ * 抢占时先清理已过期的持有者再判断剩余许可，过期时间以 Redis 服务端时间为准；同一线程重入只在本地计数，不重复占用许可。
+ * 只在 Redis 锁引擎下装配
+ * @Date 2023/6/17 22:10
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "extend.lock", name = "engine", havingValue = "redis", matchIfMissing = true)
+public class SemaphoreDistributedLock extends AbstractDistributedLock {
+
+    /**
+     * 信号量分布式锁lua脚本-抢占
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2]: 线程标识
+     * ARGV[3]: 许可数量
+     * 返回值: nil:成功 !nil:最早过期的持有者的剩余时间
+     */
+    private static final String SEMAPHORE_LOCK_SCRIPT = SERVER_TIME_SCRIPT +
+            "redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now); \n" +
+            "if (redis.call('ZCARD', KEYS[1]) < tonumber(ARGV[3])) then \n" +
+            "    redis.call('ZADD', KEYS[1], now + tonumber(ARGV[1]), ARGV[2]); \n" +
+            "    if (redis.call('PTTL', KEYS[1]) < tonumber(ARGV[1])) then \n" +
+            "        redis.call('PEXPIRE', KEYS[1], tonumber(ARGV[1])); \n" +
+            "    end; \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "local first = redis.call('ZRANGE', KEYS[1], 0, 0, 'WITHSCORES'); \n" +
+            "return tonumber(first[2]) - now;";
+
+    /**
+     * 信号量分布式锁lua脚本-释放
+     * KEYS[1]: 锁名称
+     * ARGV[1]: 线程标识
+     * ARGV[2]: 锁释放频道
+     * 释放消息内容为本次释放的许可数量（自身 + 顺带清理的已过期持有者）
+     */
+    private static final String SEMAPHORE_UNLOCK_SCRIPT = SERVER_TIME_SCRIPT +
+            "if (redis.call('ZREM', KEYS[1], ARGV[1]) == 0) then \n" +
+            "    return nil; \n" +
+            "end; \n" +
+            "local freed = 1 + redis.call('ZREMRANGEBYSCORE', KEYS[1], '-inf', now); \n" +
+            "if (redis.call('ZCARD', KEYS[1]) == 0) then \n" +
+            "    redis.call('DEL', KEYS[1]); \n" +
+            "end; \n" +
+            "redis.call('PUBLISH', ARGV[2], freed); \n" +
+            "return 1;";
+
+    /**
+     * 信号量分布式锁lua脚本-看门狗续期，参数与返回值约定同 LeaseWatchdog
+     * KEYS[1..n]: 锁名称
+     * ARGV[1]: 锁持续时间
+     * ARGV[2..n+1]: 与 KEYS 一一对应的线程标识
+     */
+    private static final String SEMAPHORE_RENEW_SCRIPT = SERVER_TIME_SCRIPT +
+            "local result = {}; \n" +
+            "for i = 1, #KEYS do \n" +
+            "    if (redis.call('ZSCORE', KEYS[i], ARGV[i + 1]) ~= false) then \n" +
+            "        redis.call('ZADD', KEYS[i], now + tonumber(ARGV[1]), ARGV[i + 1]); \n" +
+            "        if (redis.call('PTTL', KEYS[i]) < tonumber(ARGV[1])) then \n" +
+            "            redis.call('PEXPIRE', KEYS[i], tonumber(ARGV[1])); \n" +
+            "        end; \n" +
+            "        result[i] = 1; \n" +
+            "    else \n" +
+            "        result[i] = 0; \n" +
+            "    end; \n" +
+            "end; \n" +
+            "return result;";
+
+    /**
+     * 本地重入计数
+     * key: 锁名称 + 线程标识
+     * value: 重入次数
+     */
+    private final Map<String, Integer> holdCountMap = new ConcurrentHashMap<>();
+
+    /**
+     * 锁释放监听
+     */
+    @Resource
+    private PublishSubscribe publishSubscribe;
+
+    /**
+     * Lua 脚本注册中心
+     */
+    @Resource
+    private LuaScriptRegistry luaScriptRegistry;
+
+    /**
+     * 抢占脚本
+     */
+    private RedisScript<Long> lockScript;
+
+    /**
+     * 释放脚本
+     */
+    private RedisScript<Long> unLockScript;
+
+    /**
+     * 续期脚本
+     */
+    private RedisScript<List<Long>> renewScript;
+
+    /**
+     * 注册脚本，由注册中心在启动时统一预加载
+     */
+    @PostConstruct
+    public void registerScript() {
+        lockScript = luaScriptRegistry.register(SemaphoreDistributedLock.SEMAPHORE_LOCK_SCRIPT, Long.class);
+        unLockScript = luaScriptRegistry.register(SemaphoreDistributedLock.SEMAPHORE_UNLOCK_SCRIPT, Long.class);
+        renewScript = luaScriptRegistry.registerLongList(SemaphoreDistributedLock.SEMAPHORE_RENEW_SCRIPT);
+    }
+
+    /**
+     * 尝试获取锁，许可数量为 1
+     *
+     * @param key       锁名称
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, long waitTime, long leaseTime, TimeUnit unit) {
+        return tryLock(key, 1, waitTime, leaseTime, unit);
+    }
+
+    /**
+     * 按注解配置的许可数量尝试获取锁
+     *
+     * @param key             锁名称
+     * @param distributedLock 分布式锁注解
+     * @return true:抢占成功 false:抢占失败
+     */
+    @Override
+    public boolean tryLock(String key, DistributedLock distributedLock) {
+        return tryLock(key, distributedLock.permits(), distributedLock.waitTime(), distributedLock.leaseTime(), distributedLock.timeUnit());
+    }
+
+    /**
+     * 尝试获取一个许可
+     *
+     * @param key       锁名称
+     * @param permits   许可数量
+     * @param waitTime  等待时间
+     * @param leaseTime 锁持续时间，小于等于 0 时开启看门狗续期
+     * @param unit      时间单位
+     * @return true:抢占成功 false:抢占失败
+     */
+    public boolean tryLock(String key, int permits, long waitTime, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+        long internalLeaseTime = internalLeaseTime(leaseTime, unit);
+        long deadline = System.currentTimeMillis() + unit.toMillis(waitTime);
+        long start = lockMetrics.start();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+        String holdKey = lockName + "#" + threadFlag;
+
+        // 重入只增加本地计数
+        if (holdCountMap.computeIfPresent(holdKey, (k, count) -> count + 1) != null)
+            return true;
+
+        // 获取分布式锁对应的JVM本地等待队列，持有引用直到抢占失败或释放锁
+        PermitSyncQueue syncQueue = publishSubscribe.acquireSyncQueue(lockName, PermitSyncQueue::new);
+        boolean locked = false;
+        boolean subscribed = false;
+
+        try {
+            for (; ; ) {
+                // 抢占前读取唤醒次数，抢占失败后若期间已有释放消息则不再休眠
+                int signalCount = syncQueue.getSignalCount();
+                // 尝试获取许可
+                Long ttl = tryAcquireDistributedLock(lockName, internalLeaseTime, threadFlag, permits);
+                // 获取许可成功
+                if (ttl == null) {
+                    holdCountMap.put(holdKey, 1);
+                    // 看门狗模式登记续期
+                    if (isWatchdogMode(leaseTime))
+                        leaseWatchdog.watch(lockName, String.valueOf(threadFlag), renewScript);
+                    locked = true;
+                    lockMetrics.acquired(lockName, start);
+                    return true;
+                }
+                if (!subscribed) {
+                    // 首次需要等待时订阅锁释放频道，订阅生效前的释放消息可能已经错过，订阅后立即重试一次
+                    publishSubscribe.subscribe(lockName);
+                    subscribed = true;
+                    continue;
+                }
+                // 等待许可释放消息
+                long remain = deadline - System.currentTimeMillis();
+                if (remain <= 0) {
+                    lockMetrics.failed(lockName, false);
+                    return false;
+                }
+                // 最迟在锁（或最早过期的持有者）过期时醒来重试
+                syncQueue.await(false, parkTime(remain, ttl), signalCount);
+            }
+        } finally {
+            if (subscribed)
+                publishSubscribe.unsubscribe(lockName);
+            if (!locked)
+                publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+        }
+    }
+
+    /**
+     * 获取锁
+     *
+     * @param key 锁名称
+     * @return true：抢占成功 false：抢占失败
+     */
+    @Override
+    public boolean lock(String key) {
+        return false;
+    }
+
+    /**
+     * 释放许可，重入计数归零时才真正释放
+     *
+     * @param key       锁名称
+     * @param leaseTime 锁持续时间
+     * @param unit      时间单位
+     * @return true：释放锁成功 false：释放锁失败
+     */
+    @Override
+    public boolean unLock(String key, long leaseTime, TimeUnit unit) {
+        // 格式化参数
+        long threadFlag = AbstractDistributedLock.THREAD_FLAG + Thread.currentThread().getId();
+
+        // 组装锁名称
+        String lockName = assembleLockName(key);
+
+        // 重入计数减一，未归零时不释放许可
+        Integer count = holdCountMap.computeIfPresent(lockName + "#" + threadFlag, (k, c) -> c > 1 ? c - 1 : null);
+        if (count != null)
+            return true;
+
+        // 取消续期
+        if (isWatchdogMode(leaseTime))
+            leaseWatchdog.unwatch(lockName, String.valueOf(threadFlag));
+
+        // 执行释放许可脚本
+        Long flag = unDistributedLock(lockName, threadFlag);
+
+        // 释放抢占时持有的引用
+        PermitSyncQueue syncQueue = publishSubscribe.getSyncQueue(lockName);
+        if (syncQueue != null)
+            publishSubscribe.releaseSyncQueue(lockName, syncQueue);
+
+        return flag != null;
+    }
+
+    /**
+     * 组装锁名称
+     *
+     * @param keyword 关键字
+     * @return 锁名称
+     */
+    @Override
+    public String assembleLockName(String keyword) {
+        return assembleLockName("semaphore", keyword);
+    }
+
+    /**
+     * 尝试获取许可
+     *
+     * @param key      锁名称
+     * @param current  持续时间
+     * @param threadId 线程标识
+     * @param permits  许可数量
+     * @return null:成功 !null:失败
+     */
+    private Long tryAcquireDistributedLock(String key, long current, long threadId, int permits) {
+        try {
+            return luaScriptRegistry.execute(lockScript, Collections.singletonList(key), String.valueOf(current),
+                    String.valueOf(threadId), String.valueOf(permits));
+        } catch (Exception e) {
+            log.error("tryAcquireDistributedLock fail key:{}, current:{}, threadId:{}, permits:{}, e:", key, current, threadId, permits, e);
+        }
+        return 0L;
+    }
+
+    /**
+     * 释放许可
+     *
+     * @param key      锁名称
+     * @param threadId 线程标识
+     * @return null:失败 !null:成功
+     */
+    private Long unDistributedLock(String key, long threadId) {
+        try {
+            return luaScriptRegistry.execute(unLockScript, Collections.singletonList(key), String.valueOf(threadId),
+                    PublishSubscribe.getChannelName(key));
+        } catch (Exception e) {
+            log.error("unDistributedLock fail key:{}, threadId:{}, e:", key, threadId, e);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,378 @@
+package extend.script;
+
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.connection.lettuce.LettuceConverters;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.serializer.RedisSerializer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author 田奇杭
+ * @Description Lua 脚本注册中心，启动时预加载所有锁脚本，运行期通过 EVALSHA 执行，
+ * 遇到 NOSCRIPT（Redis 重启、主从切换、集群新节点）时自动重新加载
+ * @Date 2023/6/3 21:16
+ */
+@Slf4j
+@Component
+public class LuaScriptRegistry implements SmartInitializingSingleton {
+
+    /**
+     * NOSCRIPT 错误前缀
+     */
+    private static final String NO_SCRIPT_ERROR = "NOSCRIPT";
+
+    /**
+     * 已注册的脚本
+     * key: 脚本 sha1
+     * value: 脚本对象
+     */
+    private final Map<String, RedisScript<?>> scriptMap = new ConcurrentHashMap<>();
+
+    /**
+     * EVALSHA 命中次数
+     */
+    private final LongAdder hitCount = new LongAdder();
+
+    /**
+     * NOSCRIPT 后重新加载次数
+     */
+    private final LongAdder reloadCount = new LongAdder();
+
+    /**
+     * 锁命令专用的 redis 操作对象，不开启事务支持，见 LockRedisConfig
+     */
+    @Resource
+    private RedisTemplate<String, String> lockRedisTemplate;
+
+    /**
+     * 注册脚本，同一份脚本只会保留一个对象，sha1 只计算一次
+     *
+     * @param source     脚本内容
+     * @param resultType 返回值类型
+     * @return 脚本对象
+     */
+    @SuppressWarnings("unchecked")
+    public <T> RedisScript<T> register(String source, Class<T> resultType) {
+        RedisScript<T> script = RedisScript.of(source, resultType);
+        return (RedisScript<T>) scriptMap.computeIfAbsent(script.getSha1(), k -> script);
+    }
+
+    /**
+     * 注册返回整数数组的脚本（例如批量续期）。返回值类型只能以 Class 表示，List&lt;Long&gt; 没有对应的 Class 对象，
+     * 在这里集中转换一次：Lettuce 按 MULTI 输出解析整数数组，元素均为 Long
+     *
+     * @param source 脚本内容
+     * @return 脚本对象
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public RedisScript<List<Long>> registerLongList(String source) {
+        return (RedisScript<List<Long>>) (RedisScript) register(source, List.class);
+    }
+
+    /**
+     * 所有单例初始化完成后（各个锁实现均已注册脚本）预加载脚本，
+     * 加载失败只记录日志，执行时遇到 NOSCRIPT 还会再次加载；没有注册脚本（进程内锁引擎）时不连接 Redis
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (scriptMap.isEmpty())
+            return;
+        try {
+            loadAll();
+        } catch (Exception e) {
+            log.error("LuaScriptRegistry.afterSingletonsInstantiated loadAll fail size:{}, e:", scriptMap.size(), e);
+        }
+    }
+
+    /**
+     * 将所有已注册脚本加载到 Redis 脚本缓存
+     */
+    public void loadAll() {
+        lockRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            for (RedisScript<?> script : scriptMap.values())
+                load(connection, script);
+            return null;
+        });
+    }
+
+    /**
+     * 通过 EVALSHA 执行脚本
+     *
+     * @param script 脚本对象
+     * @param keys   KEYS
+     * @param args   ARGV
+     * @return 脚本返回值
+     */
+    public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        return lockRedisTemplate.execute((RedisCallback<T>) connection -> execute(connection, script, keys.size(), keysAndArgs));
+    }
+
+    /**
+     * 通过 Lettuce 异步命令执行脚本，不阻塞调用线程，NOSCRIPT 时退化为 EVAL（EVAL 同时会缓存脚本）
+     *
+     * @param script 脚本对象
+     * @param keys   KEYS
+     * @param args   ARGV
+     * @return 脚本返回值
+     */
+    public <T> CompletableFuture<T> executeAsync(RedisScript<T> script, List<String> keys, Object... args) {
+        return executeBatch(script, Collections.singletonList(keys), Collections.singletonList(args)).get(0);
+    }
+
+    /**
+     * 通过 Lettuce 异步命令连续下发多次脚本调用，不等待前一次的返回：
+     * 集群模式下 Lettuce 按 key 的 slot 把每次调用写到对应节点的连接上，
+     * 同一节点的调用在一条连接上流水线执行，整体耗时约为最慢节点的一次往返。
+     * 每次调用各自处理 NOSCRIPT（退化为 EVAL），不会因为部分节点缺少脚本而重复执行已成功的调用
+     *
+     * @param script   脚本对象
+     * @param keysList 每次调用的 KEYS，同一次调用的 KEYS 必须在同一个 slot
+     * @param argsList 每次调用的 ARGV
+     * @return 每次调用的返回值，与 keysList 顺序一致
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<CompletableFuture<T>> executeBatch(RedisScript<T> script, List<List<String>> keysList, List<Object[]> argsList) {
+        List<CompletableFuture<T>> futures = new ArrayList<>(keysList.size());
+        RedisConnection connection;
+        try {
+            connection = lockRedisTemplate.getRequiredConnectionFactory().getConnection();
+        } catch (Exception e) {
+            for (int i = 0; i < keysList.size(); i++)
+                futures.add(CompletableFuture.failedFuture(e));
+            return futures;
+        }
+        try {
+            RedisClusterAsyncCommands<byte[], byte[]> commands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            ScriptOutputType outputType = LettuceConverters.toScriptOutputType(ReturnType.fromJavaType(script.getResultType()));
+            for (int i = 0; i < keysList.size(); i++)
+                futures.add(evalShaAsync(commands, script, outputType, keysList.get(i), argsList.get(i)));
+        } catch (Exception e) {
+            while (futures.size() < keysList.size())
+                futures.add(CompletableFuture.failedFuture(e));
+        }
+        // 共享连接关闭时不会真正断开，独占连接需等命令全部完成后再关闭
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).whenComplete((result, e) -> connection.close());
+        return futures;
+    }
+
+    /**
+     * 在同一条连接上连续下发多次同一个脚本调用再统一等待结果，一次网络往返完成，
+     * 共享的多路复用连接上不需要为 pipeline 单独建立连接；任意一次 NOSCRIPT 都会重新加载全部脚本后整体重试一次
+     *
+     * @param script   脚本对象
+     * @param keysList 每次执行的 KEYS
+     * @param argsList 每次执行的 ARGV
+     * @return 每次执行的返回值，与 keysList 顺序一致
+     */
+    public <T> List<T> executePipelined(RedisScript<T> script, List<List<String>> keysList, List<Object[]> argsList) {
+        try {
+            return doExecutePipelined(script, keysList, argsList);
+        } catch (Exception e) {
+            if (!isNoScriptError(e))
+                throw e;
+        }
+        log.info("LuaScriptRegistry.executePipelined NOSCRIPT, reload sha1:{}", script.getSha1());
+        loadAll();
+        reloadCount.increment();
+        return doExecutePipelined(script, keysList, argsList);
+    }
+
+    /**
+     * 异步执行一次脚本，NOSCRIPT 时退化为 EVAL
+     *
+     * @param commands   Lettuce 异步命令
+     * @param script     脚本对象
+     * @param outputType 返回值类型
+     * @param keys       KEYS
+     * @param args       ARGV
+     * @return 脚本返回值
+     */
+    private <T> CompletableFuture<T> evalShaAsync(RedisClusterAsyncCommands<byte[], byte[]> commands, RedisScript<T> script,
+                                                  ScriptOutputType outputType, List<String> keys, Object[] args) {
+        byte[][] keysAndArgs = keysAndArgs(keys, args);
+        byte[][] rawKeys = Arrays.copyOfRange(keysAndArgs, 0, keys.size());
+        byte[][] rawArgs = Arrays.copyOfRange(keysAndArgs, keys.size(), keysAndArgs.length);
+        return commands.<Object>evalsha(script.getSha1(), outputType, rawKeys, rawArgs).toCompletableFuture()
+                .handle((result, e) -> {
+                    if (e == null) {
+                        hitCount.increment();
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (!isNoScriptError(e))
+                        return CompletableFuture.failedFuture(e);
+                    log.info("LuaScriptRegistry.evalShaAsync NOSCRIPT, eval sha1:{}", script.getSha1());
+                    reloadCount.increment();
+                    return commands.<Object>eval(script.getScriptAsString(), outputType, rawKeys, rawArgs).toCompletableFuture();
+                })
+                .thenCompose(Function.identity())
+                .thenApply(result -> deserialize(script, result));
+    }
+
+    /**
+     * EVALSHA 命中次数
+     *
+     * @return 命中次数
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * NOSCRIPT 后重新加载次数
+     *
+     * @return 重新加载次数
+     */
+    public long getReloadCount() {
+        return reloadCount.sum();
+    }
+
+    /**
+     * 在指定连接上执行脚本，NOSCRIPT 时先重新加载再执行一次，
+     * 集群下 SCRIPT LOAD 可能未落到 key 所在节点，再次 NOSCRIPT 时退化为 EVAL
+     *
+     * @param connection  连接
+     * @param script      脚本对象
+     * @param numKeys     KEYS 数量
+     * @param keysAndArgs KEYS + ARGV
+     * @return 脚本返回值
+     */
+    <T> T execute(RedisConnection connection, RedisScript<T> script, int numKeys, byte[][] keysAndArgs) {
+        ReturnType returnType = ReturnType.fromJavaType(script.getResultType());
+        try {
+            T result = deserialize(script, connection.scriptingCommands().evalSha(script.getSha1(), returnType, numKeys, keysAndArgs));
+            hitCount.increment();
+            return result;
+        } catch (Exception e) {
+            if (!isNoScriptError(e))
+                throw e;
+        }
+        log.info("LuaScriptRegistry.execute NOSCRIPT, reload sha1:{}", script.getSha1());
+        load(connection, script);
+        reloadCount.increment();
+        try {
+            return deserialize(script, connection.scriptingCommands().evalSha(script.getSha1(), returnType, numKeys, keysAndArgs));
+        } catch (Exception e) {
+            if (!isNoScriptError(e))
+                throw e;
+        }
+        return deserialize(script, connection.scriptingCommands().eval(rawSource(script), returnType, numKeys, keysAndArgs));
+    }
+
+    /**
+     * 通过 Lettuce 异步命令连续下发脚本调用，全部下发后再等待结果
+     *
+     * @param script   脚本对象
+     * @param keysList 每次执行的 KEYS
+     * @param argsList 每次执行的 ARGV
+     * @return 每次执行的返回值
+     */
+    @SuppressWarnings("unchecked")
+    private <T> List<T> doExecutePipelined(RedisScript<T> script, List<List<String>> keysList, List<Object[]> argsList) {
+        ScriptOutputType outputType = LettuceConverters.toScriptOutputType(ReturnType.fromJavaType(script.getResultType()));
+        List<T> results = lockRedisTemplate.execute((RedisCallback<List<T>>) connection -> {
+            RedisClusterAsyncCommands<byte[], byte[]> commands = (RedisClusterAsyncCommands<byte[], byte[]>) connection.getNativeConnection();
+            List<RedisFuture<T>> futures = new ArrayList<>(keysList.size());
+            for (int i = 0; i < keysList.size(); i++) {
+                List<String> keys = keysList.get(i);
+                byte[][] keysAndArgs = keysAndArgs(keys, argsList.get(i));
+                futures.add(commands.evalsha(script.getSha1(), outputType, Arrays.copyOfRange(keysAndArgs, 0, keys.size()),
+                        Arrays.copyOfRange(keysAndArgs, keys.size(), keysAndArgs.length)));
+            }
+            List<T> values = new ArrayList<>(futures.size());
+            for (RedisFuture<T> future : futures)
+                values.add(future.toCompletableFuture().join());
+            return values;
+        });
+        hitCount.add(keysList.size());
+        return results;
+    }
+
+    /**
+     * 组装 KEYS + ARGV
+     *
+     * @param keys KEYS
+     * @param args ARGV
+     * @return 序列化后的 KEYS + ARGV
+     */
+    byte[][] keysAndArgs(List<String> keys, Object... args) {
+        RedisSerializer<String> serializer = lockRedisTemplate.getStringSerializer();
+        byte[][] keysAndArgs = new byte[keys.size() + args.length][];
+        int i = 0;
+        for (String key : keys)
+            keysAndArgs[i++] = serializer.serialize(key);
+        for (Object arg : args)
+            keysAndArgs[i++] = serializer.serialize(String.valueOf(arg));
+        return keysAndArgs;
+    }
+
+    /**
+     * 加载脚本
+     *
+     * @param connection 连接
+     * @param script     脚本对象
+     */
+    private void load(RedisConnection connection, RedisScript<?> script) {
+        connection.scriptingCommands().scriptLoad(rawSource(script));
+    }
+
+    /**
+     * 脚本内容
+     *
+     * @param script 脚本对象
+     * @return 序列化后的脚本内容
+     */
+    private byte[] rawSource(RedisScript<?> script) {
+        return lockRedisTemplate.getStringSerializer().serialize(script.getScriptAsString());
+    }
+
+    /**
+     * 反序列化脚本返回值，整数、布尔、多条结果原样返回，字符串按 key 的序列化规则转换
+     *
+     * @param script 脚本对象
+     * @param result 原始返回值
+     * @return 返回值
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T deserialize(RedisScript<T> script, Object result) {
+        if (result instanceof byte[] && String.class == script.getResultType())
+            return (T) lockRedisTemplate.getStringSerializer().deserialize((byte[]) result);
+        return (T) result;
+    }
+
+    /**
+     * 判断异常是否由 NOSCRIPT 引起
+     *
+     * @param e 异常
+     * @return true:NOSCRIPT
+     */
+    private boolean isNoScriptError(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t.getMessage() != null && t.getMessage().startsWith(NO_SCRIPT_ERROR))
+                return true;
+            if (t.getCause() == t)
+                break;
+        }
+        return false;
+    }
+
+}
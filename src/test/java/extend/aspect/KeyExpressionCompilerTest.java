@@ -0,0 +1,151 @@
+package extend.aspect;
+
+import org.junit.Test;
+import org.springframework.expression.spel.SpelEvaluationException;
+import org.springframework.expression.spel.SpelMessage;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * @author 田奇杭
+ * @Description key 表达式编译：直接编译的属性路径拼接与 SpEL 求值结果一致，超出范围的表达式回退到 SpEL。
+ * 表达式加一层括号即不满足直接编译的条件，以此得到 SpEL 的求值结果作为对照
+ * @Date 2023/7/9 21:15
+ */
+public class KeyExpressionCompilerTest {
+
+    /**
+     * 目标方法的参数
+     */
+    private static final Object[] ARGS = {new Order(3, 7L, null, new Order(9, 7L, "P9", null)), 5, "x",
+            Arrays.asList("a", "b"), Collections.singletonMap("tenant", "t1")};
+
+    /**
+     * 参数中的属性路径
+     */
+    public static final class Order {
+
+        private final Integer id;
+
+        private final Long tenant;
+
+        private final String code;
+
+        private final Order parent;
+
+        Order(Integer id, Long tenant, String code, Order parent) {
+            this.id = id;
+            this.tenant = tenant;
+            this.code = code;
+            this.parent = parent;
+        }
+
+        public Integer getId() {
+            return id;
+        }
+
+        public Long getTenant() {
+            return tenant;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public Order getParent() {
+            return parent;
+        }
+    }
+
+    /**
+     * 目标方法
+     */
+    public void target(Order order, int count, String name, List<String> names, Map<String, String> header) {
+    }
+
+    @Test
+    public void concatenationMatchesSpel() throws Exception {
+        assertKeywords("3:5", "order.id + ':' + count");
+        assertKeywords("x53", "name + count + order.id");
+        assertKeywords("9:P9", "order.parent.id + ':' + order.parent.code");
+        assertKeywords("t1-3", "header.tenant + '-' + p0.id");
+        assertKeywords("3", "#order.id");
+        assertKeywords("order:5", "'order:' + a1");
+    }
+
+    @Test
+    public void numericTermsAreAdded() throws Exception {
+        // SpEL 的 + 从左到右结合，前两项都是数值时先做加法
+        assertKeywords("8", "order.id + count");
+        assertKeywords("10", "order.tenant + order.id");
+        assertKeywords("8:", "order.id + count + ':'");
+        assertKeywords("3:5", "order.id + ':' + count");
+    }
+
+    @Test
+    public void nullLeafIsConcatenatedAsNull() throws Exception {
+        assertKeywords("null:5", "order.code + ':' + count");
+        assertKeywords("null", "order.code");
+    }
+
+    @Test
+    public void nullIntermediateFailsLikeSpel() throws Exception {
+        for (String expression : new String[]{"order.parent.parent.id", "order.parent.parent.id + ':'", "':' + order.parent.parent.code"}) {
+            assertThrowsSpel(expression);
+            assertThrowsSpel("(" + expression + ")");
+        }
+    }
+
+    @Test
+    public void collectionYieldsOneKeywordPerElement() throws Exception {
+        assertEquals(Arrays.asList("a", "b"), compile("names").apply(ARGS));
+        assertEquals(Arrays.asList("a", "b"), compile("(names)").apply(ARGS));
+        assertEquals(Arrays.asList("A", "B"), compile("names.![toUpperCase()]").apply(ARGS));
+    }
+
+    /**
+     * 直接编译与 SpEL 求值得到相同的单个关键字
+     *
+     * @param expected   关键字
+     * @param expression key 表达式
+     */
+    private void assertKeywords(String expected, String expression) throws Exception {
+        assertEquals(expression, Collections.singletonList(expected), compile(expression).apply(ARGS));
+        assertEquals("(" + expression + ")", Collections.singletonList(expected), compile("(" + expression + ")").apply(ARGS));
+    }
+
+    /**
+     * 求值抛出与 SpEL 相同的异常
+     *
+     * @param expression key 表达式
+     */
+    private void assertThrowsSpel(String expression) throws Exception {
+        Function<Object[], List<String>> extractor = compile(expression);
+        try {
+            extractor.apply(ARGS);
+            fail(expression);
+        } catch (SpelEvaluationException e) {
+            assertEquals(expression, SpelMessage.PROPERTY_OR_FIELD_NOT_READABLE_ON_NULL, e.getMessageCode());
+        }
+    }
+
+    /**
+     * 编译目标方法上的 key 表达式
+     *
+     * @param expression key 表达式
+     * @return 关键字提取器
+     */
+    private static Function<Object[], List<String>> compile(String expression) throws Exception {
+        Method method = KeyExpressionCompilerTest.class.getMethod("target", Order.class, int.class, String.class, List.class, Map.class);
+        return KeyExpressionCompiler.compile(expression, method);
+    }
+
+}
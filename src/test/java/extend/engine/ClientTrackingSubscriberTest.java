@@ -0,0 +1,168 @@
+package extend.engine;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.pubsub.RedisPubSubAdapter;
+import io.lettuce.core.pubsub.StatefulRedisPubSubConnection;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @author 田奇杭
+ * @Description 客户端追踪的失效消息解码：RESP2 下 BCAST 合并的 key 数组完整保留，FLUSHDB/FLUSHALL 的 null 数组视为清空。
+ * 沙箱中没有 Redis 6，用按 RESP2 协议回复的本地服务端推送 Redis 6 格式的失效消息
+ * @Date 2023/7/9 21:45
+ */
+public class ClientTrackingSubscriberTest {
+
+    /**
+     * 失效消息频道
+     */
+    private static final String CHANNEL = "__redis__:invalidate";
+
+    /**
+     * 模拟的 Redis 服务端
+     */
+    private ServerSocket server;
+
+    /**
+     * Lettuce 客户端
+     */
+    private RedisClient client;
+
+    @After
+    public void tearDown() throws IOException {
+        if (client != null)
+            client.shutdown();
+        if (server != null)
+            server.close();
+    }
+
+    @Test
+    public void batchedKeysAreAllDecoded() throws Exception {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(() -> serve(
+                message(array("ordinary:{order:1}", "ordinary:{order:2}")),
+                message(array("ordinary:{order:3}")),
+                message("*-1\r\n"),
+                message(bulk("ordinary:{order:4}"))));
+        thread.setDaemon(true);
+        thread.start();
+
+        client = RedisClient.create(RedisURI.create("127.0.0.1", server.getLocalPort()));
+        StatefulRedisPubSubConnection<String, List<String>> connection =
+                client.connectPubSub(new ClientTrackingSubscriber.InvalidationCodec());
+        BlockingQueue<List<String>> received = new LinkedBlockingQueue<>();
+        connection.addListener(new RedisPubSubAdapter<String, List<String>>() {
+            @Override
+            public void message(String channel, List<String> keys) {
+                assertEquals(CHANNEL, channel);
+                received.add(keys == null ? Collections.emptyList() : new ArrayList<>(keys));
+            }
+        });
+        connection.sync().subscribe(CHANNEL);
+
+        assertEquals(Arrays.asList("ordinary:{order:1}", "ordinary:{order:2}"), poll(received));
+        assertEquals(Collections.singletonList("ordinary:{order:3}"), poll(received));
+        assertEquals(Collections.emptyList(), poll(received));
+        assertEquals(Collections.singletonList("ordinary:{order:4}"), poll(received));
+    }
+
+    /**
+     * 接受一个连接，回复 SUBSCRIBE 后依次推送失效消息，其余命令回复 OK
+     *
+     * @param messages 订阅后推送的消息
+     */
+    private void serve(String... messages) {
+        try (Socket socket = server.accept()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream out = socket.getOutputStream();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("*"))
+                    continue;
+                List<String> command = new ArrayList<>();
+                for (int i = Integer.parseInt(line.substring(1)); i > 0; i--) {
+                    reader.readLine();
+                    command.add(reader.readLine());
+                }
+                StringBuilder reply = new StringBuilder();
+                if ("SUBSCRIBE".equalsIgnoreCase(command.get(0))) {
+                    reply.append("*3\r\n").append(bulk("subscribe")).append(bulk(CHANNEL)).append(":1\r\n");
+                    for (String message : messages)
+                        reply.append(message);
+                } else {
+                    reply.append("+OK\r\n");
+                }
+                out.write(reply.toString().getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (IOException e) {
+            // 测试结束时连接关闭
+        }
+    }
+
+    /**
+     * 失效频道的消息
+     *
+     * @param payload 消息内容
+     * @return RESP2 回复
+     */
+    private static String message(String payload) {
+        return "*3\r\n" + bulk("message") + bulk(CHANNEL) + payload;
+    }
+
+    /**
+     * key 数组
+     *
+     * @param keys key
+     * @return RESP2 数组
+     */
+    private static String array(String... keys) {
+        StringBuilder builder = new StringBuilder("*").append(keys.length).append("\r\n");
+        for (String key : keys)
+            builder.append(bulk(key));
+        return builder.toString();
+    }
+
+    /**
+     * 字符串
+     *
+     * @param value 内容
+     * @return RESP2 字符串
+     */
+    private static String bulk(String value) {
+        return "$" + value.getBytes(StandardCharsets.UTF_8).length + "\r\n" + value + "\r\n";
+    }
+
+    /**
+     * 取出下一条收到的消息
+     *
+     * @param received 收到的消息
+     * @return 消息中的 key
+     */
+    private static List<String> poll(BlockingQueue<List<String>> received) throws InterruptedException {
+        List<String> keys = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("没有收到失效消息", keys);
+        return keys;
+    }
+
+}
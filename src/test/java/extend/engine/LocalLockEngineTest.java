@@ -0,0 +1,169 @@
+package extend.engine;
+
+import extend.config.RedisMessageConfig;
+import extend.lock.FairDistributedLock;
+import extend.lock.ReadWriteDistributedLock;
+import extend.lock.SemaphoreDistributedLock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author 田奇杭
+ * @Description 进程内锁引擎：可重入、持续时间、释放通知、交接与按组抢占，返回值与 RedisLockEngine 的脚本一致；
+ * 直接依赖 Redis 的锁类型与消息监听容器不在进程内引擎下装配
+ * @Date 2023/7/2 21:30
+ */
+public class LocalLockEngineTest {
+
+    /**
+     * 锁持续时间（毫秒）
+     */
+    private static final long LEASE = 10_000L;
+
+    /**
+     * 持有者
+     */
+    private static final String OWNER = "owner";
+
+    /**
+     * 其他持有者
+     */
+    private static final String OTHER = "other";
+
+    /**
+     * 进程内锁引擎
+     */
+    private LocalLockEngine lockEngine;
+
+    /**
+     * 收到的释放通知（锁名称）
+     */
+    private final List<String> released = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        lockEngine = new LocalLockEngine();
+        lockEngine.start();
+    }
+
+    @After
+    public void tearDown() {
+        lockEngine.stop();
+    }
+
+    @Test
+    public void acquireIsReentrantAndExclusive() {
+        assertNull(lockEngine.acquire("a", LEASE, OWNER));
+        assertNull(lockEngine.acquire("a", LEASE, OWNER));
+        Long ttl = lockEngine.acquire("a", LEASE, OTHER);
+        assertNotNull(ttl);
+        assertTrue(ttl > 0 && ttl <= LEASE);
+
+        // 重入次数未归零时不释放、不通知
+        lockEngine.subscribe("a", (lockName, message) -> released.add(lockName));
+        assertEquals(Long.valueOf(0L), lockEngine.release("a", LEASE, OWNER));
+        assertTrue(released.isEmpty());
+        // 非持有者释放不影响锁
+        assertNull(lockEngine.release("a", LEASE, OTHER));
+        assertEquals(Long.valueOf(1L), lockEngine.release("a", LEASE, OWNER));
+        assertEquals(Collections.singletonList("a"), released);
+        assertNull(lockEngine.release("a", LEASE, OWNER));
+        assertEquals(0, lockEngine.size());
+    }
+
+    @Test
+    public void unsubscribedListenerIsNotNotified() {
+        LockReleaseListener listener = (lockName, message) -> released.add(lockName);
+        lockEngine.subscribe("a", listener);
+        lockEngine.unsubscribe("a", listener);
+        assertNull(lockEngine.acquire("a", LEASE, OWNER));
+        assertEquals(Long.valueOf(1L), lockEngine.release("a", LEASE, OWNER));
+        assertTrue(released.isEmpty());
+    }
+
+    @Test
+    public void expiredLockCanBeTakenOver() throws Exception {
+        assertNull(lockEngine.acquire("a", 20L, OWNER));
+        Thread.sleep(50);
+        assertNull(lockEngine.acquire("a", LEASE, OTHER));
+        // 原持有者已失去锁，续期与释放都失败
+        assertEquals(Arrays.asList(false, true), lockEngine.renew(Arrays.asList("a", "a"), Arrays.asList(OWNER, OTHER), LEASE));
+        assertNull(lockEngine.release("a", LEASE, OWNER));
+    }
+
+    @Test
+    public void handoffTransfersWithoutNotification() {
+        lockEngine.subscribe("a", (lockName, message) -> released.add(lockName));
+        assertNull(lockEngine.acquire("a", LEASE, OWNER));
+        assertNull(lockEngine.handoff("a", LEASE, OTHER, OWNER, LEASE));
+        assertEquals(Long.valueOf(1L), lockEngine.handoff("a", LEASE, OWNER, OTHER, LEASE));
+        assertTrue(released.isEmpty());
+        assertNotNull(lockEngine.acquire("a", LEASE, OWNER));
+        assertEquals(Long.valueOf(1L), lockEngine.release("a", LEASE, OTHER));
+        assertEquals(Collections.singletonList("a"), released);
+    }
+
+    @Test
+    public void acquireAllIsAllOrNothing() throws Exception {
+        assertNull(lockEngine.acquire("k2", LEASE, OTHER));
+        List<List<String>> groups = Arrays.asList(Arrays.asList("k1", "k2", "k3"), Collections.singletonList("k4"));
+        List<Long> results = new ArrayList<>();
+        for (CompletableFuture<Long> future : lockEngine.acquireAll(groups, LEASE, OWNER))
+            results.add(future.get());
+        // 第一组在第二把锁冲突，整组未持有；第二组不受影响
+        assertEquals(Arrays.asList(2L, null), results);
+        assertNull(lockEngine.acquire("k1", LEASE, OTHER));
+        assertNull(lockEngine.acquire("k3", LEASE, OTHER));
+        assertEquals(Long.valueOf(1L), lockEngine.release("k4", LEASE, OWNER));
+    }
+
+    @Test
+    public void conflictingGroupChangesNothing() throws Exception {
+        assertNull(lockEngine.acquire("k1", 200L, OWNER));
+        assertNull(lockEngine.acquire("k2", LEASE, OTHER));
+        lockEngine.subscribe("k1", (lockName, message) -> released.add(lockName));
+        lockEngine.subscribe("k3", (lockName, message) -> released.add(lockName));
+
+        List<List<String>> groups = Collections.singletonList(Arrays.asList("k1", "k3", "k2"));
+        assertEquals(Long.valueOf(3L), lockEngine.acquireAll(groups, LEASE, OWNER).get(0).get());
+        // 冲突时不重入、不延长已持有的锁，未抢占的锁没有被写入，也没有释放通知
+        Long ttl = lockEngine.acquire("k1", LEASE, OTHER);
+        assertNotNull(ttl);
+        assertTrue(ttl <= 200L);
+        assertNull(lockEngine.acquire("k3", LEASE, OTHER));
+        assertTrue(released.isEmpty());
+        assertEquals(Long.valueOf(1L), lockEngine.release("k1", LEASE, OWNER));
+    }
+
+    @Test
+    public void redisOnlyBeansAreSkipped() {
+        try (AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext()) {
+            context.getEnvironment().getPropertySources().addFirst(
+                    new MapPropertySource("test", Collections.singletonMap("extend.lock.engine", "local")));
+            context.register(RedisMessageConfig.class, FairDistributedLock.class, ReadWriteDistributedLock.class,
+                    SemaphoreDistributedLock.class);
+            context.refresh();
+            assertFalse(context.getBeanProvider(RedisMessageListenerContainer.class).iterator().hasNext());
+            assertFalse(context.getBeanProvider(FairDistributedLock.class).iterator().hasNext());
+            assertFalse(context.getBeanProvider(ReadWriteDistributedLock.class).iterator().hasNext());
+            assertFalse(context.getBeanProvider(SemaphoreDistributedLock.class).iterator().hasNext());
+        }
+    }
+
+}
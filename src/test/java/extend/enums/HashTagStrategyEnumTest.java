@@ -0,0 +1,43 @@
+package extend.enums;
+
+import io.lettuce.core.cluster.SlotHash;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * @author 田奇杭
+ * @Description hash tag 策略组装的锁名称，以及同一 tag 的锁落在同一个 slot
+ * @Date 2023/6/28 20:40
+ */
+public class HashTagStrategyEnumTest {
+
+    @Test
+    public void keyword() {
+        assertEquals("ordinary:{order:1001}", HashTagStrategyEnum.KEYWORD.assemble("ordinary", "order:1001"));
+        assertEquals("ordinary:{order{42}:item}", HashTagStrategyEnum.KEYWORD.assemble("ordinary", "order{42}:item"));
+    }
+
+    @Test
+    public void prefix() {
+        assertEquals("ordinary:{order}:1001", HashTagStrategyEnum.PREFIX.assemble("ordinary", "order:1001"));
+        assertEquals("ordinary:{order}:1001:item", HashTagStrategyEnum.PREFIX.assemble("ordinary", "order:1001:item"));
+        // 没有冒号或冒号在开头时同 KEYWORD
+        assertEquals("ordinary:{order}", HashTagStrategyEnum.PREFIX.assemble("ordinary", "order"));
+        assertEquals("ordinary:{:1001}", HashTagStrategyEnum.PREFIX.assemble("ordinary", ":1001"));
+        assertEquals(SlotHash.getSlot(HashTagStrategyEnum.PREFIX.assemble("ordinary", "order:1")),
+                SlotHash.getSlot(HashTagStrategyEnum.PREFIX.assemble("ordinary", "order:2")));
+    }
+
+    @Test
+    public void explicit() {
+        assertEquals("ordinary:order{42}:item", HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order{42}:item"));
+        assertEquals(SlotHash.getSlot(HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order{42}:item")),
+                SlotHash.getSlot(HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order{42}:payment")));
+        // 与 Redis 相同，空的 {} 或没有闭合的 { 不是 hash tag，同 KEYWORD
+        assertEquals("ordinary:{order{}:item}", HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order{}:item"));
+        assertEquals("ordinary:{order{42:item}", HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order{42:item"));
+        assertEquals("ordinary:{order:1001}", HashTagStrategyEnum.EXPLICIT.assemble("ordinary", "order:1001"));
+    }
+
+}
@@ -0,0 +1,194 @@
+package extend.listener;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author 田奇杭
+ * @Description 分段同步队列的唤醒路由：释放消息只唤醒等待同一把锁的等待者，
+ * 每条消息唤醒第一个排队者与所有旁观者，回调与排队线程按登记顺序共同排队
+ * @Date 2023/7/5 21:20
+ */
+public class StripedSyncQueueTest {
+
+    /**
+     * 等待时间（毫秒），远大于单个用例的耗时
+     */
+    private static final long WAIT = 10_000L;
+
+    /**
+     * 被测分段同步队列
+     */
+    private final StripedSyncQueue stripe = new StripedSyncQueue();
+
+    /**
+     * 等待线程
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void signalWakesOnlyWaitersOfThatLock() throws Exception {
+        Future<Boolean> a = await("lock:a");
+        Future<Boolean> b = await("lock:b");
+
+        stripe.signal("lock:a");
+        assertTrue(a.get(1, TimeUnit.SECONDS));
+        assertStillWaiting(b);
+        assertEquals(1, waiterCount("lock:b"));
+
+        stripe.signal("lock:b");
+        assertTrue(b.get(1, TimeUnit.SECONDS));
+        assertEquals(0, waiterCount(null));
+    }
+
+    @Test
+    public void signalWakesFirstQueuedAndAllObservers() throws Exception {
+        Future<Boolean> first = await("lock:a");
+        Future<Boolean> second = await("lock:a");
+        Future<Boolean> observer1 = awaitRelease("lock:a");
+        Future<Boolean> observer2 = awaitRelease("lock:a");
+
+        stripe.signal("lock:a");
+        assertTrue(first.get(1, TimeUnit.SECONDS));
+        assertTrue(observer1.get(1, TimeUnit.SECONDS));
+        assertTrue(observer2.get(1, TimeUnit.SECONDS));
+        assertStillWaiting(second);
+
+        // 交给下一个排队者的释放不唤醒旁观者
+        Future<Boolean> observer3 = awaitRelease("lock:a");
+        stripe.passRelease("lock:a");
+        assertTrue(second.get(1, TimeUnit.SECONDS));
+        assertStillWaiting(observer3);
+
+        stripe.signal("lock:a");
+        assertTrue(observer3.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callbacksQueueWithThreadsInOrder() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Runnable callback = calls::incrementAndGet;
+        stripe.onRelease("lock:a", callback, stripe.getReleaseCount());
+        Future<Boolean> queued = await("lock:a");
+        Runnable other = calls::incrementAndGet;
+        stripe.onRelease("lock:b", other, stripe.getReleaseCount());
+
+        // 回调先登记，第一条消息执行回调，排队线程继续等待；其他锁的回调不执行
+        stripe.signal("lock:a");
+        assertEquals(1, calls.get());
+        assertStillWaiting(queued);
+
+        stripe.signal("lock:a");
+        assertTrue(queued.get(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+
+        stripe.removeReleaseCallback(other);
+        stripe.signal("lock:b");
+        assertEquals(1, calls.get());
+        assertEquals(0, waiterCount(null));
+    }
+
+    @Test
+    public void missedSignalReturnsImmediately() throws Exception {
+        int releaseCount = stripe.getReleaseCount();
+        // 抢占失败与登记等待之间到达的消息（即使是分段内的其他锁）不会被漏掉
+        stripe.signal("lock:other");
+        long start = System.nanoTime();
+        assertTrue(stripe.await("lock:a", WAIT, 0L, releaseCount));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1_000);
+    }
+
+    @Test
+    public void waitTimesOut() {
+        assertFalse(stripe.await("lock:a", 20L, 0L, stripe.getReleaseCount()));
+        assertEquals(0, waiterCount(null));
+    }
+
+    /**
+     * 在新线程中排队等待，返回前确认已登记
+     *
+     * @param lockName 锁名称
+     * @return 等待结果
+     */
+    private Future<Boolean> await(String lockName) throws InterruptedException {
+        int registered = waiterCount(null);
+        int releaseCount = stripe.getReleaseCount();
+        Future<Boolean> future = executor.submit(() -> stripe.await(lockName, WAIT, 0L, releaseCount));
+        awaitRegistered(registered + 1);
+        return future;
+    }
+
+    /**
+     * 在新线程中以旁观者身份等待，返回前确认已登记
+     *
+     * @param lockName 锁名称
+     * @return 等待结果
+     */
+    private Future<Boolean> awaitRelease(String lockName) throws InterruptedException {
+        int registered = waiterCount(null);
+        int releaseCount = stripe.getReleaseCount();
+        Future<Boolean> future = executor.submit(() -> stripe.awaitRelease(lockName, WAIT, releaseCount));
+        awaitRegistered(registered + 1);
+        return future;
+    }
+
+    /**
+     * 等待登记的等待者达到指定数量
+     *
+     * @param count 等待者数量
+     */
+    private void awaitRegistered(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (waiterCount(null) < count) {
+            if (System.currentTimeMillis() > deadline)
+                fail("等待者没有登记");
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * 登记的等待者数量
+     *
+     * @param lockName 锁名称，为 null 时统计所有锁
+     * @return 等待者数量
+     */
+    private int waiterCount(String lockName) {
+        List<String> lockNames = new ArrayList<>();
+        stripe.forEachWaiter(lockNames::add);
+        return lockName == null ? lockNames.size() : (int) lockNames.stream().filter(lockName::equals).count();
+    }
+
+    /**
+     * 等待者没有被唤醒
+     *
+     * @param future 等待结果
+     */
+    private static void assertStillWaiting(Future<Boolean> future) throws Exception {
+        try {
+            future.get(50, TimeUnit.MILLISECONDS);
+            fail("不应被唤醒");
+        } catch (TimeoutException e) {
+            // 仍在等待
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package extend.listener;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author 田奇杭
+ * @Description SyncQueue 多线程压力测试，不依赖 Redis：分布式锁用一个 CAS 变量代替，抢占与释放流程与 OrdinaryDistributedLock 相同。
+ * 一部分线程使用很短的等待时间，让超时取消与释放、移交并发发生；另有线程绕过本地队列直接抢占分布式锁替身、释放后发送释放消息，
+ * 模拟其他节点，让本地持有者走等待释放消息的路径。检查临界区互斥、长等待线程全部抢占成功（没有丢失唤醒），
+ * 结束后队列为空、本地锁空闲。与 ReentrantLock 的吞吐对比见 jmh 模块的 SyncQueueBenchmark
+ * @Date 2023/7/8 20:10
+ */
+public class SyncQueueStressTest {
+
+    /**
+     * 长等待线程的等待时间（毫秒），远大于整轮测试的耗时，超时即说明有线程一直没被唤醒
+     */
+    private static final long LONG_WAIT = 10_000L;
+
+    /**
+     * 短等待线程的等待时间上限（毫秒）
+     */
+    private static final long SHORT_WAIT = 2L;
+
+    /**
+     * 锁释放消息内容
+     */
+    private static final String RELEASE_MESSAGE = "stress";
+
+    /**
+     * 被测本地同步队列
+     */
+    private final SyncQueue syncQueue = new SyncQueue();
+
+    /**
+     * 分布式锁替身，值为持有线程
+     */
+    private final AtomicReference<Thread> distributedLock = new AtomicReference<>();
+
+    /**
+     * 当前在临界区内的线程数
+     */
+    private final AtomicInteger inside = new AtomicInteger();
+
+    /**
+     * 互斥被破坏的次数
+     */
+    private final LongAdder violationCount = new LongAdder();
+
+    /**
+     * 抢占成功次数
+     */
+    private final LongAdder acquiredCount = new LongAdder();
+
+    /**
+     * 长等待线程的抢占失败次数
+     */
+    private final LongAdder lostWakeupCount = new LongAdder();
+
+    @Test
+    public void mutualExclusionAndNoLostWakeup() throws Exception {
+        int longWaiters = 8;
+        int shortWaiters = 8;
+        int remoteNodes = 2;
+        int iterations = 20_000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < longWaiters + shortWaiters; i++) {
+            boolean shortWait = i >= longWaiters;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int j = 0; j < iterations; j++) {
+                    long waitTime = shortWait ? random.nextLong(SHORT_WAIT + 1) : LONG_WAIT;
+                    if (lock(waitTime)) {
+                        acquiredCount.increment();
+                        if (inside.incrementAndGet() > 1)
+                            violationCount.increment();
+                        // 持有一小段时间，让其他线程排队
+                        if (random.nextInt(4) == 0)
+                            Thread.yield();
+                        inside.decrementAndGet();
+                        unlock();
+                    } else if (!shortWait) {
+                        lostWakeupCount.increment();
+                    }
+                }
+            }, "sync-queue-stress-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        // 其他节点：直接抢占分布式锁，释放后发送释放消息
+        for (int i = 0; i < remoteNodes; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Thread current = Thread.currentThread();
+                for (int j = 0; j < iterations; j++) {
+                    while (!distributedLock.compareAndSet(null, current))
+                        Thread.yield();
+                    acquiredCount.increment();
+                    if (inside.incrementAndGet() > 1)
+                        violationCount.increment();
+                    Thread.yield();
+                    inside.decrementAndGet();
+                    distributedLock.set(null);
+                    syncQueue.signal(RELEASE_MESSAGE);
+                }
+            }, "sync-queue-stress-remote-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(TimeUnit.SECONDS.toMillis(60));
+
+        for (Thread thread : threads)
+            assertFalse("线程仍在休眠 " + thread.getName(), thread.isAlive());
+        assertEquals(0L, violationCount.sum());
+        assertEquals(0L, lostWakeupCount.sum());
+        assertTrue(acquiredCount.sum() >= (long) (longWaiters + remoteNodes) * iterations);
+        assertNull(distributedLock.get());
+        assertEquals(0, syncQueue.getQueueLength());
+        // 本地锁空闲
+        assertTrue(syncQueue.tryAcquire());
+        syncQueue.release();
+    }
+
+    /**
+     * 与 OrdinaryDistributedLock 相同的抢占流程
+     *
+     * @param waitTime 等待时间（毫秒）
+     * @return true:抢占成功 false:等待超时
+     */
+    private boolean lock(long waitTime) {
+        Thread current = Thread.currentThread();
+        long deadline = System.currentTimeMillis() + waitTime;
+        boolean flag = syncQueue.tryAcquire();
+        int releaseCount = syncQueue.getReleaseCount();
+        while (flag || syncQueue.acquire(deadline - System.currentTimeMillis(), 0L, 0L, releaseCount)) {
+            releaseCount = syncQueue.getReleaseCount();
+            if (distributedLock.compareAndSet(null, current))
+                return true;
+            flag = false;
+        }
+        return false;
+    }
+
+    /**
+     * 与 OrdinaryDistributedLock 相同的释放顺序：释放分布式锁 → 释放本地锁 → 收到释放消息
+     */
+    private void unlock() {
+        distributedLock.set(null);
+        syncQueue.release();
+        syncQueue.signal(RELEASE_MESSAGE);
+    }
+
+}
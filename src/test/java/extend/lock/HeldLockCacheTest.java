@@ -0,0 +1,139 @@
+package extend.lock;
+
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author 田奇杭
+ * @Description 已占用锁的本地缓存：抢占失败时记录并订阅锁的释放通知，释放通知到达或本地释放时失效，
+ * 有效期不超过 negativeCacheMaxTtl。使用进程内锁引擎，不连接 Redis
+ * @Date 2023/6/30 21:00
+ */
+public class HeldLockCacheTest {
+
+    /**
+     * 锁持续时间（毫秒）
+     */
+    private static final long LEASE = 10_000L;
+
+    /**
+     * 其他节点的持有者标识
+     */
+    private static final String REMOTE_OWNER = "remote-owner";
+
+    /**
+     * 其他持有者
+     */
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+    /**
+     * 测试容器
+     */
+    private LocalLockContext lockContext;
+
+    @After
+    public void tearDown() {
+        other.shutdownNow();
+        if (lockContext != null)
+            lockContext.close();
+    }
+
+    @Test
+    public void releaseMessageInvalidatesEntry() {
+        lockContext = new LocalLockContext(properties -> properties.setNegativeCacheEnabled(true));
+        OrdinaryDistributedLock lock = lockContext.lock;
+        HeldLockCache heldLockCache = lockContext.heldLockCache;
+        String lockName = lock.assembleLockName("held");
+
+        // 其他节点的持有者：不经过本节点的锁对象，直接在锁引擎上抢占与释放
+        assertNull(lockContext.lockEngine.acquire(lockName, LEASE, REMOTE_OWNER));
+        assertFalse(lock.tryLock("held", 0, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(heldLockCache.isHeld(lockName, 0));
+
+        // 命中缓存的抢占直接失败，不再执行抢占
+        long scripts = lockScriptCount();
+        assertFalse(lock.tryLock("held", 0, LEASE, TimeUnit.MILLISECONDS));
+        assertEquals(scripts, lockScriptCount());
+
+        // 锁引擎的释放通知让条目失效，不必等到有效期结束
+        assertEquals(Long.valueOf(1L), lockContext.lockEngine.release(lockName, LEASE, REMOTE_OWNER));
+        assertFalse(heldLockCache.isHeld(lockName, 0));
+        assertEquals(0, heldLockCache.size());
+        assertTrue(lock.tryLock("held", 0, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(lock.unLock("held", LEASE, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void unlockInvalidatesEntry() throws Exception {
+        lockContext = new LocalLockContext(properties -> properties.setNegativeCacheEnabled(true));
+        OrdinaryDistributedLock lock = lockContext.lock;
+        HeldLockCache heldLockCache = lockContext.heldLockCache;
+        String lockName = lock.assembleLockName("local");
+
+        assertTrue(other.submit(() -> lock.tryLock("local", 0, LEASE, TimeUnit.MILLISECONDS)).get());
+        heldLockCache.put(lockName, LEASE);
+        assertTrue(heldLockCache.isHeld(lockName, 0));
+        assertTrue(other.submit(() -> lock.unLock("local", LEASE, TimeUnit.MILLISECONDS)).get());
+        assertFalse(heldLockCache.isHeld(lockName, 0));
+    }
+
+    @Test
+    public void entryExpiresWithinMaxTtl() throws Exception {
+        lockContext = new LocalLockContext(properties -> {
+            properties.setNegativeCacheEnabled(true);
+            properties.setNegativeCacheMaxTtl(50L);
+        });
+        HeldLockCache heldLockCache = lockContext.heldLockCache;
+        String lockName = lockContext.lock.assembleLockName("ttl");
+
+        // 剩余时间远大于上限时按上限记录
+        heldLockCache.put(lockName, LEASE);
+        assertTrue(heldLockCache.isHeld(lockName, 0));
+        Thread.sleep(100);
+        assertFalse(heldLockCache.isHeld(lockName, 0));
+    }
+
+    @Test
+    public void waitingAcquireBypassesCache() {
+        lockContext = new LocalLockContext(properties -> properties.setNegativeCacheEnabled(true));
+        HeldLockCache heldLockCache = lockContext.heldLockCache;
+        String lockName = lockContext.lock.assembleLockName("wait");
+
+        heldLockCache.put(lockName, LEASE);
+        assertTrue(heldLockCache.isHeld(lockName, 0));
+        // 等待时间超过 negativeCacheMaxWaitTime 的抢占不使用缓存
+        assertFalse(heldLockCache.isHeld(lockName, 1));
+    }
+
+    @Test
+    public void disabledCacheRecordsNothing() {
+        lockContext = new LocalLockContext(properties -> properties.setNegativeCacheEnabled(false));
+        HeldLockCache heldLockCache = lockContext.heldLockCache;
+        String lockName = lockContext.lock.assembleLockName("disabled");
+
+        heldLockCache.put(lockName, LEASE);
+        assertFalse(heldLockCache.isHeld(lockName, 0));
+        assertEquals(0, heldLockCache.size());
+    }
+
+    /**
+     * 抢占脚本的执行次数
+     *
+     * @return 执行次数
+     */
+    private long lockScriptCount() {
+        Timer timer = lockContext.meterRegistry.find("extend.lock.script").tag("script", "lock").timer();
+        return timer == null ? 0L : timer.count();
+    }
+
+}
@@ -0,0 +1,87 @@
+package extend.lock;
+
+import extend.config.DistributedLockProperties;
+import extend.engine.LocalLockEngine;
+import extend.enums.LockEngineEnum;
+import extend.listener.PublishSubscribe;
+import extend.script.LuaScriptRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.core.env.MapPropertySource;
+
+import java.util.Collections;
+import java.util.function.Consumer;
+
+/**
+ * @author 田奇杭
+ * @Description 测试用的最小容器：进程内锁引擎 + 普通锁及其依赖，不需要 Redis。
+ * 配置对象与指标注册中心以单例注册，测试可以在启动前修改配置、启动后检查指标；
+ * 进程内引擎下普通锁不执行 Lua 脚本，脚本注册中心同样以单例注册，不加载脚本、不连接 Redis
+ * @Date 2023/7/2 21:10
+ */
+final class LocalLockContext implements AutoCloseable {
+
+    /**
+     * 容器
+     */
+    final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+    /**
+     * 分布式锁配置，引擎固定为 local
+     */
+    final DistributedLockProperties properties = new DistributedLockProperties();
+
+    /**
+     * 指标注册中心
+     */
+    final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    /**
+     * 普通锁
+     */
+    final OrdinaryDistributedLock lock;
+
+    /**
+     * 锁释放监听
+     */
+    final PublishSubscribe publishSubscribe;
+
+    /**
+     * 已占用锁的本地缓存
+     */
+    final HeldLockCache heldLockCache;
+
+    /**
+     * 进程内锁引擎
+     */
+    final LocalLockEngine lockEngine;
+
+    /**
+     * 启动容器
+     *
+     * @param customizer 启动前修改配置
+     */
+    LocalLockContext(Consumer<DistributedLockProperties> customizer) {
+        properties.setEngine(LockEngineEnum.LOCAL);
+        customizer.accept(properties);
+        // LocalLockEngine 按 extend.lock.engine 条件装配
+        context.getEnvironment().getPropertySources().addFirst(
+                new MapPropertySource("test", Collections.singletonMap("extend.lock.engine", "local")));
+        context.getBeanFactory().registerSingleton("distributedLockProperties", properties);
+        context.getBeanFactory().registerSingleton("meterRegistry", meterRegistry);
+        context.getBeanFactory().registerSingleton("luaScriptRegistry", new LuaScriptRegistry());
+        context.register(LocalLockEngine.class, PublishSubscribe.class, HeldLockCache.class, LockMetrics.class,
+                LeaseWatchdog.class, OrdinaryDistributedLock.class);
+        context.refresh();
+        lock = context.getBean(OrdinaryDistributedLock.class);
+        publishSubscribe = context.getBean(PublishSubscribe.class);
+        heldLockCache = context.getBean(HeldLockCache.class);
+        lockEngine = context.getBean(LocalLockEngine.class);
+    }
+
+    @Override
+    public void close() {
+        context.close();
+    }
+
+}
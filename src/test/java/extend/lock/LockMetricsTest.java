@@ -0,0 +1,95 @@
+package extend.lock;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * @author 田奇杭
+ * @Description 监控指标：锁名称解析出的锁类型与关键字模式、模式数量上限、切面按关键字记录持有时间
+ * @Date 2023/7/9 20:55
+ */
+public class LockMetricsTest {
+
+    /**
+     * 测试容器
+     */
+    private LocalLockContext lockContext;
+
+    @After
+    public void tearDown() {
+        if (lockContext != null)
+            lockContext.close();
+    }
+
+    @Test
+    public void lockType() {
+        assertEquals("ordinary", LockMetrics.lockType("ordinary:{order:1001}"));
+        assertEquals("readWrite", LockMetrics.lockType("readWrite:order{42}:item"));
+        assertEquals("plain", LockMetrics.lockType("plain"));
+    }
+
+    @Test
+    public void keyPattern() {
+        // 含数字的段替换为 *，分隔符原样保留
+        assertEquals("order:*", LockMetrics.keyPattern("ordinary:{order:1001}"));
+        assertEquals("user_*-profile", LockMetrics.keyPattern("ordinary:{user_42-profile}"));
+        assertEquals("order:*:item", LockMetrics.keyPattern("ordinary:{order}:1001:item"));
+        // hash tag 的花括号不参与切段
+        assertEquals("*:item", LockMetrics.keyPattern("ordinary:order{42}:item"));
+        // 过长的段视为变量
+        assertEquals("sku.*", LockMetrics.keyPattern("ordinary:{sku.abcdefghijklmnopqrstuvwxyz}"));
+        assertEquals("sku.abcdefghijklmnopqrstuvwx", LockMetrics.keyPattern("ordinary:{sku.abcdefghijklmnopqrstuvwx}"));
+        assertEquals("", LockMetrics.keyPattern("ordinary:{}"));
+    }
+
+    @Test
+    public void patternsBeyondLimitShareOther() {
+        lockContext = new LocalLockContext(properties -> properties.setMetricsMaxKeyPatterns(2));
+        LockMetrics lockMetrics = lockContext.context.getBean(LockMetrics.class);
+
+        lockMetrics.acquired("ordinary:{order:1}", lockMetrics.start());
+        lockMetrics.acquired("ordinary:{order:2}", lockMetrics.start());
+        lockMetrics.acquired("ordinary:{user:1}", lockMetrics.start());
+        lockMetrics.acquired("ordinary:{sku:1}", lockMetrics.start());
+        lockMetrics.acquired("ordinary:{coupon:1}", lockMetrics.start());
+
+        assertEquals(2.0, acquireCount("order:*"), 0.0);
+        assertEquals(1.0, acquireCount("user:*"), 0.0);
+        assertEquals(2.0, acquireCount("other"), 0.0);
+        assertNull(lockContext.meterRegistry.find("extend.lock.acquire").tag("key", "sku:*").counter());
+    }
+
+    @Test
+    public void releasedByKeywordRecordsHoldTime() {
+        lockContext = new LocalLockContext(properties -> {
+        });
+        LockMetrics lockMetrics = lockContext.context.getBean(LockMetrics.class);
+
+        lockMetrics.released(lockContext.lock, "order:1", lockMetrics.start());
+        lockMetrics.released(lockContext.lock, "order:1", lockMetrics.start());
+        lockMetrics.released(lockContext.lock, "order:2", lockMetrics.start());
+
+        Timer hold = lockContext.meterRegistry.find("extend.lock.hold").tag("type", "ordinary").tag("key", "order:*").timer();
+        assertNotNull(hold);
+        assertEquals(3L, hold.count());
+    }
+
+    /**
+     * 关键字模式的抢占成功次数
+     *
+     * @param pattern 关键字模式
+     * @return 抢占成功次数
+     */
+    private double acquireCount(String pattern) {
+        Counter counter = lockContext.meterRegistry.find("extend.lock.acquire").tag("key", pattern).tag("result", "success").counter();
+        assertNotNull(pattern, counter);
+        return counter.count();
+    }
+
+}
@@ -0,0 +1,237 @@
+package extend.lock;
+
+import extend.listener.AbstractSyncQueue;
+import io.micrometer.core.instrument.Timer;
+import org.junit.After;
+import org.junit.Test;
+import reactor.core.publisher.Mono;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author 田奇杭
+ * @Description 普通锁在进程内锁引擎上的行为：重入、本地交接、与多把锁抢占嵌套时JVM锁的释放、多 key 全部成功或全部失败、响应式多 key 按顺序获取。
+ * 其他持有者用单独的线程模拟，持有者标识按线程区分
+ * @Date 2023/7/9 20:25
+ */
+public class OrdinaryDistributedLockTest {
+
+    /**
+     * 锁持续时间（毫秒），远大于单个用例的耗时
+     */
+    private static final long LEASE = 10_000L;
+
+    /**
+     * 其他持有者
+     */
+    private final ExecutorService other = Executors.newSingleThreadExecutor();
+
+    /**
+     * 第三个持有者
+     */
+    private final ExecutorService third = Executors.newSingleThreadExecutor();
+
+    /**
+     * 测试容器
+     */
+    private LocalLockContext lockContext;
+
+    @After
+    public void tearDown() {
+        other.shutdownNow();
+        third.shutdownNow();
+        if (lockContext != null)
+            lockContext.close();
+    }
+
+    @Test
+    public void reentrantLockIsReleasedByLastUnlock() throws Exception {
+        lockContext = new LocalLockContext(properties -> {
+        });
+        OrdinaryDistributedLock lock = lockContext.lock;
+
+        assertTrue(lock.tryLock("reentrant", 0, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(lock.tryLock("reentrant", 0, LEASE, TimeUnit.MILLISECONDS));
+        assertFalse(call(other, () -> lock.tryLock("reentrant", 0, LEASE, TimeUnit.MILLISECONDS)));
+
+        // 第一次释放只减少重入次数
+        assertTrue(lock.unLock("reentrant", LEASE, TimeUnit.MILLISECONDS));
+        assertFalse(call(other, () -> lock.tryLock("reentrant", 0, LEASE, TimeUnit.MILLISECONDS)));
+
+        assertTrue(lock.unLock("reentrant", LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(call(other, () -> lock.tryLock("reentrant", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(other, () -> lock.unLock("reentrant", LEASE, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void unlockHandsOffToLocalWaiter() throws Exception {
+        lockContext = new LocalLockContext(properties -> properties.setLocalHandoff(true));
+        OrdinaryDistributedLock lock = lockContext.lock;
+        String lockName = lock.assembleLockName("handoff");
+
+        assertTrue(lock.tryLock("handoff", 0, LEASE, TimeUnit.MILLISECONDS));
+        Future<Boolean> waiter = other.submit(() -> lock.tryLock("handoff", 5_000, LEASE, TimeUnit.MILLISECONDS));
+        awaitQueued(lockName);
+
+        assertTrue(lock.unLock("handoff", LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+
+        // 分布式锁没有释放，直接交接给了等待线程
+        Timer handoff = lockContext.meterRegistry.find("extend.lock.script").tag("script", "handoff").tag("outcome", "success").timer();
+        assertNotNull(handoff);
+        assertEquals(1L, handoff.count());
+        assertFalse(call(third, () -> lock.tryLock("handoff", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(other, () -> lock.unLock("handoff", LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.tryLock("handoff", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.unLock("handoff", LEASE, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void nestedSingleKeyUnlockReleasesLocalLock() throws Exception {
+        lockContext = new LocalLockContext(properties -> properties.setLocalHandoff(true));
+        OrdinaryDistributedLock lock = lockContext.lock;
+        List<String> keys = Arrays.asList("nested:a", "nested:b");
+        String lockName = lock.assembleLockName("nested:a");
+
+        // 多把锁的抢占不持有JVM锁，嵌套的单把锁抢占成为JVM锁持有者
+        assertTrue(lock.tryLock(keys, 0, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(lock.tryLock("nested:a", 0, LEASE, TimeUnit.MILLISECONDS));
+        Future<Boolean> waiter = other.submit(() -> lock.tryLock("nested:a", 5_000, LEASE, TimeUnit.MILLISECONDS));
+        awaitQueued(lockName);
+
+        // 内层释放只减少分布式锁的重入次数，JVM锁交给等待线程，等待线程继续等待分布式锁
+        assertTrue(lock.unLock("nested:a", LEASE, TimeUnit.MILLISECONDS));
+        Thread.sleep(50);
+        assertFalse(waiter.isDone());
+
+        assertTrue(lock.unLock(keys, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(waiter.get(1, TimeUnit.SECONDS));
+        assertTrue(call(other, () -> lock.unLock("nested:a", LEASE, TimeUnit.MILLISECONDS)));
+    }
+
+    @Test
+    public void multiKeyLockIsAllOrNothing() throws Exception {
+        lockContext = new LocalLockContext(properties -> {
+        });
+        OrdinaryDistributedLock lock = lockContext.lock;
+        List<String> keys = Arrays.asList("multi:a", "multi:b", "multi:c");
+
+        assertTrue(call(other, () -> lock.tryLock("multi:b", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertFalse(lock.tryLock(keys, 0, LEASE, TimeUnit.MILLISECONDS));
+        // 失败时已获取的锁全部回滚
+        assertTrue(call(third, () -> lock.tryLock("multi:a", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.tryLock("multi:c", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.unLock("multi:a", LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.unLock("multi:c", LEASE, TimeUnit.MILLISECONDS)));
+
+        // 冲突的锁释放后等待中的多 key 抢占全部成功
+        Future<Boolean> released = other.submit(() -> {
+            Thread.sleep(50);
+            return lock.unLock("multi:b", LEASE, TimeUnit.MILLISECONDS);
+        });
+        assertTrue(lock.tryLock(keys, 5_000, LEASE, TimeUnit.MILLISECONDS));
+        assertTrue(released.get(1, TimeUnit.SECONDS));
+        for (String key : keys)
+            assertFalse(call(third, () -> lock.tryLock(key, 0, LEASE, TimeUnit.MILLISECONDS)));
+
+        assertTrue(lock.unLock(keys, LEASE, TimeUnit.MILLISECONDS));
+        for (String key : keys) {
+            assertTrue(call(third, () -> lock.tryLock(key, 0, LEASE, TimeUnit.MILLISECONDS)));
+            assertTrue(call(third, () -> lock.unLock(key, LEASE, TimeUnit.MILLISECONDS)));
+        }
+    }
+
+    @Test
+    public void reactiveMultiKeyLockIsAcquiredInOrder() throws Exception {
+        lockContext = new LocalLockContext(properties -> {
+        });
+        OrdinaryDistributedLock lock = lockContext.lock;
+        List<String> keys = Arrays.asList("rx:c", "rx:a", "rx:b");
+
+        assertTrue(call(other, () -> lock.tryLock("rx:b", 0, LEASE, TimeUnit.MILLISECONDS)));
+        CompletableFuture<String> result = lock.withLock(keys, 5_000, LEASE, TimeUnit.MILLISECONDS, Mono.fromCallable(() -> {
+            for (String key : keys)
+                assertFalse(call(third, () -> lock.tryLock(key, 0, LEASE, TimeUnit.MILLISECONDS)));
+            return "locked";
+        })).toFuture();
+
+        // 按关键字顺序获取：rx:a 已持有，等待 rx:b，rx:c 尚未获取
+        Thread.sleep(50);
+        assertFalse(result.isDone());
+        assertFalse(call(third, () -> lock.tryLock("rx:a", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.tryLock("rx:c", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertTrue(call(third, () -> lock.unLock("rx:c", LEASE, TimeUnit.MILLISECONDS)));
+
+        assertTrue(call(other, () -> lock.unLock("rx:b", LEASE, TimeUnit.MILLISECONDS)));
+        assertEquals("locked", result.get(1, TimeUnit.SECONDS));
+        assertAllReleased(lock, keys);
+    }
+
+    @Test
+    public void reactiveMultiKeyTimeoutReleasesAcquiredKeys() throws Exception {
+        lockContext = new LocalLockContext(properties -> {
+        });
+        OrdinaryDistributedLock lock = lockContext.lock;
+        List<String> keys = Arrays.asList("rx:a", "rx:b");
+
+        assertTrue(call(other, () -> lock.tryLock("rx:b", 0, LEASE, TimeUnit.MILLISECONDS)));
+        assertNull(lock.withLock(keys, 50, LEASE, TimeUnit.MILLISECONDS, Mono.just("locked")).block(Duration.ofSeconds(1)));
+        assertTrue(call(other, () -> lock.unLock("rx:b", LEASE, TimeUnit.MILLISECONDS)));
+        assertAllReleased(lock, keys);
+    }
+
+    /**
+     * 在指定线程中执行并等待结果
+     *
+     * @param executor 线程
+     * @param task     任务
+     * @return 任务结果
+     */
+    private static <T> T call(ExecutorService executor, Callable<T> task) throws Exception {
+        return executor.submit(task).get(5, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 所有锁都已释放：其他线程能够立即获取
+     *
+     * @param lock 普通锁
+     * @param keys 关键字集合
+     */
+    private void assertAllReleased(OrdinaryDistributedLock lock, List<String> keys) throws Exception {
+        for (String key : keys) {
+            assertTrue(call(third, () -> lock.tryLock(key, 0, LEASE, TimeUnit.MILLISECONDS)));
+            assertTrue(call(third, () -> lock.unLock(key, LEASE, TimeUnit.MILLISECONDS)));
+        }
+    }
+
+    /**
+     * 等待锁的本地同步队列中出现排队线程
+     *
+     * @param lockName 锁名称
+     */
+    private void awaitQueued(String lockName) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (System.currentTimeMillis() < deadline) {
+            AbstractSyncQueue syncQueue = lockContext.publishSubscribe.getSyncQueue(lockName);
+            if (syncQueue != null && syncQueue.getQueueLength() > 0)
+                return;
+            Thread.sleep(1);
+        }
+        throw new AssertionError("没有线程排队 " + lockName);
+    }
+
+}
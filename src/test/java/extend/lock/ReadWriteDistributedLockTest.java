@@ -0,0 +1,182 @@
+package extend.lock;
+
+import extend.config.DistributedLockProperties;
+import extend.engine.ClientTrackingSubscriber;
+import extend.engine.RedisLockEngine;
+import extend.enums.DistributedLockModeEnum;
+import extend.enums.LockNotificationEnum;
+import extend.listener.PublishSubscribe;
+import extend.script.LuaScriptRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.boot.autoconfigure.data.redis.RedisProperties;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.data.redis.connection.DefaultMessage;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.listener.Topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author 田奇杭
+ * @Description 读写锁的释放通知：开启客户端追踪时只有普通锁改用追踪，读写锁仍订阅锁频道，
+ * 释放脚本发布到锁频道的消息能唤醒等待线程。脚本执行结果与消息投递由测试替身模拟，不连接 Redis
+ * @Date 2023/7/10 20:30
+ */
+public class ReadWriteDistributedLockTest {
+
+    /**
+     * 锁持续时间（毫秒），远大于单个用例的耗时
+     */
+    private static final long LEASE = 10_000L;
+
+    /**
+     * 等待线程
+     */
+    private final ExecutorService waiter = Executors.newSingleThreadExecutor();
+
+    /**
+     * 容器
+     */
+    private final AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+
+    @After
+    public void tearDown() {
+        waiter.shutdownNow();
+        context.close();
+    }
+
+    @Test
+    public void releaseMessageWakesWriterWithTracking() throws Exception {
+        DistributedLockProperties properties = new DistributedLockProperties();
+        properties.setNotification(LockNotificationEnum.TRACKING);
+        // 写等待标记的刷新周期远大于用例耗时，等待线程只能被释放消息唤醒
+        properties.setWriterIntentTimeout(60_000L);
+        ScriptedLuaScriptRegistry luaScriptRegistry = new ScriptedLuaScriptRegistry();
+        RecordingContainer container = new RecordingContainer();
+        context.getBeanFactory().registerSingleton("distributedLockProperties", properties);
+        context.getBeanFactory().registerSingleton("meterRegistry", new SimpleMeterRegistry());
+        context.getBeanFactory().registerSingleton("redisProperties", new RedisProperties());
+        context.getBeanFactory().registerSingleton("luaScriptRegistry", luaScriptRegistry);
+        context.getBeanFactory().registerSingleton("container", container);
+        context.register(OfflineTrackingSubscriber.class, RedisLockEngine.class, PublishSubscribe.class, LockMetrics.class,
+                LeaseWatchdog.class, ReadWriteDistributedLock.class);
+        context.refresh();
+        ReadWriteDistributedLock lock = context.getBean(ReadWriteDistributedLock.class);
+        String lockName = lock.assembleLockName("tracking");
+        String channel = PublishSubscribe.getChannelName(lockName);
+
+        // 写锁被其他持有者占用
+        luaScriptRegistry.result = LEASE;
+        Future<Boolean> writer = waiter.submit(() -> lock.tryLock("tracking", DistributedLockModeEnum.WRITE, 5_000, LEASE, TimeUnit.MILLISECONDS));
+        MessageListener listener = container.awaitListener(channel);
+
+        // 持有者释放，释放脚本向锁频道发布锁名称
+        luaScriptRegistry.result = null;
+        listener.onMessage(new DefaultMessage(channel.getBytes(StandardCharsets.UTF_8), lockName.getBytes(StandardCharsets.UTF_8)), null);
+        assertTrue(writer.get(1, TimeUnit.SECONDS));
+        assertFalse(container.channels.containsKey(channel));
+    }
+
+    /**
+     * 返回预设结果的脚本注册中心
+     */
+    private static final class ScriptedLuaScriptRegistry extends LuaScriptRegistry {
+
+        /**
+         * 所有脚本的执行结果，抢占脚本 null:成功 !null:锁剩余时间
+         */
+        volatile Long result;
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T execute(RedisScript<T> script, List<String> keys, Object... args) {
+            return (T) result;
+        }
+
+    }
+
+    /**
+     * 记录频道监听的消息监听容器，不连接 Redis
+     */
+    private static final class RecordingContainer extends RedisMessageListenerContainer {
+
+        /**
+         * key: 频道
+         * value: 该频道的消息监听
+         */
+        final Map<String, Set<MessageListener>> channels = new ConcurrentHashMap<>();
+
+        @Override
+        public void addMessageListener(MessageListener listener, Topic topic) {
+            channels.computeIfAbsent(topic.getTopic(), k -> ConcurrentHashMap.newKeySet()).add(listener);
+        }
+
+        @Override
+        public void removeMessageListener(MessageListener listener, Topic topic) {
+            channels.computeIfPresent(topic.getTopic(), (k, listeners) -> {
+                listeners.remove(listener);
+                return listeners.isEmpty() ? null : listeners;
+            });
+        }
+
+        @Override
+        public boolean isAutoStartup() {
+            return false;
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        /**
+         * 等待频道出现监听
+         *
+         * @param channel 频道
+         * @return 消息监听
+         */
+        MessageListener awaitListener(String channel) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5_000;
+            while (System.currentTimeMillis() < deadline) {
+                Set<MessageListener> listeners = channels.get(channel);
+                if (listeners != null && !listeners.isEmpty())
+                    return listeners.iterator().next();
+                Thread.sleep(1);
+            }
+            fail("没有订阅频道 " + channel);
+            return null;
+        }
+
+    }
+
+    /**
+     * 不连接 Redis 的客户端追踪订阅，只保留路由判断与本地监听表
+     */
+    static class OfflineTrackingSubscriber extends ClientTrackingSubscriber {
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+    }
+
+}